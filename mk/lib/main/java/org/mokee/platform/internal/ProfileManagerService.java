@@ -91,6 +91,10 @@ public class ProfileManagerService extends MKSystemService {
 
     private Map<UUID, NotificationGroup> mGroups;
 
+    // Match packages and the notification groups they belong to, kept in sync with mGroups.
+    // Rebuilt on every change and never modified in place, so it can be read without locking.
+    private volatile Map<String, NotificationGroup> mGroupsByPackage;
+
     private Profile mActiveProfile;
 
     // Well-known UUID of the wildcard group
@@ -295,6 +299,7 @@ public class ProfileManagerService extends MKSystemService {
         mProfiles = new HashMap<UUID, Profile>();
         mProfileNames = new HashMap<String, UUID>();
         mGroups = new HashMap<UUID, NotificationGroup>();
+        mGroupsByPackage = new HashMap<String, NotificationGroup>();
         mEmptyProfile = new Profile("EmptyProfile");
         mDirty = false;
 
@@ -502,7 +507,10 @@ public class ProfileManagerService extends MKSystemService {
         @Override
         public void removeNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            mDirty |= mGroups.remove(group.getUuid()) != null;
+            if (mGroups.remove(group.getUuid()) != null) {
+                updateGroupsByPackage();
+                mDirty = true;
+            }
             // Remove the corresponding ProfileGroup from all the profiles too if
             // they use it.
             for (Profile profile : mProfiles.values()) {
@@ -522,6 +530,7 @@ public class ProfileManagerService extends MKSystemService {
             }
 
             mGroups.put(group.getUuid(), group);
+            updateGroupsByPackage();
             /* no need to set mDirty, if the group was actually changed,
              * it's marked as dirty by itself */
             long token = clearCallingIdentity();
@@ -531,12 +540,17 @@ public class ProfileManagerService extends MKSystemService {
 
         @Override
         public NotificationGroup getNotificationGroupForPackage(String pkg) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.hasPackage(pkg)) {
-                    return group;
-                }
+            return mGroupsByPackage.get(pkg);
+        }
+
+        @Override
+        public ProfileGroup getActiveProfileGroupForPackage(String pkg) {
+            Profile profile = getActiveProfile();
+            NotificationGroup group = mGroupsByPackage.get(pkg);
+            if (group == null) {
+                return profile.getDefaultGroup();
             }
-            return null;
+            return profile.getProfileGroup(group.getUuid());
         }
 
         @Override
@@ -704,13 +718,15 @@ public class ProfileManagerService extends MKSystemService {
                     }
                 } else if (name.equals("notificationGroup")) {
                     NotificationGroup ng = NotificationGroup.fromXml(xpp, context);
-                    addNotificationGroupInternal(ng);
+                    addNotificationGroupInternal(ng, false);
                 }
             } else if (event == XmlPullParser.END_DOCUMENT) {
                 throw new IOException("Premature end of file while reading " + PROFILE_FILE);
             }
             event = xpp.next();
         }
+        // Index the packages once all groups are known, rather than once per group
+        updateGroupsByPackage();
         // Don't do initialisation on startup. The AudioManager doesn't exist yet
         // and besides, the volume settings will have survived the reboot.
         try {
@@ -805,6 +821,11 @@ public class ProfileManagerService extends MKSystemService {
     }
 
     private void addNotificationGroupInternal(NotificationGroup group) {
+        addNotificationGroupInternal(group, true);
+    }
+
+    private void addNotificationGroupInternal(NotificationGroup group,
+            boolean updateGroupsByPackage) {
         if (mGroups.put(group.getUuid(), group) == null) {
             // If the above is true, then the ProfileGroup shouldn't exist in
             // the profile. Ensure it is added.
@@ -812,6 +833,21 @@ public class ProfileManagerService extends MKSystemService {
                 ensureGroupInProfile(profile, group, false);
             }
         }
+        if (updateGroupsByPackage) {
+            updateGroupsByPackage();
+        }
         mDirty = true;
     }
+
+    private void updateGroupsByPackage() {
+        Map<String, NotificationGroup> groupsByPackage = new HashMap<String, NotificationGroup>();
+        for (NotificationGroup group : mGroups.values()) {
+            for (String pkg : group.getPackages()) {
+                if (!groupsByPackage.containsKey(pkg)) {
+                    groupsByPackage.put(pkg, group);
+                }
+            }
+        }
+        mGroupsByPackage = groupsByPackage;
+    }
 }
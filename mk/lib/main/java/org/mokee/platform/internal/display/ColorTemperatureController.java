@@ -61,6 +61,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
     private ValueAnimator mAnimator;
 
+    // Reused for each adjustment, the hardware controller copies it
+    private final float[] mTemperatureRGB = new float[3];
+
     private final MKHardwareManager mHardware;
 
     private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS * 1;
@@ -275,8 +278,8 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             return;
         }
 
-        final float[] rgb = ColorUtils.temperatureToRGB(temperature);
-        if (mDisplayHardware.setAdditionalAdjustment(rgb)) {
+        ColorUtils.temperatureToRGB(temperature, mTemperatureRGB);
+        if (mDisplayHardware.setAdditionalAdjustment(mTemperatureRGB)) {
             if (DEBUG) {
                 Slog.d(TAG, "Adjust display temperature to " + temperature + "K");
             }
@@ -38,6 +38,7 @@ import android.util.Log;
 import mokee.providers.MKSettings;
 
 import java.io.File;
+import java.util.Arrays;
 
 /**
  * The MKDatabaseHelper allows creation of a database to store MK specific settings for a user
@@ -171,55 +172,33 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
             }
         }
 
+        // SQLiteOpenHelper runs onUpgrade() in a transaction, so the steps below are nested in
+        // it and reach the disk together.
         if (upgradeVersion < 3) {
-            db.beginTransaction();
-            SQLiteStatement stmt = null;
-            try {
-                stmt = db.compileStatement("INSERT INTO secure(name,value)"
-                        + " VALUES(?,?);");
-                loadStringSetting(stmt, MKSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
-                        R.string.def_protected_component_managers);
-                db.setTransactionSuccessful();
-            } finally {
-                if (stmt != null) stmt.close();
-                db.endTransaction();
-            }
+            DefaultValues secure = new DefaultValues(1);
+            loadStringSetting(secure, MKSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
+                    R.string.def_protected_component_managers);
+            insertDefaults(db, MKTableNames.TABLE_SECURE, secure, false);
             upgradeVersion = 3;
         }
 
         if (upgradeVersion < 4) {
             if (mUserHandle == UserHandle.USER_OWNER) {
-                db.beginTransaction();
-                SQLiteStatement stmt = null;
-                try {
-                    stmt = db.compileStatement("INSERT INTO secure(name,value)"
-                            + " VALUES(?,?);");
-                    final String provisionedFlag = Settings.Global.getString(
-                            mContext.getContentResolver(), Settings.Global.DEVICE_PROVISIONED);
-                    loadSetting(stmt, MKSettings.Secure.MK_SETUP_WIZARD_COMPLETED, provisionedFlag);
-                    db.setTransactionSuccessful();
-                } finally {
-                    if (stmt != null) stmt.close();
-                    db.endTransaction();
-                }
+                DefaultValues secure = new DefaultValues(1);
+                final String provisionedFlag = Settings.Global.getString(
+                        mContext.getContentResolver(), Settings.Global.DEVICE_PROVISIONED);
+                loadSetting(secure, MKSettings.Secure.MK_SETUP_WIZARD_COMPLETED, provisionedFlag);
+                insertDefaults(db, MKTableNames.TABLE_SECURE, secure, false);
             }
             upgradeVersion = 4;
         }
 
         if (upgradeVersion < 5) {
             if (mUserHandle == UserHandle.USER_OWNER) {
-                db.beginTransaction();
-                SQLiteStatement stmt = null;
-                try {
-                    stmt = db.compileStatement("INSERT INTO global(name,value)"
-                            + " VALUES(?,?);");
-                    loadIntegerSetting(stmt, MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                            R.integer.def_temperature_unit);
-                    db.setTransactionSuccessful();
-                } finally {
-                    if (stmt != null) stmt.close();
-                    db.endTransaction();
-                }
+                DefaultValues global = new DefaultValues(1);
+                loadIntegerSetting(global, MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                        R.integer.def_temperature_unit);
+                insertDefaults(db, MKTableNames.TABLE_GLOBAL, global, false);
             }
             upgradeVersion = 5;
         }
@@ -239,22 +218,24 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
             if (mUserHandle == UserHandle.USER_OWNER) {
                 db.beginTransaction();
                 SQLiteStatement stmt = null;
+                SQLiteStatement updateStmt = null;
                 try {
                     stmt = db.compileStatement("SELECT value FROM system WHERE name=?");
                     stmt.bindString(1, MKSettings.System.STATUS_BAR_CLOCK);
                     long value = stmt.simpleQueryForLong();
 
                     if (value != 0) {
-                        stmt = db.compileStatement("UPDATE system SET value=? WHERE name=?");
-                        stmt.bindLong(1, value - 1);
-                        stmt.bindString(2, MKSettings.System.STATUS_BAR_CLOCK);
-                        stmt.execute();
+                        updateStmt = db.compileStatement("UPDATE system SET value=? WHERE name=?");
+                        updateStmt.bindLong(1, value - 1);
+                        updateStmt.bindString(2, MKSettings.System.STATUS_BAR_CLOCK);
+                        updateStmt.execute();
                     }
                     db.setTransactionSuccessful();
                 } catch (SQLiteDoneException ex) {
                     // MKSettings.System.STATUS_BAR_CLOCK is not set
                 } finally {
                     if (stmt != null) stmt.close();
+                    if (updateStmt != null) updateStmt.close();
                     db.endTransaction();
                 }
             }
@@ -345,127 +326,147 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
     }
 
     /**
-     * Loads default values for specific settings into the database.
+     * Loads default values for specific settings into the database. All values are resolved from
+     * resources first and then inserted with one statement per table.
      * @param db The {@link SQLiteDatabase} to insert into.
      */
     private void loadSettings(SQLiteDatabase db) {
-        loadSystemSettings(db);
-        loadSecureSettings(db);
+        final DefaultValues system = getSystemDefaults();
+        final DefaultValues secure = getSecureDefaults();
         // The global table only exists for the 'owner' user
-        if (mUserHandle == UserHandle.USER_OWNER) {
-            loadGlobalSettings(db);
+        final DefaultValues global = mUserHandle == UserHandle.USER_OWNER
+                ? getGlobalDefaults() : null;
+
+        insertDefaults(db, MKTableNames.TABLE_SYSTEM, system, true);
+        insertDefaults(db, MKTableNames.TABLE_SECURE, secure, true);
+        if (global != null) {
+            insertDefaults(db, MKTableNames.TABLE_GLOBAL, global, true);
         }
     }
 
-    private void loadSecureSettings(SQLiteDatabase db) {
+    /**
+     * Inserts resolved default values into a database table, reusing a single statement for
+     * all of them.
+     * @param db The {@link SQLiteDatabase} to insert into.
+     * @param tableName The name of the table to insert into.
+     * @param defaults The values to insert.
+     * @param ignoreExisting Whether to keep the current value of settings that already exist.
+     */
+    private void insertDefaults(SQLiteDatabase db, String tableName, DefaultValues defaults,
+            boolean ignoreExisting) {
+        if (defaults.size() == 0) {
+            return;
+        }
+
         SQLiteStatement stmt = null;
         try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
-                    + " VALUES(?,?);");
-            // Secure
-            loadBooleanSetting(stmt, MKSettings.Secure.ADVANCED_MODE,
-                    R.bool.def_advanced_mode);
+            stmt = db.compileStatement("INSERT " + (ignoreExisting ? "OR IGNORE " : "")
+                    + "INTO " + tableName + "(name,value) VALUES(?,?);");
+            for (int i = 0; i < defaults.size(); i++) {
+                stmt.bindString(1, defaults.nameAt(i));
+                stmt.bindString(2, defaults.valueAt(i));
+                stmt.execute();
+            }
+            if (LOCAL_LOGV) Log.d(TAG, "Loaded " + defaults.size() + " default(s) into " + tableName);
+        } finally {
+            if (stmt != null) stmt.close();
+        }
+    }
 
-            loadIntegerSetting(stmt, MKSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
-                    R.integer.def_force_show_navbar);
+    private DefaultValues getSecureDefaults() {
+        DefaultValues defaults = new DefaultValues(7);
+        // Secure
+        loadBooleanSetting(defaults, MKSettings.Secure.ADVANCED_MODE,
+                R.bool.def_advanced_mode);
 
-            loadStringSetting(stmt, MKSettings.Secure.QS_TILES,
-                    org.mokee.platform.internal.
-                            R.string.config_defaultQuickSettingsTiles);
+        loadIntegerSetting(defaults, MKSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
+                R.integer.def_force_show_navbar);
 
-            loadBooleanSetting(stmt, MKSettings.Secure.QS_USE_MAIN_TILES,
-                    R.bool.def_sysui_qs_main_tiles);
+        loadStringSetting(defaults, MKSettings.Secure.QS_TILES,
+                org.mokee.platform.internal.
+                        R.string.config_defaultQuickSettingsTiles);
 
-            loadBooleanSetting(stmt, MKSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
-                    R.bool.def_lockscreen_visualizer);
+        loadBooleanSetting(defaults, MKSettings.Secure.QS_USE_MAIN_TILES,
+                R.bool.def_sysui_qs_main_tiles);
 
-            loadStringSetting(stmt,
-                    MKSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
-                    R.string.def_protected_component_managers);
+        loadBooleanSetting(defaults, MKSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
+                R.bool.def_lockscreen_visualizer);
 
-            final String provisionedFlag = Settings.Global.getString(mContext.getContentResolver(),
-                    Settings.Global.DEVICE_PROVISIONED);
-            loadSetting(stmt, MKSettings.Secure.MK_SETUP_WIZARD_COMPLETED, provisionedFlag);
-        } finally {
-            if (stmt != null) stmt.close();
-        }
+        loadStringSetting(defaults,
+                MKSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
+                R.string.def_protected_component_managers);
+
+        final String provisionedFlag = Settings.Global.getString(mContext.getContentResolver(),
+                Settings.Global.DEVICE_PROVISIONED);
+        loadSetting(defaults, MKSettings.Secure.MK_SETUP_WIZARD_COMPLETED, provisionedFlag);
+        return defaults;
     }
 
-    private void loadSystemSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
-                    + " VALUES(?,?);");
-            // System
-            loadIntegerSetting(stmt, MKSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
-                    R.integer.def_qs_quick_pulldown);
+    private DefaultValues getSystemDefaults() {
+        DefaultValues defaults = new DefaultValues(10);
+        // System
+        loadIntegerSetting(defaults, MKSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
+                R.integer.def_qs_quick_pulldown);
 
-            loadIntegerSetting(stmt, MKSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_notification_brightness_level);
+        loadIntegerSetting(defaults, MKSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                R.integer.def_notification_brightness_level);
 
-            loadBooleanSetting(stmt, MKSettings.System.SYSTEM_PROFILES_ENABLED,
-                    R.bool.def_profiles_enabled);
+        loadBooleanSetting(defaults, MKSettings.System.SYSTEM_PROFILES_ENABLED,
+                R.bool.def_profiles_enabled);
 
-            loadIntegerSetting(stmt, MKSettings.System.ENABLE_FORWARD_LOOKUP,
-                    R.integer.def_forward_lookup);
+        loadIntegerSetting(defaults, MKSettings.System.ENABLE_FORWARD_LOOKUP,
+                R.integer.def_forward_lookup);
 
-            loadIntegerSetting(stmt, MKSettings.System.ENABLE_PEOPLE_LOOKUP,
-                    R.integer.def_people_lookup);
+        loadIntegerSetting(defaults, MKSettings.System.ENABLE_PEOPLE_LOOKUP,
+                R.integer.def_people_lookup);
 
-            loadIntegerSetting(stmt, MKSettings.System.ENABLE_REVERSE_LOOKUP,
-                    R.integer.def_reverse_lookup);
+        loadIntegerSetting(defaults, MKSettings.System.ENABLE_REVERSE_LOOKUP,
+                R.integer.def_reverse_lookup);
 
-            loadBooleanSetting(stmt, MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
-                    R.bool.def_notification_pulse_custom_enable);
+        loadBooleanSetting(defaults, MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                R.bool.def_notification_pulse_custom_enable);
 
-            loadBooleanSetting(stmt, MKSettings.System.SWAP_VOLUME_KEYS_ON_ROTATION,
-                    R.bool.def_swap_volume_keys_on_rotation);
+        loadBooleanSetting(defaults, MKSettings.System.SWAP_VOLUME_KEYS_ON_ROTATION,
+                R.bool.def_swap_volume_keys_on_rotation);
 
-            loadIntegerSetting(stmt, MKSettings.System.STATUS_BAR_BATTERY_STYLE,
-                    R.integer.def_battery_style);
+        loadIntegerSetting(defaults, MKSettings.System.STATUS_BAR_BATTERY_STYLE,
+                R.integer.def_battery_style);
 
-            if (mContext.getResources().getBoolean(R.bool.def_notification_pulse_custom_enable)) {
-                loadStringSetting(stmt, MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        R.string.def_notification_pulse_custom_value);
-            }
-        } finally {
-            if (stmt != null) stmt.close();
+        if (mContext.getResources().getBoolean(R.bool.def_notification_pulse_custom_enable)) {
+            loadStringSetting(defaults, MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                    R.string.def_notification_pulse_custom_value);
         }
+        return defaults;
     }
 
-    private void loadGlobalSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
-                    + " VALUES(?,?);");
-            // Global
-            loadBooleanSetting(stmt,
-                    MKSettings.Global.POWER_NOTIFICATIONS_ENABLED,
-                    R.bool.def_power_notifications_enabled);
-
-            loadBooleanSetting(stmt,
-                    MKSettings.Global.POWER_NOTIFICATIONS_VIBRATE,
-                    R.bool.def_power_notifications_vibrate);
-
-            loadStringSetting(stmt,
-                    MKSettings.Global.POWER_NOTIFICATIONS_RINGTONE,
-                    R.string.def_power_notifications_ringtone);
-
-            loadIntegerSetting(stmt, MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                    R.integer.def_temperature_unit);
-        } finally {
-            if (stmt != null) stmt.close();
-        }
+    private DefaultValues getGlobalDefaults() {
+        DefaultValues defaults = new DefaultValues(4);
+        // Global
+        loadBooleanSetting(defaults,
+                MKSettings.Global.POWER_NOTIFICATIONS_ENABLED,
+                R.bool.def_power_notifications_enabled);
+
+        loadBooleanSetting(defaults,
+                MKSettings.Global.POWER_NOTIFICATIONS_VIBRATE,
+                R.bool.def_power_notifications_vibrate);
+
+        loadStringSetting(defaults,
+                MKSettings.Global.POWER_NOTIFICATIONS_RINGTONE,
+                R.string.def_power_notifications_ringtone);
+
+        loadIntegerSetting(defaults, MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                R.integer.def_temperature_unit);
+        return defaults;
     }
 
     /**
-     * Loads a region locked string setting into a database table. If the resource for the specific
-     * mcc is not found, the setting is loaded from the default resources.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * Loads a region locked string setting into a set of default values. If the resource for the
+     * specific mcc is not found, the setting is loaded from the default resources.
+     * @param defaults The default values of the table for this setting.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the string resource.
      */
-    private void loadRegionLockedStringSetting(SQLiteStatement stmt, String name, int resId) {
+    private void loadRegionLockedStringSetting(DefaultValues defaults, String name, int resId) {
         String mcc = SystemProperties.get(MCC_PROP_NAME);
         Resources customResources = null;
 
@@ -495,47 +496,87 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
 
         String value = customResources == null ? mContext.getResources().getString(resId)
                 : customResources.getString(resId);
-        loadSetting(stmt, name, value);
+        loadSetting(defaults, name, value);
     }
 
     /**
-     * Loads a string resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * Loads a string resource into a set of default values. If a conflict occurs, that value is
+     * not inserted into the database table.
+     * @param defaults The default values of the table for this setting.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the string resource.
      */
-    private void loadStringSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name, mContext.getResources().getString(resId));
+    private void loadStringSetting(DefaultValues defaults, String name, int resId) {
+        loadSetting(defaults, name, mContext.getResources().getString(resId));
     }
 
     /**
-     * Loads a boolean resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * Loads a boolean resource into a set of default values. If a conflict occurs, that value is
+     * not inserted into the database table.
+     * @param defaults The default values of the table for this setting.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the boolean resource.
      */
-    private void loadBooleanSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
+    private void loadBooleanSetting(DefaultValues defaults, String name, int resId) {
+        loadSetting(defaults, name,
                 mContext.getResources().getBoolean(resId) ? "1" : "0");
     }
 
     /**
-     * Loads an integer resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * Loads an integer resource into a set of default values. If a conflict occurs, that value is
+     * not inserted into the database table.
+     * @param defaults The default values of the table for this setting.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the integer resource.
      */
-    private void loadIntegerSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
+    private void loadIntegerSetting(DefaultValues defaults, String name, int resId) {
+        loadSetting(defaults, name,
                 Integer.toString(mContext.getResources().getInteger(resId)));
     }
 
-    private void loadSetting(SQLiteStatement stmt, String key, Object value) {
-        stmt.bindString(1, key);
-        stmt.bindString(2, value.toString());
-        stmt.execute();
+    private void loadSetting(DefaultValues defaults, String key, Object value) {
+        // A setting without a value is left unset rather than failing the whole load
+        if (value == null) {
+            if (LOCAL_LOGV) Log.d(TAG, "Skipping default for " + key + " because of null value");
+            return;
+        }
+        defaults.add(key, value.toString());
+    }
+
+    /**
+     * The resolved default values of one table, kept in parallel arrays in insertion order.
+     */
+    private static final class DefaultValues {
+        private String[] mNames;
+        private String[] mValues;
+        private int mSize;
+
+        DefaultValues(int capacity) {
+            mNames = new String[capacity];
+            mValues = new String[capacity];
+        }
+
+        void add(String name, String value) {
+            if (mSize == mNames.length) {
+                final int capacity = Math.max(mSize * 2, 4);
+                mNames = Arrays.copyOf(mNames, capacity);
+                mValues = Arrays.copyOf(mValues, capacity);
+            }
+            mNames[mSize] = name;
+            mValues[mSize] = value;
+            mSize++;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        String nameAt(int index) {
+            return mNames[index];
+        }
+
+        String valueAt(int index) {
+            return mValues[index];
+        }
     }
 }
@@ -0,0 +1,478 @@
+/**
+ * Copyright (c) 2017, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The MKSettingsCache keeps an in-memory copy of the tables of a single {@link MKDatabaseHelper}
+ * so that reads can be served without going through SQLite. Each table is loaded from the
+ * database the first time it is read.
+ *
+ * By default every write is applied to the database before it is applied to the in-memory copy
+ * (write-through). If a {@link Handler} is supplied, single row inserts are applied to the
+ * in-memory copy immediately and persisted by that handler after {@link #WRITE_BEHIND_DELAY_MS},
+ * coalescing all rows written in the meantime into one transaction per table (write-behind).
+ * Rows which then fail to persist are dropped from the in-memory copy and reported to the
+ * {@link OnFlushFailedListener}, so the cache never keeps serving a value the database lacks.
+ */
+final class MKSettingsCache {
+    private static final String TAG = "MKSettingsCache";
+    private static final boolean LOCAL_LOGV = false;
+
+    /**
+     * How long pending writes are held back so that bursts of puts share one transaction.
+     */
+    static final long WRITE_BEHIND_DELAY_MS = 200;
+
+    private static final String[] NAME_VALUE_PROJECTION = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE
+    };
+
+    private static final String INSERT_SQL_FORMAT = "INSERT INTO %s(name,value) VALUES(?,?);";
+
+    /**
+     * Notified when rows accepted in write-behind mode could not be persisted.
+     */
+    interface OnFlushFailedListener {
+        /**
+         * Called on the thread that flushed the rows, after the in-memory copy of the table has
+         * been dropped so that it is reloaded from the database on the next read.
+         * @param tableName The name of the table the rows were written to.
+         * @param names The keys of the rows that were not persisted.
+         */
+        void onFlushFailed(String tableName, String[] names);
+    }
+
+    private final MKDatabaseHelper mDbHelper;
+    private final Handler mWriteBehindHandler;
+    private final OnFlushFailedListener mFlushFailedListener;
+
+    // Held while writing to the database so that pending writes are always persisted before,
+    // and never after, any write that bypasses them. Acquire before 'this', never after.
+    private final Object mWriteLock = new Object();
+
+    // Must synchronize on 'this' to access mTables. A table is only present once it has been
+    // loaded; rows with a null value are not stored.
+    private final ArrayMap<String, HashMap<String, String>> mTables =
+            new ArrayMap<String, HashMap<String, String>>();
+
+    // Must synchronize on 'this' to access mPendingWrites. Maps table names to the rows that are
+    // in mTables but not yet in the database; a null value is persisted as a null value.
+    private final ArrayMap<String, ArrayMap<String, String>> mPendingWrites =
+            new ArrayMap<String, ArrayMap<String, String>>();
+
+    // Whether mFlushRunnable is posted. Synchronized on 'this'.
+    private boolean mFlushScheduled;
+
+    // Number of transactions committed by flushes, for debugging and tests.
+    private int mFlushTransactionCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    /**
+     * Creates a write-through instance of {@link MKSettingsCache}
+     * @param dbHelper The database helper backing this cache.
+     */
+    MKSettingsCache(MKDatabaseHelper dbHelper) {
+        this(dbHelper, null, null);
+    }
+
+    /**
+     * Creates an instance of {@link MKSettingsCache}
+     * @param dbHelper The database helper backing this cache.
+     * @param writeBehindHandler The handler to persist inserts on, or null to write them
+     *     through synchronously.
+     * @param flushFailedListener The listener to report rows that failed to persist to, or null.
+     */
+    MKSettingsCache(MKDatabaseHelper dbHelper, Handler writeBehindHandler,
+            OnFlushFailedListener flushFailedListener) {
+        mDbHelper = dbHelper;
+        mWriteBehindHandler = writeBehindHandler;
+        mFlushFailedListener = flushFailedListener;
+    }
+
+    /**
+     * @return The database helper backing this cache.
+     */
+    MKDatabaseHelper getDatabaseHelper() {
+        return mDbHelper;
+    }
+
+    /**
+     * Looks up a single value, loading the table from the database if needed.
+     * @param tableName The name of the table to perform the lookup in.
+     * @param name The key to perform the lookup with.
+     * @return The value for the key, or null if it is not present.
+     */
+    synchronized String getValue(String tableName, String name) {
+        return getTableLocked(tableName).get(name);
+    }
+
+    /**
+     * Looks up several values at once, loading the table from the database if needed.
+     * @param tableName The name of the table to perform the lookup in.
+     * @param names The keys to perform the lookup with.
+     * @return The values for the keys in the same order, null where a key is not present.
+     */
+    synchronized String[] getValues(String tableName, String[] names) {
+        final HashMap<String, String> table = getTableLocked(tableName);
+        final String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = table.get(names[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Copies all values of a table, loading the table from the database if needed.
+     * @param tableName The name of the table to copy.
+     * @return A map of all keys in the table that have a non-null value.
+     */
+    synchronized HashMap<String, String> getAllValues(String tableName) {
+        return new HashMap<String, String>(getTableLocked(tableName));
+    }
+
+    /**
+     * Inserts or replaces a single row. In write-behind mode the database is updated later by
+     * the write-behind handler; if that fails, the row is dropped again and reported to the
+     * {@link OnFlushFailedListener}.
+     * @param tableName The name of the table to insert into.
+     * @param values A set of column_name/value pairs to add to the database.
+     * @return Whether the row was inserted.
+     */
+    boolean insert(String tableName, ContentValues values) {
+        final String name = values.getAsString(Settings.NameValueTable.NAME);
+        final String value = values.getAsString(Settings.NameValueTable.VALUE);
+
+        if (mWriteBehindHandler != null) {
+            final boolean scheduleFlush;
+            synchronized (this) {
+                // Make sure the table is loaded, so reads never fall back to a stale database
+                // while this row is pending.
+                putLocked(getTableLocked(tableName), name, value);
+
+                ArrayMap<String, String> pending = mPendingWrites.get(tableName);
+                if (pending == null) {
+                    pending = new ArrayMap<String, String>();
+                    mPendingWrites.put(tableName, pending);
+                }
+                pending.put(name, value);
+
+                scheduleFlush = !mFlushScheduled;
+                mFlushScheduled = true;
+            }
+            if (scheduleFlush) {
+                mWriteBehindHandler.postDelayed(mFlushRunnable, WRITE_BEHIND_DELAY_MS);
+            }
+            return true;
+        }
+
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            long rowId = db.insert(tableName, null, values);
+            if (rowId < 0) {
+                return false;
+            }
+
+            synchronized (this) {
+                putIfLoadedLocked(tableName, name, value);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Inserts or replaces a set of rows in the database in a single transaction. The in-memory
+     * table is only updated if the whole transaction succeeds.
+     * @param tableName The name of the table to insert into.
+     * @param values An array of sets of column_name/value pairs to add to the database.
+     * @return Number of rows inserted, or 0 if any insertion failed.
+     */
+    int bulkInsert(String tableName, ContentValues[] values) {
+        int numRowsAffected = 0;
+
+        synchronized (mWriteLock) {
+            flushLocked();
+
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    if (value == null) {
+                        continue;
+                    }
+
+                    long rowId = db.insert(tableName, null, value);
+
+                    if (rowId >= 0) {
+                        numRowsAffected++;
+                    } else {
+                        return 0;
+                    }
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            synchronized (this) {
+                for (ContentValues value : values) {
+                    if (value != null) {
+                        putIfLoadedLocked(tableName,
+                                value.getAsString(Settings.NameValueTable.NAME),
+                                value.getAsString(Settings.NameValueTable.VALUE));
+                    }
+                }
+            }
+        }
+
+        return numRowsAffected;
+    }
+
+    /**
+     * Updates rows in the database. Since the selection may match any number of rows, the
+     * in-memory table is dropped and reloaded on the next read.
+     * @return Number of rows updated.
+     */
+    int update(String tableName, ContentValues values, String selection,
+            String[] selectionArgs) {
+        synchronized (mWriteLock) {
+            flushLocked();
+
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+
+            if (numRowsAffected > 0) {
+                synchronized (this) {
+                    mTables.remove(tableName);
+                }
+            }
+
+            return numRowsAffected;
+        }
+    }
+
+    /**
+     * Deletes rows from the database. Since the selection may match any number of rows, the
+     * in-memory table is dropped and reloaded on the next read.
+     * @return Number of rows deleted.
+     */
+    int delete(String tableName, String selection, String[] selectionArgs) {
+        synchronized (mWriteLock) {
+            flushLocked();
+
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            int numRowsAffected = db.delete(tableName, selection, selectionArgs);
+
+            if (numRowsAffected > 0) {
+                synchronized (this) {
+                    mTables.remove(tableName);
+                }
+            }
+
+            return numRowsAffected;
+        }
+    }
+
+    /**
+     * Persists all pending writes. Safe to call at any time; returns immediately if there are
+     * none. Must be called before the database is read directly, e.g. for a query.
+     */
+    void sync() {
+        if (mWriteBehindHandler == null) {
+            return;
+        }
+
+        mWriteBehindHandler.removeCallbacks(mFlushRunnable);
+        synchronized (mWriteLock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * @return The number of transactions committed for pending writes so far.
+     */
+    synchronized int getFlushTransactionCount() {
+        return mFlushTransactionCount;
+    }
+
+    private void flushLocked() {
+        final ArrayMap<String, ArrayMap<String, String>> pendingWrites;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            pendingWrites = new ArrayMap<String, ArrayMap<String, String>>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        for (int i = 0; i < pendingWrites.size(); i++) {
+            final String tableName = pendingWrites.keyAt(i);
+            final ArrayMap<String, String> rows = pendingWrites.valueAt(i);
+
+            boolean persisted = false;
+            SQLiteStatement stmt = null;
+            db.beginTransaction();
+            try {
+                stmt = db.compileStatement(String.format(INSERT_SQL_FORMAT, tableName));
+                for (int j = 0; j < rows.size(); j++) {
+                    bindRow(stmt, rows.keyAt(j), rows.valueAt(j));
+                    stmt.executeInsert();
+                }
+                db.setTransactionSuccessful();
+                persisted = true;
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to persist " + rows.size() + " row(s) to " + tableName, e);
+            } finally {
+                if (stmt != null) stmt.close();
+                db.endTransaction();
+            }
+
+            if (persisted) {
+                synchronized (this) {
+                    mFlushTransactionCount++;
+                }
+                if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + rows.size() + " row(s) persisted");
+            } else {
+                persistRowsSeparately(db, tableName, rows);
+            }
+        }
+    }
+
+    /**
+     * Persists rows one at a time after their shared transaction failed, so that a single bad
+     * row doesn't take the others with it. Rows that still fail are dropped from the in-memory
+     * table and reported to the {@link OnFlushFailedListener}.
+     */
+    private void persistRowsSeparately(SQLiteDatabase db, String tableName,
+            ArrayMap<String, String> rows) {
+        final ArrayList<String> failedNames = new ArrayList<String>();
+        try {
+            final SQLiteStatement stmt =
+                    db.compileStatement(String.format(INSERT_SQL_FORMAT, tableName));
+            try {
+                for (int j = 0; j < rows.size(); j++) {
+                    bindRow(stmt, rows.keyAt(j), rows.valueAt(j));
+                    try {
+                        stmt.executeInsert();
+                    } catch (SQLException e) {
+                        failedNames.add(rows.keyAt(j));
+                    }
+                }
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            // The statement can't even be compiled, none of the rows made it
+            failedNames.addAll(rows.keySet());
+        }
+
+        if (failedNames.isEmpty()) {
+            return;
+        }
+        Log.e(TAG, tableName + ": dropping " + failedNames.size() + " row(s) that could not"
+                + " be persisted: " + failedNames);
+
+        // Reload the table on the next read, picking up anything written since this flush
+        synchronized (this) {
+            mTables.remove(tableName);
+        }
+        if (mFlushFailedListener != null) {
+            mFlushFailedListener.onFlushFailed(tableName,
+                    failedNames.toArray(new String[failedNames.size()]));
+        }
+    }
+
+    private static void bindRow(SQLiteStatement stmt, String name, String value) {
+        stmt.bindString(1, name);
+        if (value == null) {
+            stmt.bindNull(2);
+        } else {
+            stmt.bindString(2, value);
+        }
+    }
+
+    private void putIfLoadedLocked(String tableName, String name, String value) {
+        HashMap<String, String> table = mTables.get(tableName);
+        if (table != null) {
+            putLocked(table, name, value);
+        }
+        // Otherwise the row will be picked up when the table is first read.
+    }
+
+    private static void putLocked(HashMap<String, String> table, String name, String value) {
+        if (value == null) {
+            table.remove(name);
+        } else {
+            table.put(name, value);
+        }
+    }
+
+    private HashMap<String, String> getTableLocked(String tableName) {
+        HashMap<String, String> table = mTables.get(tableName);
+        if (table != null) {
+            return table;
+        }
+
+        table = new HashMap<String, String>();
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(tableName, NAME_VALUE_PROJECTION, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                final String value = cursor.getString(1);
+                if (value != null) {
+                    table.put(cursor.getString(0), value);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Rows written after the table was last dropped are not in the database yet.
+        ArrayMap<String, String> pending = mPendingWrites.get(tableName);
+        if (pending != null) {
+            for (int i = 0; i < pending.size(); i++) {
+                putLocked(table, pending.keyAt(i), pending.valueAt(i));
+            }
+        }
+
+        if (LOCAL_LOGV) Log.d(TAG, "Loaded " + table.size() + " row(s) from " + tableName);
+
+        mTables.put(tableName, table);
+        return table;
+    }
+}
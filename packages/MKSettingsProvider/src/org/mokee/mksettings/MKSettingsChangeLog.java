@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2017, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.os.SystemProperties;
+import android.util.ArraySet;
+import android.util.Log;
+
+/**
+ * The MKSettingsChangeLog owns the settings version system property of one table and remembers
+ * which keys changed in the most recent versions, so that clients can evict only those keys from
+ * their caches instead of dropping everything whenever the version moves.
+ *
+ * Every change increments the version by one and is kept in a ring of {@link #CAPACITY}
+ * entries. Changes to the same table for different users share the version property, so a
+ * client may be told about keys that did not change for its own user; that only costs a cache
+ * miss.
+ */
+final class MKSettingsChangeLog {
+    private static final String TAG = "MKSettingsChangeLog";
+    private static final boolean LOCAL_LOGV = false;
+
+    /**
+     * Number of versions for which the changed keys are remembered.
+     */
+    static final int CAPACITY = 128;
+
+    private final String mVersionProperty;
+
+    // Must synchronize on 'this' to access the fields below. mChangedNames[i] holds the keys of
+    // version mVersion - ((mHead - i + CAPACITY) % CAPACITY), or null if the keys are unknown.
+    private final String[][] mChangedNames = new String[CAPACITY][];
+    private int mHead = CAPACITY - 1;
+    private int mSize = 0;
+    private long mVersion;
+
+    /**
+     * Creates an instance of {@link MKSettingsChangeLog}
+     * @param versionProperty The name of the system property holding the table version.
+     */
+    MKSettingsChangeLog(String versionProperty) {
+        mVersionProperty = versionProperty;
+        // Changes made before we started (e.g. by an earlier instance of the provider) are
+        // unknown, clients older than this version will have to clear their caches.
+        mVersion = SystemProperties.getLong(versionProperty, 0);
+    }
+
+    /**
+     * Records a change and publishes the new version through the system property.
+     * @param names The keys that changed, or null if they are unknown.
+     * @return The new version.
+     */
+    synchronized long recordChange(String[] names) {
+        mHead = (mHead + 1) % CAPACITY;
+        mChangedNames[mHead] = names;
+        if (mSize < CAPACITY) {
+            mSize++;
+        }
+        mVersion++;
+
+        if (LOCAL_LOGV) Log.v(TAG, "property: " + mVersionProperty + "=" + mVersion);
+        SystemProperties.set(mVersionProperty, Long.toString(mVersion));
+
+        return mVersion;
+    }
+
+    /**
+     * @return The current version.
+     */
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the keys that changed after the given version.
+     * @param version The version the caller is up to date with.
+     * @return The changed keys, or null if they can't be told because the version is too old,
+     *     unknown, or some change in between did not record its keys.
+     */
+    synchronized String[] getChangesSince(long version) {
+        if (version > mVersion || version < mVersion - mSize) {
+            return null;
+        }
+
+        final ArraySet<String> names = new ArraySet<String>();
+        final int count = (int) (mVersion - version);
+        for (int i = 0; i < count; i++) {
+            final String[] changed = mChangedNames[(mHead - i + CAPACITY) % CAPACITY];
+            if (changed == null) {
+                return null;
+            }
+            for (String name : changed) {
+                names.add(name);
+            }
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+}
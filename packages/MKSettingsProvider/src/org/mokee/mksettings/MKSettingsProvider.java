@@ -38,11 +38,15 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.SystemProperties;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -56,6 +60,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -74,6 +83,10 @@ public class MKSettingsProvider extends ContentProvider {
     // Each defined user has their own settings
     protected final SparseArray<MKDatabaseHelper> mDbHelpers = new SparseArray<MKDatabaseHelper>();
 
+    // In-memory view of each user's database, used to serve reads without touching SQLite
+    private final SparseArray<MKSettingsCache> mSettingsCaches =
+            new SparseArray<MKSettingsCache>();
+
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
     private static final int GLOBAL = 3;
@@ -105,6 +118,20 @@ public class MKSettingsProvider extends ContentProvider {
     private UserManager mUserManager;
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
+    private Handler mWriteBehindHandler;
+
+    // Upper bound on the number of users whose settings are migrated at the same time
+    private static final int MAX_MIGRATION_THREADS = 4;
+
+    // Serializes migrations of each user, users are migrated concurrently
+    private final SparseArray<Object> mMigrationLocks = new SparseArray<Object>();
+
+    // Serializes migrations of the global table, which all users share
+    private final Object mGlobalMigrationLock = new Object();
+
+    // Settings version and recently changed keys of each table, shared by all users
+    private final ArrayMap<String, MKSettingsChangeLog> mChangeLogs =
+            new ArrayMap<String, MKSettingsChangeLog>();
 
     @Override
     public boolean onCreate() {
@@ -112,6 +139,22 @@ public class MKSettingsProvider extends ContentProvider {
 
         mUserManager = UserManager.get(getContext());
 
+        // Write-behind trades the durability of acknowledged puts for fewer transactions, so
+        // it is only used where the device configuration opts in
+        if (getContext().getResources().getBoolean(R.bool.config_writeBehindSettings)) {
+            HandlerThread writerThread = new HandlerThread(TAG + "Writer",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            writerThread.start();
+            mWriteBehindHandler = new Handler(writerThread.getLooper());
+        }
+
+        mChangeLogs.put(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM,
+                new MKSettingsChangeLog(MKSettings.System.SYS_PROP_MK_SETTING_VERSION));
+        mChangeLogs.put(MKDatabaseHelper.MKTableNames.TABLE_SECURE,
+                new MKSettingsChangeLog(MKSettings.Secure.SYS_PROP_MK_SETTING_VERSION));
+        mChangeLogs.put(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL,
+                new MKSettingsChangeLog(MKSettings.Global.SYS_PROP_MK_SETTING_VERSION));
+
         establishDbTracking(UserHandle.USER_OWNER);
 
         mUriBuilder = new Uri.Builder();
@@ -122,6 +165,7 @@ public class MKSettingsProvider extends ContentProvider {
 
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -133,6 +177,8 @@ public class MKSettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                    syncAllUsers();
                 }
             }
         }, userFilter);
@@ -143,54 +189,130 @@ public class MKSettingsProvider extends ContentProvider {
     // region Migration Methods
 
     /**
-     * Migrates MK settings for all existing users if this has not been run before.
+     * Migrates MK settings for all existing users if this has not been run before. The global
+     * table is shared by all users, so it is migrated once up front. The system and secure
+     * tables are per user, so users are then migrated concurrently.
      */
     private void migrateMKSettingsForExistingUsersIfNeeded() {
         boolean hasMigratedMKSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_MK_SETTINGS,
                 false);
 
         if (!hasMigratedMKSettings) {
-            long startTime = System.currentTimeMillis();
+            long startTime = SystemClock.elapsedRealtime();
 
-            for (UserInfo user : mUserManager.getUsers()) {
-                migrateMKSettingsForUser(user.id);
+            final List<UserInfo> users = mUserManager.getUsers();
+            if (users.size() == 1) {
+                migrateMKSettingsForUser(users.get(0).id);
+            } else {
+                migrateMKSettingsForGlobal();
+
+                final ExecutorService executor = Executors.newFixedThreadPool(
+                        Math.min(users.size(), MAX_MIGRATION_THREADS));
+                final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(users.size());
+                for (final UserInfo user : users) {
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            migrateMKSettingsForUserTables(user.id);
+                            return null;
+                        }
+                    });
+                }
+                try {
+                    for (Future<Void> result : executor.invokeAll(tasks)) {
+                        result.get();
+                    }
+                } catch (InterruptedException e) {
+                    // Try again next time rather than marking the migration as done
+                    Log.w(TAG, "Interrupted while migrating MK settings");
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Failed to migrate MK settings", e.getCause());
+                } finally {
+                    executor.shutdown();
+                }
             }
 
             mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_MK_SETTINGS, true).commit();
 
             // TODO: Add this as part of a boot message to the UI
-            long timeDiffMillis = System.currentTimeMillis() - startTime;
-            if (LOCAL_LOGV) Log.d(TAG, "Migration finished in " + timeDiffMillis + " milliseconds");
+            long timeDiffMillis = SystemClock.elapsedRealtime() - startTime;
+            Log.i(TAG, "Migration of " + users.size() + " user(s) finished in "
+                    + timeDiffMillis + " milliseconds");
         }
     }
 
     /**
-     * Migrates MK settings for a specific user.
+     * Migrates MK settings for a specific user, including the global settings.
      * @param userId The id of the user to run MK settings migration for.
      */
     private void migrateMKSettingsForUser(int userId) {
-        synchronized (this) {
+        migrateMKSettingsForUserTables(userId);
+        migrateMKSettingsForGlobal();
+    }
+
+    /**
+     * Migrates the MK system and secure settings of a specific user.
+     * @param userId The id of the user to run MK settings migration for.
+     */
+    private void migrateMKSettingsForUserTables(int userId) {
+        synchronized (getMigrationLock(userId)) {
             if (LOCAL_LOGV) Log.d(TAG, "MK settings will be migrated for user id: " + userId);
+            final long startTime = SystemClock.elapsedRealtime();
 
             // Migrate system settings
             int rowsMigrated = migrateMKSettingsForTable(userId,
                     MKDatabaseHelper.MKTableNames.TABLE_SYSTEM, MKSettings.System.LEGACY_SYSTEM_SETTINGS);
+            final long systemTime = SystemClock.elapsedRealtime();
             if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK system table");
 
             // Migrate secure settings
             rowsMigrated = migrateMKSettingsForTable(userId,
                     MKDatabaseHelper.MKTableNames.TABLE_SECURE, MKSettings.Secure.LEGACY_SECURE_SETTINGS);
+            final long secureTime = SystemClock.elapsedRealtime();
             if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK secure table");
 
-            // Migrate global settings
-            rowsMigrated = migrateMKSettingsForTable(userId,
+            Log.i(TAG, "Migrated MK settings for user " + userId + " in "
+                    + (secureTime - startTime) + " ms (system: " + (systemTime - startTime)
+                    + " ms, secure: " + (secureTime - systemTime) + " ms)");
+        }
+    }
+
+    /**
+     * Migrates the MK global settings. These are stored for the owner and shared by all users.
+     */
+    private void migrateMKSettingsForGlobal() {
+        synchronized (mGlobalMigrationLock) {
+            final long startTime = SystemClock.elapsedRealtime();
+
+            int rowsMigrated = migrateMKSettingsForTable(UserHandle.USER_OWNER,
                     MKDatabaseHelper.MKTableNames.TABLE_GLOBAL, MKSettings.Global.LEGACY_GLOBAL_SETTINGS);
             if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK global table");
+
+            Log.i(TAG, "Migrated MK global settings in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+    }
+
+    /**
+     * Returns the lock that serializes migrations of a specific user.
+     * @param userId The id of the user.
+     */
+    private Object getMigrationLock(int userId) {
+        synchronized (mMigrationLocks) {
+            Object lock = mMigrationLocks.get(userId);
+            if (lock == null) {
+                lock = new Object();
+                mMigrationLocks.put(userId, lock);
+            }
+            return lock;
         }
     }
 
     /**
-     * Migrates MK settings for a specific table and user id.
+     * Migrates MK settings for a specific table and user id. All rows are written in a single
+     * transaction.
      * @param userId The id of the user to run MK settings migration for.
      * @param tableName The name of the table to run MK settings migration on.
      * @param settings An array of keys to migrate from {@link Settings} to {@link MKSettings}
@@ -199,19 +321,14 @@ public class MKSettingsProvider extends ContentProvider {
     private int migrateMKSettingsForTable(int userId, String tableName, String[] settings) {
         ContentResolver contentResolver = getContext().getContentResolver();
         ContentValues[] contentValues = new ContentValues[settings.length];
+        String[] settingsValues = readLegacySettings(contentResolver, userId, tableName, settings);
 
         int migrateSettingsCount = 0;
-        for (String settingsKey : settings) {
-            String settingsValue = null;
-
-            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
-                settingsValue = Settings.System.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-            else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
-                settingsValue = Settings.Secure.getStringForUser(contentResolver, settingsKey,
-                        userId);
+        for (int i = 0; i < settings.length; i++) {
+            final String settingsKey = settings[i];
+            String settingsValue = settingsValues[i];
 
+            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
                 // insert dnd, edit tiles for upgrade from mkl-mr1 -> mkm
                 if (MKSettings.Secure.QS_TILES.equals(settingsKey) && (settingsValue != null
                         && (!settingsValue.contains(QSConstants.TILE_DND)
@@ -247,10 +364,6 @@ public class MKSettingsProvider extends ContentProvider {
                     settingsValue = TextUtils.join(",", tiles);
                 }
             }
-            else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
-                settingsValue = Settings.Global.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
 
             if (LOCAL_LOGV) Log.d(TAG, "Table: " + tableName + ", Key: " + settingsKey + ", Value: "
                     + settingsValue);
@@ -270,7 +383,7 @@ public class MKSettingsProvider extends ContentProvider {
         }
 
         int rowsInserted = 0;
-        if (contentValues.length > 0) {
+        if (migrateSettingsCount > 0) {
             Uri uri = mUriBuilder.build();
             uri = uri.buildUpon().appendPath(tableName).build();
             rowsInserted = bulkInsertForUser(userId, uri, contentValues);
@@ -279,6 +392,75 @@ public class MKSettingsProvider extends ContentProvider {
         return rowsInserted;
     }
 
+    /**
+     * Reads the legacy values of the given keys from {@link Settings}. When the table can be
+     * queried for the user, all values are read with a single query rather than a call per key.
+     * The legacy keys are not in any of the framework's moved-key sets, so reading the table
+     * directly returns the same values as the {@link Settings} getters.
+     * @param contentResolver The content resolver to read with.
+     * @param userId The id of the user to read the values of.
+     * @param tableName The name of the MK table the keys belong to.
+     * @param settings The keys to read.
+     * @return The values in the same order as the keys, null for keys that are not set.
+     */
+    private String[] readLegacySettings(ContentResolver contentResolver, int userId,
+            String tableName, String[] settings) {
+        final String[] values = new String[settings.length];
+
+        Uri legacyUri = null;
+        if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
+            legacyUri = Settings.Global.CONTENT_URI;
+        } else if (userId == UserHandle.myUserId()) {
+            // Queries are answered for the calling user only
+            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+                legacyUri = Settings.System.CONTENT_URI;
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+                legacyUri = Settings.Secure.CONTENT_URI;
+            }
+        }
+
+        if (legacyUri != null) {
+            Cursor c = null;
+            try {
+                c = contentResolver.query(legacyUri, new String[] {
+                        Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                        null, null, null);
+                if (c != null) {
+                    final ArrayMap<String, Integer> indices =
+                            new ArrayMap<String, Integer>(settings.length);
+                    for (int i = 0; i < settings.length; i++) {
+                        indices.put(settings[i], i);
+                    }
+                    while (c.moveToNext()) {
+                        final Integer index = indices.get(c.getString(0));
+                        if (index != null) {
+                            values[index] = c.getString(1);
+                        }
+                    }
+                    return values;
+                }
+            } catch (SQLiteException | IllegalArgumentException e) {
+                Log.w(TAG, "Can't query " + legacyUri + ", reading keys one by one", e);
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+
+        for (int i = 0; i < settings.length; i++) {
+            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+                values[i] = Settings.System.getStringForUser(contentResolver, settings[i],
+                        userId);
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+                values[i] = Settings.Secure.getStringForUser(contentResolver, settings[i],
+                        userId);
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
+                values[i] = Settings.Global.getStringForUser(contentResolver, settings[i],
+                        userId);
+            }
+        }
+        return values;
+    }
+
     private List<String> delimitedStringToList(String s, String delimiter) {
         List<String> list = new ArrayList<String>();
         if (!TextUtils.isEmpty(s)) {
@@ -298,16 +480,41 @@ public class MKSettingsProvider extends ContentProvider {
      * @param userId The id of the user that is removed.
      */
     private void onUserRemoved(int userId) {
+        MKSettingsCache cache;
+        synchronized (this) {
+            cache = mSettingsCaches.get(userId);
+        }
+        if (cache != null) {
+            // Don't leave pending writes for the handler to persist after we let go of the db
+            cache.sync();
+        }
+
         synchronized (this) {
             // the db file itself will be deleted automatically, but we need to tear down
             // our helpers and other internal bookkeeping.
 
             mDbHelpers.delete(userId);
+            mSettingsCaches.delete(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
     }
 
+    /**
+     * Persists pending writes for all users.
+     */
+    private void syncAllUsers() {
+        final List<MKSettingsCache> caches = new ArrayList<MKSettingsCache>();
+        synchronized (this) {
+            for (int i = 0; i < mSettingsCaches.size(); i++) {
+                caches.add(mSettingsCaches.valueAt(i));
+            }
+        }
+        for (MKSettingsCache cache : caches) {
+            cache.sync();
+        }
+    }
+
     // endregion Migration Methods
 
     // region Content Provider Methods
@@ -351,6 +558,12 @@ public class MKSettingsProvider extends ContentProvider {
         } else if (MKSettings.CALL_METHOD_MIGRATE_SETTINGS_FOR_USER.equals(method)) {
             migrateMKSettingsForUser(callingUserId);
 
+            return null;
+        } else if (MKSettings.CALL_METHOD_SYNC_SETTINGS.equals(method)) {
+            // Flushing every user's database is only for callers which may write settings
+            enforceWritePermission(mokee.platform.Manifest.permission.WRITE_SETTINGS);
+            syncAllUsers();
+
             return null;
         }
 
@@ -365,6 +578,40 @@ public class MKSettingsProvider extends ContentProvider {
             return lookupSingleValue(callingUserId, MKSettings.Global.CONTENT_URI, request);
         }
 
+        // Batch get methods - names are in the args bundle under CALL_METHOD_NAMES_KEY
+        if (MKSettings.CALL_METHOD_GET_SYSTEM_BATCH.equals(method)) {
+            return lookupValues(callingUserId, MKSettings.System.CONTENT_URI, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_SECURE_BATCH.equals(method)) {
+            return lookupValues(callingUserId, MKSettings.Secure.CONTENT_URI, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_GLOBAL_BATCH.equals(method)) {
+            return lookupValues(callingUserId, MKSettings.Global.CONTENT_URI, args);
+        }
+
+        // Change log methods - the version to list changes since is in the args bundle under
+        // CALL_METHOD_GENERATION_KEY
+        if (MKSettings.CALL_METHOD_GET_SYSTEM_CHANGES.equals(method)) {
+            return lookupChanges(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_SECURE_CHANGES.equals(method)) {
+            return lookupChanges(MKDatabaseHelper.MKTableNames.TABLE_SECURE, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_GLOBAL_CHANGES.equals(method)) {
+            return lookupChanges(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL, args);
+        }
+
+        // Whole table get methods
+        if (MKSettings.CALL_METHOD_GET_SYSTEM_ALL.equals(method)) {
+            return lookupAllValues(callingUserId, MKSettings.System.CONTENT_URI);
+        }
+        else if (MKSettings.CALL_METHOD_GET_SECURE_ALL.equals(method)) {
+            return lookupAllValues(callingUserId, MKSettings.Secure.CONTENT_URI);
+        }
+        else if (MKSettings.CALL_METHOD_GET_GLOBAL_ALL.equals(method)) {
+            return lookupAllValues(callingUserId, MKSettings.Global.CONTENT_URI);
+        }
+
         // Put methods - new value is in the args bundle under the key named by
         // the Settings.NameValueTable.VALUE static.
         final String newValue = (args == null)
@@ -372,12 +619,29 @@ public class MKSettingsProvider extends ContentProvider {
 
         // Framework can't do automatic permission checking for calls, so we need
         // to do it here.
-        if (MKSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
+        if (MKSettings.CALL_METHOD_PUT_SYSTEM.equals(method)
+                || MKSettings.CALL_METHOD_PUT_SYSTEM_BATCH.equals(method)) {
             enforceWritePermission(mokee.platform.Manifest.permission.WRITE_SETTINGS);
         } else {
             enforceWritePermission(mokee.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
         }
 
+        // Batch put methods - names and values are in the args bundle under
+        // CALL_METHOD_NAMES_KEY and CALL_METHOD_VALUES_KEY, the number of values applied is
+        // returned under CALL_METHOD_COUNT_KEY
+        if (MKSettings.CALL_METHOD_PUT_SYSTEM_BATCH.equals(method)) {
+            return countResult(
+                    insertValuesForUser(callingUserId, MKSettings.System.CONTENT_URI, args));
+        }
+        else if (MKSettings.CALL_METHOD_PUT_SECURE_BATCH.equals(method)) {
+            return countResult(
+                    insertValuesForUser(callingUserId, MKSettings.Secure.CONTENT_URI, args));
+        }
+        else if (MKSettings.CALL_METHOD_PUT_GLOBAL_BATCH.equals(method)) {
+            return countResult(
+                    insertValuesForUser(callingUserId, MKSettings.Global.CONTENT_URI, args));
+        }
+
         // Put methods
         final ContentValues values = new ContentValues();
         values.put(Settings.NameValueTable.NAME, request);
@@ -413,27 +677,94 @@ public class MKSettingsProvider extends ContentProvider {
      * @return A single value stored in a {@link Bundle}.
      */
     private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
+        String tableName = getTableNameFromUri(uri);
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName, userId));
+
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
-
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
+            String value = cache.getValue(tableName, key);
+            return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
+                    value);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+    }
+
+    /**
+     * Looks up several values for a specific user, uri, and set of keys.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call arguments holding the keys under
+     *     {@link MKSettings#CALL_METHOD_NAMES_KEY}.
+     * @return A {@link Bundle} mapping each key to its value, which may be null.
+     */
+    private Bundle lookupValues(int userId, Uri uri, Bundle args) {
+        final String[] names = (args == null)
+                ? null : args.getStringArray(MKSettings.CALL_METHOD_NAMES_KEY);
+        if (names == null) {
+            throw new IllegalArgumentException("Names cannot be null");
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName, userId));
+
+        try {
+            final String[] values = cache.getValues(tableName, names);
+            final Bundle result = new Bundle();
+            for (int i = 0; i < names.length; i++) {
+                result.putString(names[i], values[i]);
             }
+            return result;
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+    }
+
+    /**
+     * Looks up all values of a table for a specific user.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @return A {@link Bundle} mapping each key in the table to its value.
+     */
+    private Bundle lookupAllValues(int userId, Uri uri) {
+        String tableName = getTableNameFromUri(uri);
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName, userId));
+
+        try {
+            final Bundle result = new Bundle();
+            for (Map.Entry<String, String> entry : cache.getAllValues(tableName).entrySet()) {
+                result.putString(entry.getKey(), entry.getValue());
             }
+            return result;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
         }
+    }
 
-        return NULL_SETTING;
+    /**
+     * Looks up the keys of a table that changed since a settings version.
+     * @param tableName The name of the table to look up changes for.
+     * @param args The call arguments holding the version under
+     *     {@link MKSettings#CALL_METHOD_GENERATION_KEY}.
+     * @return A {@link Bundle} holding the current version and, if they are known, the changed
+     *     keys under {@link MKSettings#CALL_METHOD_NAMES_KEY}.
+     */
+    private Bundle lookupChanges(String tableName, Bundle args) {
+        final MKSettingsChangeLog changeLog = mChangeLogs.get(tableName);
+        final long version = (args == null)
+                ? -1 : args.getLong(MKSettings.CALL_METHOD_GENERATION_KEY, -1);
+
+        final Bundle result = new Bundle();
+        // Read the version first: the keys may then include later changes, which is harmless,
+        // but never miss any change up to the version we report.
+        result.putLong(MKSettings.CALL_METHOD_GENERATION_KEY, changeLog.getVersion());
+        final String[] names = changeLog.getChangesSince(version);
+        if (names != null) {
+            result.putStringArray(MKSettings.CALL_METHOD_NAMES_KEY, names);
+        }
+        return result;
     }
 
     @Override
@@ -463,8 +794,11 @@ public class MKSettingsProvider extends ContentProvider {
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
 
-        MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName, userId));
+        // Queries go straight to the db, so it has to contain any pending writes
+        cache.sync();
+
+        SQLiteDatabase db = cache.getDatabaseHelper().getReadableDatabase();
 
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(tableName);
@@ -516,37 +850,21 @@ public class MKSettingsProvider extends ContentProvider {
             throw new IllegalArgumentException("ContentValues cannot be null");
         }
 
-        int numRowsAffected = 0;
-
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName, userId));
+        int numRowsAffected = cache.bulkInsert(tableName, values);
 
-        db.beginTransaction();
-        try {
+        if (numRowsAffected > 0) {
+            final String[] names = new String[numRowsAffected];
+            int i = 0;
             for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
-                }
-
-                long rowId = db.insert(tableName, null, value);
-
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
+                if (value != null) {
+                    names[i++] = value.getAsString(Settings.NameValueTable.NAME);
                 }
             }
-
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
-        }
-
-        if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            notifyChange(new Uri[] { uri }, names, tableName, userId);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -578,7 +896,7 @@ public class MKSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName, userId));
 
         // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
@@ -589,20 +907,77 @@ public class MKSettingsProvider extends ContentProvider {
             validateSecureSettingValue(name, value);
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
-
         Uri returnUri = null;
-        if (rowId > -1) {
+        if (cache.insert(tableName, values)) {
             returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
+            notifyChange(new Uri[] { returnUri }, new String[] { name }, tableName, userId);
+            if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
         }
 
         return returnUri;
     }
 
+    /**
+     * @return A {@link Bundle} holding the number of values a batch put applied under
+     *     {@link MKSettings#CALL_METHOD_COUNT_KEY}.
+     */
+    private static Bundle countResult(int count) {
+        final Bundle result = new Bundle();
+        result.putInt(MKSettings.CALL_METHOD_COUNT_KEY, count);
+        return result;
+    }
+
+    /**
+     * Performs a validated insert of several name/value pairs for a specific user. All values
+     * are validated before any of them is written.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table to insert into.
+     * @param args The call arguments holding the keys under
+     *     {@link MKSettings#CALL_METHOD_NAMES_KEY} and the values under
+     *     {@link MKSettings#CALL_METHOD_VALUES_KEY}.
+     * @return Number of rows inserted.
+     */
+    private int insertValuesForUser(int userId, Uri uri, Bundle args) {
+        final String[] names = (args == null)
+                ? null : args.getStringArray(MKSettings.CALL_METHOD_NAMES_KEY);
+        final String[] values = (args == null)
+                ? null : args.getStringArray(MKSettings.CALL_METHOD_VALUES_KEY);
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Names and values must be set and match");
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
+
+        for (int i = 0; i < names.length; i++) {
+            if (MKDatabaseHelper.MKTableNames.TABLE_SYSTEM.equals(tableName)) {
+                validateSystemSettingNameValue(names[i], values[i]);
+            } else if (MKDatabaseHelper.MKTableNames.TABLE_SECURE.equals(tableName)) {
+                validateSecureSettingValue(names[i], values[i]);
+            }
+        }
+
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName, userId));
+
+        final List<Uri> changedUris = new ArrayList<Uri>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            final ContentValues contentValues = new ContentValues();
+            contentValues.put(Settings.NameValueTable.NAME, names[i]);
+            contentValues.put(Settings.NameValueTable.VALUE, values[i]);
+            if (cache.insert(tableName, contentValues)) {
+                changedUris.add(Uri.withAppendedPath(uri, names[i]));
+            }
+        }
+
+        if (!changedUris.isEmpty()) {
+            notifyChange(changedUris.toArray(new Uri[changedUris.size()]), names, tableName,
+                    userId);
+            if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + changedUris.size() + " row(s) put");
+        }
+
+        return changedUris.size();
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         if (uri == null) {
@@ -618,11 +993,10 @@ public class MKSettingsProvider extends ContentProvider {
             checkWritePermissions(tableName);
 
             int callingUserId = UserHandle.getCallingUserId();
-            MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
+            MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName,
                     callingUserId));
 
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            numRowsAffected = cache.delete(tableName, selection, selectionArgs);
 
             if (numRowsAffected > 0) {
                 notifyChange(uri, tableName, callingUserId);
@@ -661,11 +1035,10 @@ public class MKSettingsProvider extends ContentProvider {
         }
 
         int callingUserId = UserHandle.getCallingUserId();
-        MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
+        MKSettingsCache cache = getOrEstablishCache(getUserIdForTable(tableName,
                 callingUserId));
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        int numRowsAffected = cache.update(tableName, values, selection, selectionArgs);
 
         if (numRowsAffected > 0) {
             notifyChange(uri, tableName, callingUserId);
@@ -710,6 +1083,26 @@ public class MKSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Tries to get a {@link MKSettingsCache} for the specified user and if it does not exist, the
+     * database for the specified user is established first.
+     * @param callingUser
+     * @return
+     */
+    private MKSettingsCache getOrEstablishCache(int callingUser) {
+        MKSettingsCache cache;
+        synchronized (this) {
+            cache = mSettingsCaches.get(callingUser);
+        }
+        if (null == cache) {
+            getOrEstablishDatabase(callingUser);
+            synchronized (this) {
+                cache = mSettingsCaches.get(callingUser);
+            }
+        }
+        return cache;
+    }
+
     /**
      * Check if a {@link MKDatabaseHelper} exists for a user and if it doesn't, a new helper is
      * created and added to the list of tracked database helpers
@@ -729,6 +1122,8 @@ public class MKSettingsProvider extends ContentProvider {
                 }
                 dbHelper = new MKDatabaseHelper(getContext(), userId);
                 mDbHelpers.append(userId, dbHelper);
+                mSettingsCaches.append(userId, new MKSettingsCache(dbHelper,
+                        mWriteBehindHandler, new FlushFailedNotifier(userId)));
             }
         }
 
@@ -822,6 +1217,32 @@ public class MKSettingsProvider extends ContentProvider {
                 UserHandle.USER_OWNER : userId;
     }
 
+    /**
+     * Lets clients know that values they were told about were rolled back because the cache
+     * could not persist them, so that they don't keep serving them from their own caches.
+     */
+    private final class FlushFailedNotifier implements MKSettingsCache.OnFlushFailedListener {
+        private final int mUserId;
+
+        FlushFailedNotifier(int userId) {
+            mUserId = userId;
+        }
+
+        @Override
+        public void onFlushFailed(String tableName, String[] names) {
+            final Uri tableUri = new Uri.Builder()
+                    .scheme(ContentResolver.SCHEME_CONTENT)
+                    .authority(MKSettings.AUTHORITY)
+                    .appendPath(tableName)
+                    .build();
+            final Uri[] uris = new Uri[names.length];
+            for (int i = 0; i < names.length; i++) {
+                uris[i] = Uri.withAppendedPath(tableUri, names[i]);
+            }
+            notifyChange(uris, names, tableName, mUserId);
+        }
+    }
+
     /**
      * Modify setting version for an updated table before notifying of change. The
      * {@link MKSettings} class uses these to provide client-side caches.
@@ -829,30 +1250,35 @@ public class MKSettingsProvider extends ContentProvider {
      * @param userId
      */
     private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+        notifyChange(new Uri[] { uri }, null, tableName, userId);
+    }
+
+    /**
+     * Modify setting version for an updated table once before notifying of change for each
+     * of the given uris. The changed keys are recorded with the new version, so that client-side
+     * caches only need to evict those.
+     * @param uris to send notifications for
+     * @param changedNames the keys that changed, or null if they are unknown
+     * @param userId
+     */
+    private void notifyChange(Uri[] uris, String[] changedNames, String tableName, int userId) {
         final boolean isGlobal = tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL);
-        if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
-            property = MKSettings.System.SYS_PROP_MK_SETTING_VERSION;
-        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
-            property = MKSettings.Secure.SYS_PROP_MK_SETTING_VERSION;
-        } else if (isGlobal) {
-            property = MKSettings.Global.SYS_PROP_MK_SETTING_VERSION;
-        }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+        final MKSettingsChangeLog changeLog = mChangeLogs.get(tableName);
+        if (changeLog != null) {
+            changeLog.recordChange(changedNames);
         }
 
         final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
         final long oldId = Binder.clearCallingIdentity();
         try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
+            for (Uri uri : uris) {
+                getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
+                if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+            }
         } finally {
             Binder.restoreCallingIdentity(oldId);
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
     private void validateSystemSettingNameValue(String name, String value) {
@@ -877,6 +1303,4 @@ public class MKSettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2017, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import mokee.providers.MKSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the defaults inserted in bulk on creation are exactly the rows the per-row
+ * loading of each setting used to insert.
+ */
+public class MKDatabaseHelperTest extends AndroidTestCase {
+    private static final String[] TABLES = new String[] {
+            MKDatabaseHelper.MKTableNames.TABLE_SYSTEM,
+            MKDatabaseHelper.MKTableNames.TABLE_SECURE,
+            MKDatabaseHelper.MKTableNames.TABLE_GLOBAL
+    };
+
+    private MKDatabaseHelper mDbHelper;
+    private SQLiteDatabase mReferenceDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(MKDatabaseHelper.dbNameForUser(UserHandle.USER_OWNER));
+        mDbHelper = new MKDatabaseHelper(getContext(), UserHandle.USER_OWNER);
+        mReferenceDb = SQLiteDatabase.create(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mReferenceDb.close();
+        mDbHelper.close();
+        getContext().deleteDatabase(MKDatabaseHelper.dbNameForUser(UserHandle.USER_OWNER));
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testBulkDefaultsMatchPerRowDefaults() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // The same tables, so that conflicts are resolved the same way
+        for (String table : TABLES) {
+            final Cursor c = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='table'"
+                    + " AND name=?", new String[] { table });
+            try {
+                assertTrue(table, c.moveToFirst());
+                mReferenceDb.execSQL(c.getString(0));
+            } finally {
+                c.close();
+            }
+        }
+        loadSystemSettings(mReferenceDb);
+        loadSecureSettings(mReferenceDb);
+        loadGlobalSettings(mReferenceDb);
+
+        for (String table : TABLES) {
+            final List<String> expected = getRows(mReferenceDb, table);
+            final List<String> actual = getRows(db, table);
+            assertFalse(table, expected.isEmpty());
+            assertEquals(table + " row count", expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(table + " row " + i, expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    private static List<String> getRows(SQLiteDatabase db, String table) {
+        final List<String> rows = new ArrayList<String>();
+        final Cursor c = db.query(table, new String[] { "_id", "name", "value" },
+                null, null, null, null, "_id");
+        try {
+            while (c.moveToNext()) {
+                rows.add(c.getLong(0) + ": " + c.getString(1) + "=" + c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    // The defaults as they were loaded before they were resolved up front and inserted in bulk,
+    // executing the statement once for each setting as it is read from the resources
+
+    private void loadSecureSettings(SQLiteDatabase db) {
+        SQLiteStatement stmt = null;
+        try {
+            stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
+                    + " VALUES(?,?);");
+            // Secure
+            loadBooleanSetting(stmt, MKSettings.Secure.ADVANCED_MODE,
+                    R.bool.def_advanced_mode);
+
+            loadIntegerSetting(stmt, MKSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
+                    R.integer.def_force_show_navbar);
+
+            loadStringSetting(stmt, MKSettings.Secure.QS_TILES,
+                    org.mokee.platform.internal.
+                            R.string.config_defaultQuickSettingsTiles);
+
+            loadBooleanSetting(stmt, MKSettings.Secure.QS_USE_MAIN_TILES,
+                    R.bool.def_sysui_qs_main_tiles);
+
+            loadBooleanSetting(stmt, MKSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
+                    R.bool.def_lockscreen_visualizer);
+
+            loadStringSetting(stmt,
+                    MKSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
+                    R.string.def_protected_component_managers);
+
+            final String provisionedFlag = Settings.Global.getString(
+                    getContext().getContentResolver(), Settings.Global.DEVICE_PROVISIONED);
+            loadSetting(stmt, MKSettings.Secure.MK_SETUP_WIZARD_COMPLETED, provisionedFlag);
+        } finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+
+    private void loadSystemSettings(SQLiteDatabase db) {
+        SQLiteStatement stmt = null;
+        try {
+            stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
+                    + " VALUES(?,?);");
+            // System
+            loadIntegerSetting(stmt, MKSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
+                    R.integer.def_qs_quick_pulldown);
+
+            loadIntegerSetting(stmt, MKSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                    R.integer.def_notification_brightness_level);
+
+            loadBooleanSetting(stmt, MKSettings.System.SYSTEM_PROFILES_ENABLED,
+                    R.bool.def_profiles_enabled);
+
+            loadIntegerSetting(stmt, MKSettings.System.ENABLE_FORWARD_LOOKUP,
+                    R.integer.def_forward_lookup);
+
+            loadIntegerSetting(stmt, MKSettings.System.ENABLE_PEOPLE_LOOKUP,
+                    R.integer.def_people_lookup);
+
+            loadIntegerSetting(stmt, MKSettings.System.ENABLE_REVERSE_LOOKUP,
+                    R.integer.def_reverse_lookup);
+
+            loadBooleanSetting(stmt, MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                    R.bool.def_notification_pulse_custom_enable);
+
+            loadBooleanSetting(stmt, MKSettings.System.SWAP_VOLUME_KEYS_ON_ROTATION,
+                    R.bool.def_swap_volume_keys_on_rotation);
+
+            loadIntegerSetting(stmt, MKSettings.System.STATUS_BAR_BATTERY_STYLE,
+                    R.integer.def_battery_style);
+
+            if (getContext().getResources().getBoolean(
+                    R.bool.def_notification_pulse_custom_enable)) {
+                loadStringSetting(stmt, MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                        R.string.def_notification_pulse_custom_value);
+            }
+        } finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+
+    private void loadGlobalSettings(SQLiteDatabase db) {
+        SQLiteStatement stmt = null;
+        try {
+            stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
+                    + " VALUES(?,?);");
+            // Global
+            loadBooleanSetting(stmt,
+                    MKSettings.Global.POWER_NOTIFICATIONS_ENABLED,
+                    R.bool.def_power_notifications_enabled);
+
+            loadBooleanSetting(stmt,
+                    MKSettings.Global.POWER_NOTIFICATIONS_VIBRATE,
+                    R.bool.def_power_notifications_vibrate);
+
+            loadStringSetting(stmt,
+                    MKSettings.Global.POWER_NOTIFICATIONS_RINGTONE,
+                    R.string.def_power_notifications_ringtone);
+
+            loadIntegerSetting(stmt, MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                    R.integer.def_temperature_unit);
+        } finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+
+    private void loadStringSetting(SQLiteStatement stmt, String name, int resId) {
+        loadSetting(stmt, name, getContext().getResources().getString(resId));
+    }
+
+    private void loadBooleanSetting(SQLiteStatement stmt, String name, int resId) {
+        loadSetting(stmt, name,
+                getContext().getResources().getBoolean(resId) ? "1" : "0");
+    }
+
+    private void loadIntegerSetting(SQLiteStatement stmt, String name, int resId) {
+        loadSetting(stmt, name,
+                Integer.toString(getContext().getResources().getInteger(resId)));
+    }
+
+    private void loadSetting(SQLiteStatement stmt, String key, Object value) {
+        // The per-row loading failed on a null value, the bulk loading skips it
+        if (value == null) {
+            return;
+        }
+        stmt.bindString(1, key);
+        stmt.bindString(2, value.toString());
+        stmt.execute();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2017, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MKSettingsCacheTest extends AndroidTestCase {
+    private static final String TABLE = MKDatabaseHelper.MKTableNames.TABLE_SYSTEM;
+
+    private HandlerThread mWriterThread;
+    private TestDatabaseHelper mDbHelper;
+    private final List<String> mFailedNames = new ArrayList<String>();
+    private MKSettingsCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(MKDatabaseHelper.dbNameForUser(UserHandle.USER_OWNER));
+        mDbHelper = new TestDatabaseHelper(getContext());
+
+        mWriterThread = new HandlerThread("MKSettingsCacheTest");
+        mWriterThread.start();
+        mCache = new MKSettingsCache(mDbHelper, new Handler(mWriterThread.getLooper()),
+                new MKSettingsCache.OnFlushFailedListener() {
+                    @Override
+                    public void onFlushFailed(String tableName, String[] names) {
+                        synchronized (mFailedNames) {
+                            mFailedNames.addAll(Arrays.asList(names));
+                        }
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWriterThread.quit();
+        mDbHelper.close();
+        getContext().deleteDatabase(MKDatabaseHelper.dbNameForUser(UserHandle.USER_OWNER));
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testPutsAreCoalescedIntoOneTransaction() {
+        final int count = 50;
+        for (int i = 0; i < count; i++) {
+            assertTrue(mCache.insert(TABLE, row("key" + i, "value" + i)));
+        }
+        // Served from memory before anything reaches the database
+        assertEquals("value7", mCache.getValue(TABLE, "key7"));
+
+        mCache.sync();
+
+        assertEquals(1, mCache.getFlushTransactionCount());
+        for (int i = 0; i < count; i++) {
+            assertEquals("value" + i, readFromDatabase("key" + i));
+        }
+    }
+
+    @SmallTest
+    public void testLaterPutOfSameKeyWins() {
+        mCache.insert(TABLE, row("key", "first"));
+        mCache.insert(TABLE, row("key", "second"));
+        mCache.sync();
+
+        assertEquals(1, mCache.getFlushTransactionCount());
+        assertEquals("second", readFromDatabase("key"));
+        assertEquals("second", mCache.getValue(TABLE, "key"));
+    }
+
+    @SmallTest
+    public void testFailedFlushDropsOnlyTheFailedRows() {
+        mDbHelper.getWritableDatabase().execSQL("CREATE TRIGGER reject_bad BEFORE INSERT ON "
+                + TABLE + " WHEN NEW.name = 'bad' BEGIN SELECT RAISE(ABORT, 'rejected'); END;");
+
+        assertTrue(mCache.insert(TABLE, row("good", "1")));
+        assertTrue(mCache.insert(TABLE, row("bad", "2")));
+        assertEquals("2", mCache.getValue(TABLE, "bad"));
+
+        mCache.sync();
+
+        // The good row still made it, the bad one is gone from memory as well
+        assertEquals("1", readFromDatabase("good"));
+        assertEquals("1", mCache.getValue(TABLE, "good"));
+        assertNull(readFromDatabase("bad"));
+        assertNull(mCache.getValue(TABLE, "bad"));
+        synchronized (mFailedNames) {
+            assertEquals(Arrays.asList("bad"), mFailedNames);
+        }
+    }
+
+    private static ContentValues row(String name, String value) {
+        final ContentValues values = new ContentValues();
+        values.put(Settings.NameValueTable.NAME, name);
+        values.put(Settings.NameValueTable.VALUE, value);
+        return values;
+    }
+
+    private String readFromDatabase(String name) {
+        final Cursor cursor = mDbHelper.getReadableDatabase().query(TABLE,
+                new String[] { Settings.NameValueTable.VALUE },
+                Settings.NameValueTable.NAME + "=?", new String[] { name }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates empty tables rather than loading the provider's defaults.
+     */
+    private static final class TestDatabaseHelper extends MKDatabaseHelper {
+        TestDatabaseHelper(Context context) {
+            super(context, UserHandle.USER_OWNER);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + "name TEXT UNIQUE ON CONFLICT REPLACE,value TEXT);");
+        }
+    }
+}
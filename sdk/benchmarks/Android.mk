@@ -0,0 +1,40 @@
+#
+# Copyright (C) 2017 The MoKee Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+LOCAL_PATH:= $(call my-dir)
+
+# Caliper benchmarks of the platform sdk, run on a device with vogar:
+#   vogar --benchmark \
+#       --classpath $OUT/../../common/obj/JAVA_LIBRARIES/mokee-platform-benchmarks_intermediates/classes.jar \
+#       sdk/benchmarks/src/mokee/util/ColorUtilsBenchmark.java
+# The classes with a main() method print a report instead, run them without --benchmark.
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := mokee-platform-benchmarks
+LOCAL_MODULE_TAGS := optional
+LOCAL_MODULE_CLASS := JAVA_LIBRARIES
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_JAVA_LIBRARIES := \
+    caliper-api-target \
+    framework
+
+# Link the platform sources statically so package-private classes can be benchmarked directly
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    org.mokee.platform.internal
+
+include $(BUILD_JAVA_LIBRARY)
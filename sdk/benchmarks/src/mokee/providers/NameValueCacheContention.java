@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.providers;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads cached settings from several threads at once and prints the throughput of the hit path
+ * of the per key cache of {@link MKSettings}, lock-free as it is now, against taking the cache
+ * monitor on every read as it did before.
+ * <p>
+ * NameValueCache needs a provider to fill it, so both hit paths are reproduced here on a filled
+ * cache. The version is read from a volatile field rather than a system property, so only the
+ * cost of the cache itself is measured.
+ */
+public class NameValueCacheContention {
+    private static final int[] THREAD_COUNTS = new int[] { 1, 2, 4, 8 };
+
+    // Power of two, so the keys can be cycled through with a mask
+    private static final int KEY_COUNT = 64;
+    private static final String[] KEYS = new String[KEY_COUNT];
+
+    private static final long WARMUP_MILLIS = 500;
+    private static final long RUN_MILLIS = 2000;
+
+    static {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            KEYS[i] = "setting_" + i;
+        }
+    }
+
+    private interface Cache {
+        String get(String name);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println(String.format("%-8s %18s %18s", "threads", "lock-free Mops/s",
+                "locked Mops/s"));
+        for (int threads : THREAD_COUNTS) {
+            final double lockFree = run(new LockFreeCache(), threads);
+            final double locked = run(new LockedCache(), threads);
+            System.out.println(String.format("%-8d %18.2f %18.2f", threads, lockFree, locked));
+        }
+    }
+
+    /**
+     * @return the number of reads per second by all threads together, in millions
+     */
+    private static double run(final Cache cache, int threadCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong reads = new AtomicLong();
+        final long warmupEnd = System.nanoTime() + WARMUP_MILLIS * 1000000L;
+        final long end = warmupEnd + RUN_MILLIS * 1000000L;
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t * 7;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int sink = 0;
+                    long count = 0;
+                    int i = offset;
+                    while (System.nanoTime() < warmupEnd) {
+                        sink += cache.get(KEYS[i++ & (KEY_COUNT - 1)]).length();
+                    }
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        // Check the clock every so often only
+                        for (int j = 0; j < 256; j++) {
+                            sink += cache.get(KEYS[i++ & (KEY_COUNT - 1)]).length();
+                        }
+                        count += 256;
+                    }
+                    reads.addAndGet(count + (sink == 42 ? 1 : 0));
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return reads.get() / (RUN_MILLIS * 1000.0);
+    }
+
+    /**
+     * The hit path as it is now: the current values are read through a volatile field and
+     * looked up in a ConcurrentHashMap without locking.
+     */
+    private static final class LockFreeCache implements Cache {
+        private static final class Values {
+            final long mVersion;
+            final ConcurrentHashMap<String, String> mMap;
+
+            Values(long version, ConcurrentHashMap<String, String> map) {
+                mVersion = version;
+                mMap = map;
+            }
+        }
+
+        private volatile long mCurrentVersion = 1;
+        private volatile Values mValues;
+
+        LockFreeCache() {
+            final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<String, String>();
+            for (String key : KEYS) {
+                map.put(key, key);
+            }
+            mValues = new Values(mCurrentVersion, map);
+        }
+
+        @Override
+        public String get(String name) {
+            final long newValuesVersion = mCurrentVersion;
+            final Values values = mValues;
+            if (values.mVersion != newValuesVersion) {
+                throw new IllegalStateException("Never invalidated");
+            }
+            return values.mMap.get(name);
+        }
+    }
+
+    /**
+     * The hit path as it was before: the version is checked and the value looked up in a
+     * HashMap while holding the cache monitor.
+     */
+    private static final class LockedCache implements Cache {
+        private volatile long mCurrentVersion = 1;
+        private final HashMap<String, String> mValues = new HashMap<String, String>();
+        private long mValuesVersion;
+
+        LockedCache() {
+            for (String key : KEYS) {
+                mValues.put(key, key);
+            }
+            mValuesVersion = mCurrentVersion;
+        }
+
+        @Override
+        public String get(String name) {
+            final long newValuesVersion = mCurrentVersion;
+            synchronized (this) {
+                if (mValuesVersion != newValuesVersion) {
+                    throw new IllegalStateException("Never invalidated");
+                }
+            }
+            synchronized (this) {
+                if (mValues.containsKey(name)) {
+                    return mValues.get(name);
+                }
+            }
+            return null;
+        }
+    }
+}
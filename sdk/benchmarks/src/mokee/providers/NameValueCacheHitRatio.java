@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.providers;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Replays reads of a client's settings interleaved with writes to a few hot keys, and prints
+ * the hit ratio of the per key cache of {@link MKSettings} when it evicts only the keys the
+ * provider's change log reports, against clearing it whenever the table version moves. Every
+ * miss is a call into the provider.
+ * <p>
+ * The cache and the change log are modelled here with the same rules as the real ones: a
+ * client which fell further behind than the capacity of the log clears its whole cache.
+ */
+public class NameValueCacheHitRatio {
+    // Same as MKSettingsChangeLog.CAPACITY
+    private static final int CHANGE_LOG_CAPACITY = 128;
+
+    private static final int ROUNDS = 20000;
+
+    private static final String[] NAMES = new String[] {
+            "brightness slider", "several writers", "busy reader", "idle reader"
+    };
+    // Keys the client reads; the writes go to the first hotKeys of them
+    private static final int[] KEYS = new int[] { 200, 200, 500, 200 };
+    private static final int[] HOT_KEYS = new int[] { 1, 8, 2, 1 };
+    // Each round writes this many times, then reads this many times
+    private static final int[] WRITES_PER_ROUND = new int[] { 1, 4, 1, 300 };
+    private static final int[] READS_PER_ROUND = new int[] { 10, 5, 100, 20 };
+
+    public static void main(String[] args) {
+        System.out.println(String.format("%-20s %6s %6s %8s %8s %12s %12s",
+                "scenario", "keys", "hot", "writes", "reads", "change log", "full clear"));
+        for (int i = 0; i < NAMES.length; i++) {
+            final double changeLog = run(KEYS[i], HOT_KEYS[i], WRITES_PER_ROUND[i],
+                    READS_PER_ROUND[i], true);
+            final double fullClear = run(KEYS[i], HOT_KEYS[i], WRITES_PER_ROUND[i],
+                    READS_PER_ROUND[i], false);
+            System.out.println(String.format("%-20s %6d %6d %8d %8d %11.2f%% %11.2f%%",
+                    NAMES[i], KEYS[i], HOT_KEYS[i], WRITES_PER_ROUND[i], READS_PER_ROUND[i],
+                    changeLog * 100, fullClear * 100));
+        }
+    }
+
+    /**
+     * @return the ratio of reads served from the cache
+     */
+    private static double run(int keys, int hotKeys, int writesPerRound, int readsPerRound,
+            boolean useChangeLog) {
+        // The same sequence of reads and writes for both policies
+        final Random random = new Random(keys * 31 + hotKeys);
+        final ChangeLog log = new ChangeLog();
+        final boolean[] cached = new boolean[keys];
+        long cachedVersion = 0;
+        long hits = 0;
+        long reads = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < writesPerRound; i++) {
+                log.recordChange(random.nextInt(hotKeys));
+            }
+
+            for (int i = 0; i < readsPerRound; i++) {
+                if (cachedVersion != log.mVersion) {
+                    final int[] changed = useChangeLog
+                            ? log.getChangesSince(cachedVersion) : null;
+                    if (changed == null) {
+                        Arrays.fill(cached, false);
+                    } else {
+                        for (int key : changed) {
+                            cached[key] = false;
+                        }
+                    }
+                    cachedVersion = log.mVersion;
+                }
+
+                // Skewed towards the first keys, a few settings are read far more than others
+                final double r = random.nextDouble();
+                final int key = (int) (r * r * keys);
+                if (cached[key]) {
+                    hits++;
+                } else {
+                    cached[key] = true;
+                }
+                reads++;
+            }
+        }
+        return hits / (double) reads;
+    }
+
+    /**
+     * The ring of changed keys kept by MKSettingsChangeLog, with a key per version.
+     */
+    private static final class ChangeLog {
+        private final int[] mChangedKeys = new int[CHANGE_LOG_CAPACITY];
+        private int mHead = CHANGE_LOG_CAPACITY - 1;
+        private int mSize = 0;
+        long mVersion;
+
+        void recordChange(int key) {
+            mHead = (mHead + 1) % CHANGE_LOG_CAPACITY;
+            mChangedKeys[mHead] = key;
+            if (mSize < CHANGE_LOG_CAPACITY) {
+                mSize++;
+            }
+            mVersion++;
+        }
+
+        int[] getChangesSince(long version) {
+            if (version > mVersion || version < mVersion - mSize) {
+                return null;
+            }
+            final int[] keys = new int[(int) (mVersion - version)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = mChangedKeys[(mHead - i + CHANGE_LOG_CAPACITY) % CHANGE_LOG_CAPACITY];
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util;
+
+import android.graphics.Color;
+
+import com.google.caliper.BeforeExperiment;
+
+import java.util.Random;
+
+/**
+ * Measures the color conversions of {@link ColorUtils} against the implementations they
+ * replaced.
+ */
+public class ColorUtilsBenchmark {
+    // Power of two, so the colors can be cycled through with a mask
+    private static final int COLOR_COUNT = 1024;
+
+    private final int[] mColors = new int[COLOR_COUNT];
+    private final float[] mLab = new float[3];
+
+    @BeforeExperiment
+    protected void setUp() {
+        final Random random = new Random(0);
+        for (int i = 0; i < COLOR_COUNT; i++) {
+            mColors[i] = random.nextInt();
+        }
+    }
+
+    public float timeConvertRGBtoLAB(int reps) {
+        float sum = 0;
+        for (int i = 0; i < reps; i++) {
+            ColorUtils.convertRGBtoLAB(mColors[i & (COLOR_COUNT - 1)], mLab);
+            sum += mLab[0];
+        }
+        return sum;
+    }
+
+    public float timeConvertRGBtoLABAllocating(int reps) {
+        float sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += ColorUtils.convertRGBtoLAB(mColors[i & (COLOR_COUNT - 1)])[0];
+        }
+        return sum;
+    }
+
+    public float timeConvertRGBtoLABPow(int reps) {
+        float sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += convertRGBtoLABPow(mColors[i & (COLOR_COUNT - 1)])[0];
+        }
+        return sum;
+    }
+
+    public float timeTemperatureToRGB(int reps) {
+        final float[] rgb = new float[3];
+        float sum = 0;
+        for (int i = 0; i < reps; i++) {
+            // Sweeps 1000K to 20000K, as an animation of the display temperature would
+            ColorUtils.temperatureToRGB(1000 + i % 19001, rgb);
+            sum += rgb[1];
+        }
+        return sum;
+    }
+
+    public float timeTemperatureToRGBAllocating(int reps) {
+        float sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += ColorUtils.temperatureToRGB(1000 + i % 19001)[1];
+        }
+        return sum;
+    }
+
+    /**
+     * The conversion to Lab as it was before the linear values were looked up in a table and
+     * the cube roots were taken with Math.cbrt().
+     */
+    private static float[] convertRGBtoLABPow(int rgb) {
+        float[] lab = new float[3];
+        float fx, fy, fz;
+        float eps = 216.f / 24389.f;
+        float k = 24389.f / 27.f;
+
+        float Xr = 0.964221f;  // reference white D50
+        float Yr = 1.0f;
+        float Zr = 0.825211f;
+
+        // RGB to XYZ
+        float r = Color.red(rgb) / 255.f; //R 0..1
+        float g = Color.green(rgb) / 255.f; //G 0..1
+        float b = Color.blue(rgb) / 255.f; //B 0..1
+
+        // assuming sRGB (D65)
+        if (r <= 0.04045)
+            r = r / 12;
+        else
+            r = (float) Math.pow((r + 0.055) / 1.055, 2.4);
+
+        if (g <= 0.04045)
+            g = g / 12;
+        else
+            g = (float) Math.pow((g + 0.055) / 1.055, 2.4);
+
+        if (b <= 0.04045)
+            b = b / 12;
+        else
+            b = (float) Math.pow((b + 0.055) / 1.055, 2.4);
+
+        float X = 0.436052025f * r + 0.385081593f * g + 0.143087414f * b;
+        float Y = 0.222491598f * r + 0.71688606f * g + 0.060621486f * b;
+        float Z = 0.013929122f * r + 0.097097002f * g + 0.71418547f * b;
+
+        // XYZ to Lab
+        float xr = X / Xr;
+        float yr = Y / Yr;
+        float zr = Z / Zr;
+
+        if (xr > eps)
+            fx = (float) Math.pow(xr, 1 / 3.);
+        else
+            fx = (float) ((k * xr + 16.) / 116.);
+
+        if (yr > eps)
+            fy = (float) Math.pow(yr, 1 / 3.);
+        else
+            fy = (float) ((k * yr + 16.) / 116.);
+
+        if (zr > eps)
+            fz = (float) Math.pow(zr, 1 / 3.);
+        else
+            fz = (float) ((k * zr + 16.) / 116);
+
+        float Ls = (116 * fy) - 16;
+        float as = 500 * (fx - fy);
+        float bs = 200 * (fy - fz);
+
+        lab[0] = (2.55f * Ls + .5f);
+        lab[1] = (as + .5f);
+        lab[2] = (bs + .5f);
+
+        return lab;
+    }
+}
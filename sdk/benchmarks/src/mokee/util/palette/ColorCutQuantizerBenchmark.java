@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Color;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.util.Random;
+
+/**
+ * Measures splitting the boxes of {@link ColorCutQuantizer} with {@link VboxHeap} against the
+ * {@link ColorCutQuantizer.Vbox} objects in a PriorityQueue it replaced.
+ */
+public class ColorCutQuantizerBenchmark {
+    public enum Image {
+        CLUSTERED, GRADIENT, RANDOM
+    }
+
+    // Samples in a bitmap scaled down to the default size of Palette.Builder
+    private static final int PIXEL_COUNT = 192 * 192;
+
+    @Param({"16", "24", "64"})
+    private int maxColors;
+
+    @Param
+    private Image image;
+
+    private ColorHistogram mHistogram;
+
+    @BeforeExperiment
+    protected void setUp() {
+        final Random random = new Random(0);
+        final int[] pixels = new int[PIXEL_COUNT];
+        switch (image) {
+            case CLUSTERED:
+                final int[] centers = new int[8];
+                for (int i = 0; i < centers.length; i++) {
+                    centers[i] = random.nextInt() | 0xff000000;
+                }
+                for (int i = 0; i < pixels.length; i++) {
+                    final int center = centers[random.nextInt(centers.length)];
+                    pixels[i] = Color.rgb(jitter(Color.red(center), random),
+                            jitter(Color.green(center), random),
+                            jitter(Color.blue(center), random));
+                }
+                break;
+            case GRADIENT:
+                for (int i = 0; i < pixels.length; i++) {
+                    final int x = i % 192;
+                    final int y = i / 192;
+                    pixels[i] = Color.rgb(x * 255 / 191, y * 255 / 191, 255 - (x + y) * 255 / 382);
+                }
+                break;
+            case RANDOM:
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = random.nextInt() | 0xff000000;
+                }
+                break;
+        }
+        mHistogram = new ColorHistogram();
+        mHistogram.addPixels(pixels, 0, pixels.length);
+    }
+
+    // Without filters the quantizer leaves the histogram as it is, so it is shared by all reps
+
+    public int timeVboxHeap(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            count += new ColorCutQuantizer(mHistogram, maxColors, null, true)
+                    .getQuantizedColors().size();
+        }
+        return count;
+    }
+
+    public int timeVboxPriorityQueue(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            count += new ColorCutQuantizer(mHistogram, maxColors, null, false)
+                    .getQuantizedColors().size();
+        }
+        return count;
+    }
+
+    private static int jitter(int component, Random random) {
+        return Math.max(0, Math.min(255, component + random.nextInt(33) - 16));
+    }
+}
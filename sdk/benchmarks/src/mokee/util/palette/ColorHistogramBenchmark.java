@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Bitmap;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.util.Random;
+
+/**
+ * Measures building the histogram of a bitmap by streaming its rows into a
+ * {@link ColorHistogram}, against scaling it down and copying all of its pixels out first as
+ * {@link Palette.Builder} used to.
+ */
+public class ColorHistogramBenchmark {
+    // Wallpapers and photos, and an app icon which is sampled as it is
+    @Param({"192", "1080", "2560"})
+    private int size;
+
+    // The default of Palette.Builder, and a larger one as used for a region of a wallpaper
+    @Param({"192", "400"})
+    private int maxDimension;
+
+    private Bitmap mBitmap;
+
+    @BeforeExperiment
+    protected void setUp() {
+        final Random random = new Random(0);
+        final int width = size;
+        final int height = size * 16 / 9;
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() | 0xff000000;
+        }
+        mBitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    @AfterExperiment
+    protected void tearDown() {
+        mBitmap.recycle();
+    }
+
+    public int timeStreamBitmap(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            final ColorHistogram histogram = new ColorHistogram();
+            histogram.addBitmap(mBitmap, null, maxDimension);
+            count += histogram.getPixelCount();
+        }
+        return count;
+    }
+
+    public int timeScaleBitmap(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            final Bitmap scaledBitmap = scaleBitmapDown(mBitmap, maxDimension);
+            final int width = scaledBitmap.getWidth();
+            final int height = scaledBitmap.getHeight();
+            final int[] pixels = new int[width * height];
+            scaledBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            if (scaledBitmap != mBitmap) {
+                scaledBitmap.recycle();
+            }
+
+            final ColorHistogram histogram = new ColorHistogram();
+            histogram.addPixels(pixels, 0, pixels.length);
+            count += histogram.getPixelCount();
+        }
+        return count;
+    }
+
+    /**
+     * Scale the bitmap down so that it's largest dimension is {@code targetMaxDimension}, as
+     * Palette.Builder did before the bitmap was streamed.
+     */
+    private static Bitmap scaleBitmapDown(Bitmap bitmap, final int targetMaxDimension) {
+        final int maxDimension = Math.max(bitmap.getWidth(), bitmap.getHeight());
+
+        if (maxDimension <= targetMaxDimension) {
+            // If the bitmap is small enough already, just return it
+            return bitmap;
+        }
+
+        final float scaleRatio = targetMaxDimension / (float) maxDimension;
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.round(bitmap.getWidth() * scaleRatio),
+                Math.round(bitmap.getHeight() * scaleRatio),
+                false);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.util.Random;
+
+/**
+ * Measures where splitting the pixels of a {@link ColorHistogram} across worker threads starts
+ * to pay off, to choose its parallel threshold and smallest chunk size.
+ * <p>
+ * A threshold larger than the number of pixels keeps the histogram on the calling thread, so
+ * each size is compared against its serial time by the largest threshold.
+ */
+public class ColorHistogramThresholdBenchmark {
+    // From an icon up to a full region of a wallpaper sampled at 400px
+    @Param({"4096", "16384", "36864", "65536", "160000", "262144"})
+    private int pixelCount;
+
+    @Param({"8192", "32768", "65536", "2147483647"})
+    private int threshold;
+
+    @Param({"4096", "16384", "32768"})
+    private int minChunkSize;
+
+    private int[] mPixels;
+
+    @BeforeExperiment
+    protected void setUp() {
+        final Random random = new Random(0);
+        mPixels = new int[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+            mPixels[i] = random.nextInt() | 0xff000000;
+        }
+    }
+
+    public int timeAddPixels(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            final ColorHistogram histogram = new ColorHistogram(threshold, minChunkSize);
+            histogram.addPixels(mPixels, 0, mPixels.length);
+            count += histogram.getPixelCount();
+        }
+        return count;
+    }
+}
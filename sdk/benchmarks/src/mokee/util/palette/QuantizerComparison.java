@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import mokee.util.ColorUtils;
+import mokee.util.palette.Palette.Quantizer;
+import mokee.util.palette.Palette.Swatch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs each {@link Quantizer} over the same images and prints how long it took and how far, on
+ * average, the colors of the image are from the nearest swatch (the CIE 2000 deltaE, weighted
+ * by population). Lower is better for both.
+ * <p>
+ * The images are decoded from the files given as arguments, or else generated.
+ */
+public class QuantizerComparison {
+    private static final Quantizer[] QUANTIZERS = new Quantizer[] {
+            Palette.MEDIAN_CUT_QUANTIZER, Palette.WU_QUANTIZER, Palette.K_MEANS_QUANTIZER
+    };
+    private static final String[] NAMES = new String[] { "median-cut", "Wu", "k-means" };
+
+    // The defaults of Palette.Builder
+    private static final int MAX_COLORS = 16;
+    private static final int RESIZE_MAX_DIMENSION = 192;
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int TIMED_RUNS = 21;
+
+    public static void main(String[] args) {
+        final List<String> names = new ArrayList<String>();
+        final List<Bitmap> images = new ArrayList<Bitmap>();
+        if (args.length > 0) {
+            for (String path : args) {
+                final Bitmap bitmap = BitmapFactory.decodeFile(path);
+                if (bitmap == null) {
+                    System.err.println("Can't decode " + path + ", skipped");
+                    continue;
+                }
+                names.add(new File(path).getName());
+                images.add(bitmap);
+            }
+        } else {
+            addGeneratedImages(names, images);
+        }
+
+        final double[] totalMillis = new double[QUANTIZERS.length];
+        final double[] totalDeltaE = new double[QUANTIZERS.length];
+
+        System.out.println(String.format("%-20s %-12s %10s %8s %10s",
+                "image", "quantizer", "ms", "colors", "mean dE"));
+        for (int i = 0; i < images.size(); i++) {
+            final ColorHistogram histogram = new ColorHistogram();
+            histogram.addBitmap(images.get(i), null, RESIZE_MAX_DIMENSION);
+            final int[] bins = histogram.getHistogram();
+
+            for (int q = 0; q < QUANTIZERS.length; q++) {
+                final double millis = medianMillis(QUANTIZERS[q], bins);
+                final List<Swatch> swatches = QUANTIZERS[q].quantize(bins.clone(), MAX_COLORS,
+                        null);
+                final double deltaE = meanDeltaE(bins, swatches);
+                totalMillis[q] += millis;
+                totalDeltaE[q] += deltaE;
+                System.out.println(String.format("%-20s %-12s %10.3f %8d %10.3f",
+                        names.get(i), NAMES[q], millis, swatches.size(), deltaE));
+            }
+        }
+
+        System.out.println();
+        for (int q = 0; q < QUANTIZERS.length; q++) {
+            System.out.println(String.format("%-20s %-12s %10.3f %8s %10.3f",
+                    "mean", NAMES[q], totalMillis[q] / images.size(), "",
+                    totalDeltaE[q] / images.size()));
+        }
+    }
+
+    /**
+     * @return the median time taken to quantize the histogram, in milliseconds
+     */
+    private static double medianMillis(Quantizer quantizer, int[] bins) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            quantizer.quantize(bins.clone(), MAX_COLORS, null);
+        }
+        final long[] times = new long[TIMED_RUNS];
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            // Quantizers take ownership of the histogram, so each run gets a copy
+            final int[] copy = bins.clone();
+            final long start = System.nanoTime();
+            quantizer.quantize(copy, MAX_COLORS, null);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[TIMED_RUNS / 2] / 1e6;
+    }
+
+    /**
+     * @return the deltaE of each color of the histogram to its nearest swatch, weighted by its
+     * population
+     */
+    private static double meanDeltaE(int[] bins, List<Swatch> swatches) {
+        final int count = swatches.size();
+        final int[] swatchColors = new int[count];
+        for (int i = 0; i < count; i++) {
+            swatchColors[i] = swatches.get(i).getRgb();
+        }
+        final float[] swatchL = new float[count];
+        final float[] swatchA = new float[count];
+        final float[] swatchB = new float[count];
+        ColorUtils.convertRGBtoLAB(swatchColors, swatchL, swatchA, swatchB);
+
+        final float[] lab = new float[3];
+        final float[] deltaE = new float[count];
+        double sum = 0;
+        long population = 0;
+        for (int color = 0; color < bins.length; color++) {
+            if (bins[color] == 0) {
+                continue;
+            }
+            ColorUtils.convertRGBtoLAB(ColorCutQuantizer.approximateToRgb888(color), lab);
+            ColorUtils.calculateDeltaE(lab[0], lab[1], lab[2], swatchL, swatchA, swatchB,
+                    count, deltaE);
+            float nearest = Float.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                nearest = Math.min(nearest, deltaE[i]);
+            }
+            sum += (double) nearest * bins[color];
+            population += bins[color];
+        }
+        return sum / population;
+    }
+
+    /**
+     * A few kinds of images palettes are generated from: photos with a handful of dominant
+     * colors, smooth gradients such as wallpapers, flat icons, and noise.
+     */
+    private static void addGeneratedImages(List<String> names, List<Bitmap> images) {
+        final Random random = new Random(0x5041L);
+        for (int i = 0; i < 4; i++) {
+            names.add("clustered-" + i);
+            images.add(clusteredImage(400, 300, 3 + i * 3, random));
+        }
+        for (int i = 0; i < 2; i++) {
+            names.add("gradient-" + i);
+            images.add(gradientImage(480, 800, random));
+        }
+        for (int i = 0; i < 2; i++) {
+            names.add("icon-" + i);
+            images.add(iconImage(192, random));
+        }
+        names.add("noise");
+        images.add(noiseImage(256, 256, random));
+    }
+
+    private static Bitmap clusteredImage(int width, int height, int clusters, Random random) {
+        final int[] centers = new int[clusters];
+        for (int i = 0; i < clusters; i++) {
+            centers[i] = Color.HSVToColor(new float[] {
+                    random.nextFloat() * 360f, random.nextFloat(), random.nextFloat() });
+        }
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Blobs of each color, with noise on top
+                final int center = centers[((x / 40) * 7 + (y / 30) * 3) % clusters];
+                pixels[y * width + x] = Color.rgb(jitter(Color.red(center), 24, random),
+                        jitter(Color.green(center), 24, random),
+                        jitter(Color.blue(center), 24, random));
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static Bitmap gradientImage(int width, int height, Random random) {
+        final int from = random.nextInt() | 0xff000000;
+        final int to = random.nextInt() | 0xff000000;
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final float t = (x + y) / (float) (width + height - 2);
+                pixels[y * width + x] = Color.rgb(
+                        jitter(lerp(Color.red(from), Color.red(to), t), 2, random),
+                        jitter(lerp(Color.green(from), Color.green(to), t), 2, random),
+                        jitter(lerp(Color.blue(from), Color.blue(to), t), 2, random));
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static Bitmap iconImage(int size, Random random) {
+        final int background = random.nextInt() | 0xff000000;
+        final int foreground = random.nextInt() | 0xff000000;
+        final int accent = random.nextInt() | 0xff000000;
+        final int[] pixels = new int[size * size];
+        final float radius = size / 2f;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                final float dx = x - radius;
+                final float dy = y - radius;
+                final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                pixels[y * size + x] = distance < radius / 3 ? accent
+                        : distance < radius * 0.9f ? foreground : background;
+            }
+        }
+        return Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    private static Bitmap noiseImage(int width, int height, Random random) {
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() | 0xff000000;
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static int lerp(int from, int to, float t) {
+        return Math.round(from + (to - from) * t);
+    }
+
+    private static int jitter(int component, int amount, Random random) {
+        return Math.max(0, Math.min(255, component + random.nextInt(2 * amount + 1) - amount));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Color;
+
+import com.google.caliper.BeforeExperiment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the table based luminance of the palette {@link ColorUtils}, and the text colors of
+ * the swatches {@link DefaultGenerator} selects, against the Math.pow() based implementation
+ * they replaced.
+ */
+public class SwatchBenchmark {
+    // Power of two, so the colors can be cycled through with a mask
+    private static final int COLOR_COUNT = 1024;
+
+    // Same as Palette.Swatch
+    private static final float MIN_CONTRAST_TITLE_TEXT = 3.0f;
+    private static final float MIN_CONTRAST_BODY_TEXT = 4.5f;
+
+    private final int[] mColors = new int[COLOR_COUNT];
+    private final List<Palette.Swatch> mTargets = new ArrayList<Palette.Swatch>();
+
+    @BeforeExperiment
+    protected void setUp() {
+        final Random random = new Random(0);
+        for (int i = 0; i < COLOR_COUNT; i++) {
+            mColors[i] = random.nextInt() | 0xff000000;
+        }
+
+        // The swatches of a palette quantized to the default 16 colors, from which the
+        // generator picks its targets
+        final List<Palette.Swatch> swatches = new ArrayList<Palette.Swatch>();
+        for (int i = 0; i < 16; i++) {
+            swatches.add(new Palette.Swatch(mColors[i], 100 + random.nextInt(1000)));
+        }
+        final Palette palette = Palette.from(swatches);
+        addTarget(palette.getVibrantSwatch());
+        addTarget(palette.getLightVibrantSwatch());
+        addTarget(palette.getDarkVibrantSwatch());
+        addTarget(palette.getMutedSwatch());
+        addTarget(palette.getLightMutedSwatch());
+        addTarget(palette.getDarkMutedSwatch());
+    }
+
+    private void addTarget(Palette.Swatch swatch) {
+        if (swatch != null) {
+            mTargets.add(swatch);
+        }
+    }
+
+    public double timeCalculateLuminance(int reps) {
+        double sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += ColorUtils.calculateLuminance(mColors[i & (COLOR_COUNT - 1)]);
+        }
+        return sum;
+    }
+
+    public double timeCalculateLuminancePow(int reps) {
+        double sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += calculateLuminancePow(mColors[i & (COLOR_COUNT - 1)]);
+        }
+        return sum;
+    }
+
+    // The text colors are computed once per swatch, so fresh swatches are prepared in each rep
+
+    public int timePrepareTargetSwatches(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            for (int j = 0, count = mTargets.size(); j < count; j++) {
+                final Palette.Swatch target = mTargets.get(j);
+                final Palette.Swatch swatch = new Palette.Swatch(target.getRgb(),
+                        target.getPopulation());
+                sum += swatch.getTitleTextColor() + swatch.getBodyTextColor();
+            }
+        }
+        return sum;
+    }
+
+    public int timePrepareTargetSwatchesPow(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            for (int j = 0, count = mTargets.size(); j < count; j++) {
+                sum += generateTextColorsPow(mTargets.get(j).getRgb());
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The text colors of a swatch as they were generated before, with the title and body
+     * colors added together.
+     */
+    private static int generateTextColorsPow(int rgb) {
+        final int lightBodyAlpha = calculateMinimumAlphaPow(
+                Color.WHITE, rgb, MIN_CONTRAST_BODY_TEXT);
+        final int lightTitleAlpha = calculateMinimumAlphaPow(
+                Color.WHITE, rgb, MIN_CONTRAST_TITLE_TEXT);
+        if (lightBodyAlpha != -1 && lightTitleAlpha != -1) {
+            return ColorUtils.setAlphaComponent(Color.WHITE, lightBodyAlpha)
+                    + ColorUtils.setAlphaComponent(Color.WHITE, lightTitleAlpha);
+        }
+
+        final int darkBodyAlpha = calculateMinimumAlphaPow(
+                Color.BLACK, rgb, MIN_CONTRAST_BODY_TEXT);
+        final int darkTitleAlpha = calculateMinimumAlphaPow(
+                Color.BLACK, rgb, MIN_CONTRAST_TITLE_TEXT);
+        if (darkBodyAlpha != -1 && darkTitleAlpha != -1) {
+            return ColorUtils.setAlphaComponent(Color.BLACK, darkBodyAlpha)
+                    + ColorUtils.setAlphaComponent(Color.BLACK, darkTitleAlpha);
+        }
+
+        return (lightBodyAlpha != -1
+                ? ColorUtils.setAlphaComponent(Color.WHITE, lightBodyAlpha)
+                : ColorUtils.setAlphaComponent(Color.BLACK, darkBodyAlpha))
+                + (lightTitleAlpha != -1
+                ? ColorUtils.setAlphaComponent(Color.WHITE, lightTitleAlpha)
+                : ColorUtils.setAlphaComponent(Color.BLACK, darkTitleAlpha));
+    }
+
+    /**
+     * The relative luminance, computed as before the linear values were looked up in a table.
+     */
+    private static double calculateLuminancePow(int color) {
+        double red = Color.red(color) / 255d;
+        red = red < 0.03928 ? red / 12.92 : Math.pow((red + 0.055) / 1.055, 2.4);
+
+        double green = Color.green(color) / 255d;
+        green = green < 0.03928 ? green / 12.92 : Math.pow((green + 0.055) / 1.055, 2.4);
+
+        double blue = Color.blue(color) / 255d;
+        blue = blue < 0.03928 ? blue / 12.92 : Math.pow((blue + 0.055) / 1.055, 2.4);
+
+        return (0.2126 * red) + (0.7152 * green) + (0.0722 * blue);
+    }
+
+    private static double calculateContrastPow(int foreground, int background) {
+        if (Color.alpha(foreground) < 255) {
+            foreground = ColorUtils.compositeColors(foreground, background);
+        }
+        final double luminance1 = calculateLuminancePow(foreground) + 0.05;
+        final double luminance2 = calculateLuminancePow(background) + 0.05;
+        return Math.max(luminance1, luminance2) / Math.min(luminance1, luminance2);
+    }
+
+    /**
+     * The minimum alpha search, computing the luminance of the background on every step.
+     */
+    private static int calculateMinimumAlphaPow(int foreground, int background,
+            float minContrastRatio) {
+        int testForeground = ColorUtils.setAlphaComponent(foreground, 255);
+        double testRatio = calculateContrastPow(testForeground, background);
+        if (testRatio < minContrastRatio) {
+            return -1;
+        }
+
+        int numIterations = 0;
+        int minAlpha = 0;
+        int maxAlpha = 255;
+        while (numIterations <= 10 && (maxAlpha - minAlpha) > 10) {
+            final int testAlpha = (minAlpha + maxAlpha) / 2;
+
+            testForeground = ColorUtils.setAlphaComponent(foreground, testAlpha);
+            testRatio = calculateContrastPow(testForeground, background);
+            if (testRatio < minContrastRatio) {
+                minAlpha = testAlpha;
+            } else {
+                maxAlpha = testAlpha;
+            }
+            numIterations++;
+        }
+        return maxAlpha;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.internal.notification;
+
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.util.Random;
+
+/**
+ * Measures the single pass parser of the custom LED values setting against the split() based
+ * parser it replaced, for settings listing many packages.
+ */
+public class CustomLedValuesBenchmark {
+    @Param({"100", "1000", "5000"})
+    private int packageCount;
+
+    private String mSetting;
+    // The same setting with the values of a single package changed, as when the user picks
+    // another color for one app
+    private String mChangedSetting;
+
+    @BeforeExperiment
+    protected void setUp() {
+        final Random random = new Random(0);
+        final StringBuilder setting = new StringBuilder();
+        final StringBuilder changedSetting = new StringBuilder();
+        final int changed = random.nextInt(packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            if (i > 0) {
+                setting.append('|');
+                changedSetting.append('|');
+            }
+            final String packageName = "com.example.app" + i;
+            final int color = random.nextInt();
+            final int onMs = 100 * random.nextInt(20);
+            final int offMs = 100 * random.nextInt(50);
+            appendPackage(setting, packageName, color, onMs, offMs);
+            appendPackage(changedSetting, packageName, i == changed ? ~color : color, onMs,
+                    offMs);
+        }
+        mSetting = setting.toString();
+        mChangedSetting = changedSetting.toString();
+    }
+
+    private static void appendPackage(StringBuilder sb, String packageName, int color, int onMs,
+            int offMs) {
+        sb.append(packageName).append('=').append(color).append(';').append(onMs).append(';')
+                .append(offMs);
+    }
+
+    public int timeApplyCustomLedValues(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            final ArrayMap<String, LedValues> values = new ArrayMap<String, LedValues>();
+            MKNotificationLights.applyCustomLedValues(mSetting, values);
+            count += values.size();
+        }
+        return count;
+    }
+
+    public int timeParseWithSplit(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            final ArrayMap<String, LedValues> values = new ArrayMap<String, LedValues>();
+            parseWithSplit(mSetting, values);
+            count += values.size();
+        }
+        return count;
+    }
+
+    // Alternate between the two settings, updating the same values as the observer does
+
+    public int timeApplyCustomLedValuesChanged(int reps) {
+        final ArrayMap<String, LedValues> values = new ArrayMap<String, LedValues>();
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            MKNotificationLights.applyCustomLedValues(
+                    (i & 1) == 0 ? mChangedSetting : mSetting, values);
+            count += values.size();
+        }
+        return count;
+    }
+
+    public int timeParseWithSplitChanged(int reps) {
+        final ArrayMap<String, LedValues> values = new ArrayMap<String, LedValues>();
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            parseWithSplit((i & 1) == 0 ? mChangedSetting : mSetting, values);
+            count += values.size();
+        }
+        return count;
+    }
+
+    /**
+     * The custom LED values parser as it was before the setting was parsed in a single pass,
+     * without its logging.
+     */
+    private static void parseWithSplit(String customLedValuesString,
+            ArrayMap<String, LedValues> ledValuesMap) {
+        if (TextUtils.isEmpty(customLedValuesString)) {
+            return;
+        }
+
+        for (String packageValuesString : customLedValuesString.split("\\|")) {
+            String[] packageValues = packageValuesString.split("=");
+            if (packageValues.length != 2) {
+                continue;
+            }
+            String packageName = packageValues[0];
+            String[] values = packageValues[1].split(";");
+            if (values.length != 3) {
+                continue;
+            }
+            LedValues ledValues;
+            try {
+                // color, onMs, offMs
+                ledValues = new LedValues(Integer.parseInt(values[0]),
+                        Integer.parseInt(values[1]), Integer.parseInt(values[2]));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            ledValuesMap.put(packageName, ledValues);
+        }
+    }
+}
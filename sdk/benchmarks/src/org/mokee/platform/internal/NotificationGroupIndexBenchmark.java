@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.platform.internal;
+
+import android.app.NotificationGroup;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Measures the package index of the notification groups in {@link ProfileManagerService}.
+ * Loading the groups builds the index once instead of after every group, and looking up the
+ * group of a package reads the index instead of asking each group in turn.
+ * <p>
+ * The service is not linked into the benchmarks, so its maps are rebuilt here the same way.
+ */
+public class NotificationGroupIndexBenchmark {
+    // Power of two, so the looked up packages can be cycled through with a mask
+    private static final int LOOKUP_COUNT = 1024;
+
+    @Param({"100", "500"})
+    private int groupCount;
+
+    @Param({"10", "20"})
+    private int packagesPerGroup;
+
+    private NotificationGroup[] mLoadedGroups;
+    private final Map<UUID, NotificationGroup> mGroups = new HashMap<UUID, NotificationGroup>();
+    private Map<String, NotificationGroup> mGroupsByPackage;
+    // Half of them are in a group, the rest are packages without one
+    private final String[] mLookups = new String[LOOKUP_COUNT];
+
+    @BeforeExperiment
+    protected void setUp() {
+        mLoadedGroups = new NotificationGroup[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            final NotificationGroup group = new NotificationGroup("group" + i);
+            for (int j = 0; j < packagesPerGroup; j++) {
+                group.addPackage(packageName(i, j));
+            }
+            mLoadedGroups[i] = group;
+            mGroups.put(group.getUuid(), group);
+        }
+        mGroupsByPackage = buildGroupsByPackage(mGroups);
+
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            final int group = (i * 31) % groupCount;
+            final int pkg = i % packagesPerGroup;
+            mLookups[i] = (i & 1) == 0 ? packageName(group, pkg) : "com.example.other" + i;
+        }
+    }
+
+    private static String packageName(int group, int pkg) {
+        return "com.example.group" + group + ".app" + pkg;
+    }
+
+    public int timeLoadIndexPerGroup(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            final Map<UUID, NotificationGroup> groups = new HashMap<UUID, NotificationGroup>();
+            Map<String, NotificationGroup> groupsByPackage = null;
+            for (NotificationGroup group : mLoadedGroups) {
+                groups.put(group.getUuid(), group);
+                groupsByPackage = buildGroupsByPackage(groups);
+            }
+            count += groupsByPackage.size();
+        }
+        return count;
+    }
+
+    public int timeLoadIndexOnce(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            final Map<UUID, NotificationGroup> groups = new HashMap<UUID, NotificationGroup>();
+            for (NotificationGroup group : mLoadedGroups) {
+                groups.put(group.getUuid(), group);
+            }
+            count += buildGroupsByPackage(groups).size();
+        }
+        return count;
+    }
+
+    public int timeLookupIndex(int reps) {
+        int found = 0;
+        for (int i = 0; i < reps; i++) {
+            if (mGroupsByPackage.get(mLookups[i & (LOOKUP_COUNT - 1)]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    public int timeLookupScan(int reps) {
+        int found = 0;
+        for (int i = 0; i < reps; i++) {
+            if (findGroupForPackage(mLookups[i & (LOOKUP_COUNT - 1)]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The lookup of the group of a package as it was before the groups were indexed.
+     */
+    private NotificationGroup findGroupForPackage(String pkg) {
+        for (NotificationGroup group : mGroups.values()) {
+            if (group.hasPackage(pkg)) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as ProfileManagerService#updateGroupsByPackage().
+     */
+    private static Map<String, NotificationGroup> buildGroupsByPackage(
+            Map<UUID, NotificationGroup> groups) {
+        Map<String, NotificationGroup> groupsByPackage = new HashMap<String, NotificationGroup>();
+        for (NotificationGroup group : groups.values()) {
+            for (String pkg : group.getPackages()) {
+                if (!groupsByPackage.containsKey(pkg)) {
+                    groupsByPackage.put(pkg, group);
+                }
+            }
+        }
+        return groupsByPackage;
+    }
+}
@@ -547,12 +547,12 @@ public class ProfileManager {
      * @hide
      */
     public ProfileGroup getActiveProfileGroup(String packageName) {
-        NotificationGroup notificationGroup = getNotificationGroupForPackage(packageName);
-        if (notificationGroup == null) {
-            ProfileGroup defaultGroup = getActiveProfile().getDefaultGroup();
-            return defaultGroup;
+        try {
+            return getService().getActiveProfileGroupForPackage(packageName);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
         }
-        return getActiveProfile().getProfileGroup(notificationGroup.getUuid());
+        return null;
     }
 
     /**
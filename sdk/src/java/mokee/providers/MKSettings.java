@@ -38,10 +38,12 @@ import com.android.internal.util.ArrayUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -116,6 +118,90 @@ public final class MKSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - String array argument extra holding the names for the batch call()-based requests
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - String array argument extra holding the values for the batch put requests
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Int result extra holding the number of values applied by the batch put requests
+     */
+    public static final String CALL_METHOD_COUNT_KEY = "_count";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read several keys from 'system'
+     */
+    public static final String CALL_METHOD_GET_SYSTEM_BATCH = "GET_system_batch";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read several keys from 'secure'
+     */
+    public static final String CALL_METHOD_GET_SECURE_BATCH = "GET_secure_batch";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read several keys from 'global'
+     */
+    public static final String CALL_METHOD_GET_GLOBAL_BATCH = "GET_global_batch";
+
+    /**
+     * @hide - Private call() method to write several keys to 'system' table
+     */
+    public static final String CALL_METHOD_PUT_SYSTEM_BATCH = "PUT_system_batch";
+
+    /**
+     * @hide - Private call() method to write several keys to 'secure' table
+     */
+    public static final String CALL_METHOD_PUT_SECURE_BATCH = "PUT_secure_batch";
+
+    /**
+     * @hide - Private call() method to write several keys to 'global' table
+     */
+    public static final String CALL_METHOD_PUT_GLOBAL_BATCH = "PUT_global_batch";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read the whole 'system' table
+     */
+    public static final String CALL_METHOD_GET_SYSTEM_ALL = "GET_system_all";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read the whole 'secure' table
+     */
+    public static final String CALL_METHOD_GET_SECURE_ALL = "GET_secure_all";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read the whole 'global' table
+     */
+    public static final String CALL_METHOD_GET_GLOBAL_ALL = "GET_global_all";
+
+    /**
+     * @hide - Long argument extra holding a settings version (generation) for the change log
+     * call()-based requests
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to list the 'system' keys changed
+     * since a settings version
+     */
+    public static final String CALL_METHOD_GET_SYSTEM_CHANGES = "GET_system_changes";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to list the 'secure' keys changed
+     * since a settings version
+     */
+    public static final String CALL_METHOD_GET_SECURE_CHANGES = "GET_secure_changes";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to list the 'global' keys changed
+     * since a settings version
+     */
+    public static final String CALL_METHOD_GET_GLOBAL_CHANGES = "GET_global_changes";
+
     /**
      * @hide - Private call() method on MKSettingsProvider to migrate MK settings
      */
@@ -126,6 +212,11 @@ public final class MKSettings {
      */
     public static final String CALL_METHOD_MIGRATE_SETTINGS_FOR_USER = "migrate_settings_for_user";
 
+    /**
+     * @hide - Private call() method on MKSettingsProvider to persist pending writes to disk
+     */
+    public static final String CALL_METHOD_SYNC_SETTINGS = "sync_settings";
+
     // endregion
 
     // Thread-safe.
@@ -137,32 +228,326 @@ public final class MKSettings {
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // Stored for keys that are known to have no value -- negative caching.
+        static final CachedValue NULL_VALUE = new CachedValue(null);
 
-        // Initially null; set lazily and held forever.  Synchronized on 'this'.
-        private IContentProvider mContentProvider = null;
+        // Per key cache for our own user, read without locking. Evictions never modify the
+        // current map but publish a new one (copy-on-write), so a stale value put into a
+        // superseded map can't leak into the current one. Replaced while holding 'this'.
+        private volatile Values mValues =
+                new Values(0, new ConcurrentHashMap<String, CachedValue>());
+
+        // Initially null; set lazily and held forever.  Written while holding 'this'.
+        private volatile IContentProvider mContentProvider = null;
 
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallGetBatchCommand;
+        private final String mCallSetBatchCommand;
+        private final String mCallGetAllCommand;
+        private final String mCallGetChangesCommand;
+
+        // Whether the first miss after an invalidation fetches the whole table.
+        private volatile boolean mPrefetchEnabled = false;
+
+        // Immutable copy of the whole table for our own user, read without locking.
+        // Only set in prefetch mode; written while holding mSnapshotLock.
+        private volatile Snapshot mSnapshot = null;
+        private final Object mSnapshotLock = new Object();
+
+        /**
+         * A setting value as stored in the caches. Its numeric interpretations are parsed on
+         * first use and then kept along with the string, so repeated typed reads of a cached
+         * setting neither parse nor allocate.
+         */
+        static final class CachedValue {
+            private static final int INT_PARSED = 1 << 0;
+            private static final int INT_VALID = 1 << 1;
+            private static final int LONG_PARSED = 1 << 2;
+            private static final int LONG_VALID = 1 << 3;
+            private static final int FLOAT_PARSED = 1 << 4;
+            private static final int FLOAT_VALID = 1 << 5;
+
+            final String mValue;
+
+            // The parsed values are written before the flags that publish them. Threads parsing
+            // concurrently may drop each other's flags, which only costs another parse.
+            private int mInt;
+            private long mLong;
+            private float mFloat;
+            private volatile int mFlags;
+
+            CachedValue(String value) {
+                mValue = value;
+            }
+
+            static CachedValue of(String value) {
+                return value == null ? NULL_VALUE : new CachedValue(value);
+            }
+
+            boolean isInt() {
+                return (intFlags() & INT_VALID) != 0;
+            }
+
+            int getInt(int def) {
+                return (intFlags() & INT_VALID) != 0 ? mInt : def;
+            }
+
+            boolean isLong() {
+                return (longFlags() & LONG_VALID) != 0;
+            }
+
+            long getLong(long def) {
+                return (longFlags() & LONG_VALID) != 0 ? mLong : def;
+            }
+
+            boolean isFloat() {
+                return (floatFlags() & FLOAT_VALID) != 0;
+            }
+
+            float getFloat(float def) {
+                return (floatFlags() & FLOAT_VALID) != 0 ? mFloat : def;
+            }
+
+            private int intFlags() {
+                final int flags = mFlags;
+                if ((flags & INT_PARSED) != 0) {
+                    return flags;
+                }
+                int parsed = INT_PARSED;
+                if (mValue != null) {
+                    try {
+                        mInt = Integer.parseInt(mValue);
+                        parsed |= INT_VALID;
+                    } catch (NumberFormatException e) {
+                        // Not an integer, the callers fall back
+                    }
+                }
+                return mFlags |= parsed;
+            }
+
+            private int longFlags() {
+                final int flags = mFlags;
+                if ((flags & LONG_PARSED) != 0) {
+                    return flags;
+                }
+                int parsed = LONG_PARSED;
+                if (mValue != null) {
+                    try {
+                        mLong = Long.parseLong(mValue);
+                        parsed |= LONG_VALID;
+                    } catch (NumberFormatException e) {
+                        // Not a long, the callers fall back
+                    }
+                }
+                return mFlags |= parsed;
+            }
+
+            private int floatFlags() {
+                final int flags = mFlags;
+                if ((flags & FLOAT_PARSED) != 0) {
+                    return flags;
+                }
+                int parsed = FLOAT_PARSED;
+                if (mValue != null) {
+                    try {
+                        mFloat = Float.parseFloat(mValue);
+                        parsed |= FLOAT_VALID;
+                    } catch (NumberFormatException e) {
+                        // Not a float, the callers fall back
+                    }
+                }
+                return mFlags |= parsed;
+            }
+        }
+
+        private static final class Values {
+            final long mVersion;
+            final ConcurrentHashMap<String, CachedValue> mMap;
+
+            Values(long version, ConcurrentHashMap<String, CachedValue> map) {
+                mVersion = version;
+                mMap = map;
+            }
+        }
+
+        private static final class Snapshot {
+            final long mVersion;
+            final Map<String, CachedValue> mValues;
+
+            Snapshot(long version, Map<String, CachedValue> values) {
+                mVersion = version;
+                mValues = values;
+            }
+        }
 
         public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
+                String getCommand, String setCommand,
+                String getBatchCommand, String setBatchCommand, String getAllCommand,
+                String getChangesCommand) {
             mVersionSystemProperty = versionSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallGetBatchCommand = getBatchCommand;
+            mCallSetBatchCommand = setBatchCommand;
+            mCallGetAllCommand = getAllCommand;
+            mCallGetChangesCommand = getChangesCommand;
         }
 
-        private IContentProvider lazyGetProvider(ContentResolver cr) {
-            IContentProvider cp;
+        /**
+         * Brings the per key cache up to date with the given settings version. Only the keys
+         * that changed since the cached version are evicted, as reported by the provider's
+         * change log; if the provider can no longer tell, the whole cache is cleared.
+         * @return The values that are current now.
+         */
+        private Values updateValues(ContentResolver cr, long newValuesVersion) {
+            final Values values = mValues;
+            if (values.mVersion == newValuesVersion) {
+                return values;
+            }
+            if (values.mMap.isEmpty() || mCallGetChangesCommand == null) {
+                return replaceValues(values, newValuesVersion, null);
+            }
+
+            String[] changedNames = null;
+            long changesVersion = newValuesVersion;
+            try {
+                Bundle args = new Bundle();
+                args.putLong(CALL_METHOD_GENERATION_KEY, values.mVersion);
+                Bundle b = lazyGetProvider(cr).call(cr.getPackageName(), mCallGetChangesCommand,
+                        null, args);
+                if (b != null) {
+                    changedNames = b.getStringArray(CALL_METHOD_NAMES_KEY);
+                    changesVersion = b.getLong(CALL_METHOD_GENERATION_KEY, newValuesVersion);
+                }
+            } catch (RemoteException e) {
+                // Not supported by the remote side? Fall back to clearing everything.
+            }
+            if (changesVersion < newValuesVersion) {
+                // The log is behind the version we observed, it can't be complete
+                changedNames = null;
+                changesVersion = newValuesVersion;
+            }
+
+            return replaceValues(values, changesVersion, changedNames);
+        }
+
+        /**
+         * Publishes a new version of the per key cache, unless another thread already replaced
+         * the expected one.
+         * @param expected The values the caller wants to replace.
+         * @param version The version of the new values.
+         * @param evictedNames The keys to drop, or null to drop everything.
+         * @return The values that are current now.
+         */
+        private Values replaceValues(Values expected, long version, String[] evictedNames) {
             synchronized (this) {
-                cp = mContentProvider;
-                if (cp == null) {
-                    cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
+                if (mValues != expected) {
+                    // Another thread got here first
+                    return mValues;
+                }
+
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
+                            + version + " != cached " + expected.mVersion + ", evicting "
+                            + (evictedNames == null ? "all" : Arrays.toString(evictedNames)));
+                }
+
+                final ConcurrentHashMap<String, CachedValue> map;
+                if (evictedNames == null) {
+                    map = new ConcurrentHashMap<String, CachedValue>();
+                } else {
+                    map = new ConcurrentHashMap<String, CachedValue>(expected.mMap);
+                    for (String name : evictedNames) {
+                        map.remove(name);
+                    }
+                }
+                mValues = new Values(version, map);
+                return mValues;
+            }
+        }
+
+        /**
+         * Caches a value fetched from the provider, unless the table changed since the given
+         * values were current. Keys are only evicted when they change, so a value read
+         * concurrently with a change must never be cached.
+         */
+        private void putValue(Values values, String name, CachedValue value) {
+            if (mValues == values
+                    && SystemProperties.getLong(mVersionSystemProperty, 0) == values.mVersion) {
+                values.mMap.put(name, value);
+            }
+        }
+
+        /**
+         * Enables or disables prefetch mode. In prefetch mode the first lookup after the table
+         * changed fetches all of its name/value pairs with a single call, and later lookups are
+         * served from an immutable snapshot without taking any lock.
+         * @param enabled Whether to prefetch the whole table.
+         */
+        public void setPrefetchEnabled(boolean enabled) {
+            mPrefetchEnabled = enabled;
+            if (!enabled) {
+                mSnapshot = null;
+            }
+        }
+
+        /**
+         * Returns a snapshot of the whole table for our own user that is current for the given
+         * settings version, fetching it from the provider if needed.
+         * @return The snapshot, or null if it could not be fetched.
+         */
+        private Snapshot getSnapshot(ContentResolver cr, long version) {
+            Snapshot snapshot = mSnapshot;
+            if (snapshot != null && snapshot.mVersion == version) {
+                return snapshot;
+            }
+
+            synchronized (mSnapshotLock) {
+                // Another thread may have fetched it while we were waiting
+                snapshot = mSnapshot;
+                if (snapshot != null && snapshot.mVersion == version) {
+                    return snapshot;
+                }
+
+                Bundle b;
+                try {
+                    b = lazyGetProvider(cr).call(cr.getPackageName(), mCallGetAllCommand,
+                            null, null);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Can't prefetch " + mUri, e);
+                    return null;
+                }
+                if (b == null) {
+                    return null;
+                }
+
+                final HashMap<String, CachedValue> values =
+                        new HashMap<String, CachedValue>(b.size());
+                for (String key : b.keySet()) {
+                    values.put(key, CachedValue.of(b.getString(key)));
+                }
+                snapshot = new Snapshot(version, Collections.unmodifiableMap(values));
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "prefetched [" + mUri.getLastPathSegment() + "]: "
+                            + values.size() + " key(s) at version " + version);
+                }
+                mSnapshot = snapshot;
+                return snapshot;
+            }
+        }
+
+        private IContentProvider lazyGetProvider(ContentResolver cr) {
+            IContentProvider cp = mContentProvider;
+            if (cp == null) {
+                synchronized (this) {
+                    cp = mContentProvider;
+                    if (cp == null) {
+                        cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
+                    }
                 }
             }
             return cp;
@@ -191,6 +576,140 @@ public final class MKSettings {
             return true;
         }
 
+        /**
+         * Puts several string name/value pairs into the content provider for the specified user
+         * with a single call.
+         * @param cr The content resolver to use.
+         * @param names The names of the keys to put into the content provider.
+         * @param values The values to put into the content provider, in the same order as names.
+         * @param userId The user id to use for the content provider.
+         * @return Whether every value was put.
+         */
+        public boolean putStringsForUser(ContentResolver cr, String[] names, String[] values,
+                final int userId) {
+            if (names.length != values.length) {
+                throw new IllegalArgumentException("Names and values must have the same length");
+            }
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, values);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = lazyGetProvider(cr);
+                Bundle b = cp.call(cr.getPackageName(), mCallSetBatchCommand, null, arg);
+                final int count = (b != null) ? b.getInt(CALL_METHOD_COUNT_KEY, 0) : 0;
+                if (count != names.length) {
+                    Log.w(TAG, "Only " + count + " of keys " + Arrays.toString(names)
+                            + " were set in " + mUri);
+                    return false;
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set keys " + Arrays.toString(names) + " in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gets several string values from the name/value cache if possible. All keys that are
+         * not cached are fetched from the content provider with a single call.
+         * @param cr Content resolver to use if name/value cache does not contain a name or if
+         *           the cache version is older than the current version.
+         * @param names The names of the keys to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The string values of the specified keys, in the same order as names.
+         */
+        public String[] getStringsForUser(ContentResolver cr, String[] names, final int userId) {
+            final String[] values = new String[names.length];
+            final boolean isSelf = (userId == UserHandle.myUserId());
+
+            if (isSelf && mPrefetchEnabled) {
+                final Snapshot snapshot = getSnapshot(cr,
+                        SystemProperties.getLong(mVersionSystemProperty, 0));
+                if (snapshot != null) {
+                    for (int i = 0; i < names.length; i++) {
+                        final CachedValue value = snapshot.mValues.get(names[i]);
+                        values[i] = value != null ? value.mValue : null;
+                    }
+                    return values;
+                }
+                // Otherwise fall back to fetching only what we need
+            }
+
+            // Indices into names of the keys that need to be fetched
+            int[] misses = new int[names.length];
+            int missCount = 0;
+
+            Values cachedValues = null;
+            if (isSelf) {
+                cachedValues = mValues;
+                final long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+                if (cachedValues.mVersion != newValuesVersion) {
+                    cachedValues = updateValues(cr, newValuesVersion);
+                }
+
+                for (int i = 0; i < names.length; i++) {
+                    final CachedValue cached = cachedValues.mMap.get(names[i]);
+                    if (cached != null) {
+                        values[i] = cached.mValue;
+                    } else {
+                        misses[missCount++] = i;
+                    }
+                }
+            } else {
+                for (int i = 0; i < names.length; i++) {
+                    misses[i] = i;
+                }
+                missCount = names.length;
+            }
+
+            if (missCount == 0) {
+                return values;
+            }
+
+            final String[] missingNames = new String[missCount];
+            for (int i = 0; i < missCount; i++) {
+                missingNames[i] = names[misses[i]];
+            }
+
+            Bundle b = null;
+            if (mCallGetBatchCommand != null) {
+                try {
+                    Bundle args = new Bundle();
+                    args.putStringArray(CALL_METHOD_NAMES_KEY, missingNames);
+                    if (!isSelf) {
+                        args.putInt(CALL_METHOD_USER_KEY, userId);
+                    }
+                    b = lazyGetProvider(cr).call(cr.getPackageName(), mCallGetBatchCommand,
+                            null, args);
+                } catch (RemoteException e) {
+                    // Not supported by the remote side? Fall back to single lookups.
+                }
+            }
+
+            if (b == null) {
+                for (int i = 0; i < missCount; i++) {
+                    values[misses[i]] = getStringForUser(cr, missingNames[i], userId);
+                }
+                return values;
+            }
+
+            for (int i = 0; i < missCount; i++) {
+                values[misses[i]] = b.getString(missingNames[i]);
+            }
+            // Don't update our cache for reads of other users' data
+            if (isSelf) {
+                for (int i = 0; i < missCount; i++) {
+                    putValue(cachedValues, missingNames[i], CachedValue.of(values[misses[i]]));
+                }
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "batch cache miss [" + mUri.getLastPathSegment() + "]: "
+                        + missCount + " of " + names.length + " key(s)");
+            }
+            return values;
+        }
+
         /**
          * Gets a string value with the specified name from the name/value cache if possible. If
          * not, it will use the content resolver and perform a query.
@@ -201,26 +720,40 @@ public final class MKSettings {
          * @return The string value of the specified key.
          */
         public String getStringForUser(ContentResolver cr, String name, final int userId) {
+            return getValueForUser(cr, name, userId).mValue;
+        }
+
+        /**
+         * Gets the value with the specified name like {@link #getStringForUser}, wrapped so
+         * that its typed interpretations can be read without parsing it again.
+         * @return The value of the specified key, never null.
+         */
+        public CachedValue getValueForUser(ContentResolver cr, String name, final int userId) {
             final boolean isSelf = (userId == UserHandle.myUserId());
+            Values cachedValues = null;
             if (isSelf) {
                 if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
                 long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
 
-                // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
-
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
+                if (mPrefetchEnabled) {
+                    // The snapshot holds the whole table, so a missing key really is null
+                    final Snapshot snapshot = getSnapshot(cr, newValuesVersion);
+                    if (snapshot != null) {
+                        final CachedValue value = snapshot.mValues.get(name);
+                        return value != null ? value : NULL_VALUE;
                     }
+                    // Otherwise fall back to the per key cache
+                }
 
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
-                    }
+                // Our own user's settings data uses a client-side cache
+                cachedValues = mValues;
+                if (cachedValues.mVersion != newValuesVersion) {
+                    cachedValues = updateValues(cr, newValuesVersion);
+                }
+                final CachedValue cached = cachedValues.mMap.get(name);
+                if (cached != null) {
+                    // Could hold null, that's OK -- negative caching
+                    return cached;
                 }
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userId
@@ -242,12 +775,10 @@ public final class MKSettings {
                     }
                     Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
                     if (b != null) {
-                        String value = b.getPairValue();
+                        CachedValue value = CachedValue.of(b.getPairValue());
                         // Don't update our cache for reads of other users' data
                         if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
+                            putValue(cachedValues, name, value);
                         } else {
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
                                     + " by " + UserHandle.myUserId()
@@ -270,21 +801,21 @@ public final class MKSettings {
                 c = cp.query(cr.getPackageName(), mUri, SELECT_VALUE_PROJECTION, queryArgs, null);
                 if (c == null) {
                     Log.w(TAG, "Can't get key " + name + " from " + mUri);
-                    return null;
+                    return NULL_VALUE;
                 }
 
-                String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
+                CachedValue value = CachedValue.of(c.moveToNext() ? c.getString(0) : null);
+                if (isSelf) {
+                    putValue(cachedValues, name, value);
                 }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
-                            name + " = " + (value == null ? "(null)" : value));
+                            name + " = " + (value.mValue == null ? "(null)" : value.mValue));
                 }
                 return value;
             } catch (RemoteException e) {
                 Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
-                return null;  // Return null, but don't cache it.
+                return NULL_VALUE;  // Return null, but don't cache it.
             } finally {
                 if (c != null) c.close();
             }
@@ -301,16 +832,8 @@ public final class MKSettings {
     private static final Validator sBooleanValidator =
             new DiscreteValueValidator(new String[] {"0", "1"});
 
-    private static final Validator sNonNegativeIntegerValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                return Integer.parseInt(value) >= 0;
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-    };
+    private static final Validator sNonNegativeIntegerValidator =
+            new InclusiveIntegerRangeValidator(0, Integer.MAX_VALUE);
 
     private static final Validator sUriValidator = new Validator() {
         @Override
@@ -334,6 +857,56 @@ public final class MKSettings {
         }
     };
 
+    private static final Validator sUnitFloatValidator = new InclusiveFloatRangeValidator(0, 1);
+
+    // Returned by parseInt() for values that are not valid ints.
+    private static final long INVALID_INT = Long.MIN_VALUE;
+
+    /**
+     * Parses a decimal integer with the semantics of {@link Integer#parseInt(String)}, but
+     * reports invalid values by returning {@link #INVALID_INT} rather than throwing, so that
+     * validating a batch of bad values doesn't create an exception for each of them.
+     */
+    private static long parseInt(String value) {
+        if (value == null) {
+            return INVALID_INT;
+        }
+        final int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        if (i == length) {
+            return INVALID_INT;
+        }
+
+        long result = 0;
+        for (; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                if (c < 0x80) {
+                    return INVALID_INT;
+                }
+                // Integer.parseInt() also accepts non-ASCII digits, leave those to it
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    return INVALID_INT;
+                }
+            }
+            result = result * 10 + (c - '0');
+            if (result > (long) Integer.MAX_VALUE + 1) {
+                return INVALID_INT;
+            }
+        }
+        if (negative) {
+            result = -result;
+        }
+        return result > Integer.MAX_VALUE ? INVALID_INT : result;
+    }
+
     private static final class DiscreteValueValidator implements Validator {
         private final String[] mValues;
 
@@ -358,12 +931,8 @@ public final class MKSettings {
 
         @Override
         public boolean validate(String value) {
-            try {
-                final int intValue = Integer.parseInt(value);
-                return intValue >= mMin && intValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
+            final long intValue = parseInt(value);
+            return intValue != INVALID_INT && intValue >= mMin && intValue <= mMax;
         }
     }
 
@@ -388,40 +957,70 @@ public final class MKSettings {
     }
 
     private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
+        private final String[] mValidValues;
         private final String mDelimiter;
         private final boolean mAllowEmptyList;
 
         public DelimitedListValidator(String[] validValues, String delimiter,
                                       boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+            mValidValues = validValues;
             mDelimiter = delimiter;
             mAllowEmptyList = allowEmptyList;
         }
 
         @Override
         public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
+            // Walk the items in place rather than splitting the value, empty items are skipped
+            boolean hasItems = false;
             if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
+                final int length = value.length();
+                int start = 0;
+                while (start <= length) {
+                    int end = value.indexOf(mDelimiter, start);
+                    if (end < 0) {
+                        end = length;
                     }
-                    values.add(item);
+                    if (end > start) {
+                        if (!isValidItem(value, start, end - start)) {
+                            return false;
+                        }
+                        hasItems = true;
+                    }
+                    start = end + mDelimiter.length();
                 }
             }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
-                return true;
+            return hasItems || mAllowEmptyList;
+        }
+
+        private boolean isValidItem(String value, int start, int length) {
+            for (String validValue : mValidValues) {
+                if (validValue.length() == length
+                        && value.regionMatches(start, validValue, 0, length)) {
+                    return true;
+                }
             }
+            return false;
+        }
+    }
 
+    /**
+     * Returns whether a list delimited by a single character contains an empty item, including
+     * leading and trailing empty items as {@link TextUtils#split(String, String)} reports them.
+     */
+    private static boolean hasEmptyItem(String value, char delimiter) {
+        final int length = value.length();
+        if (length == 0) {
             return false;
         }
+        if (value.charAt(0) == delimiter || value.charAt(length - 1) == delimiter) {
+            return true;
+        }
+        for (int i = 1; i < length; i++) {
+            if (value.charAt(i) == delimiter && value.charAt(i - 1) == delimiter) {
+                return true;
+            }
+        }
+        return false;
     }
     // endregion Validators
 
@@ -438,7 +1037,11 @@ public final class MKSettings {
                 SYS_PROP_MK_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_GET_SYSTEM_BATCH,
+                CALL_METHOD_PUT_SYSTEM_BATCH,
+                CALL_METHOD_GET_SYSTEM_ALL,
+                CALL_METHOD_GET_SYSTEM_CHANGES);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_SECURE;
@@ -497,6 +1100,17 @@ public final class MKSettings {
             return Settings.NameValueTable.getUriFor(CONTENT_URI, name);
         }
 
+        /**
+         * Enables or disables whole-table prefetching for this process. When enabled, the first
+         * lookup after any setting in this table changed fetches the entire table at once, and
+         * further lookups for the calling user are served from memory without locking.
+         * @param enabled whether to prefetch the whole table
+         * @hide
+         */
+        public static void setPrefetchEnabled(boolean enabled) {
+            sNameValueCache.setPrefetchEnabled(enabled);
+        }
+
         /**
          * Look up a name in the database.
          * @param resolver to access the database with
@@ -510,12 +1124,49 @@ public final class MKSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getValueForUser(resolver, name, userId).mValue;
+        }
+
+        private static NameValueCache.CachedValue getValueForUser(ContentResolver resolver,
+                String name, int userId) {
             if (MOVED_TO_SECURE.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from MKSettings.System"
                         + " to MKSettings.Secure, value is unchanged.");
-                return MKSettings.Secure.getStringForUser(resolver, name, userId);
+                return MKSettings.Secure.getValueForUser(resolver, name, userId);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        /**
+         * Look up several names in the database with a single round trip for all names that
+         * are not cached.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId the user to look the names up for
+         * @return the corresponding values, or null for names that are not present
+         * @hide
+         */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            // Moved names are looked up in their new table, so leave them out of the batch
+            final ArrayList<String> batchNames = new ArrayList<String>(names.length);
+            for (String name : names) {
+                if (!MOVED_TO_SECURE.contains(name)) {
+                    batchNames.add(name);
+                }
+            }
+            if (batchNames.size() == names.length) {
+                return sNameValueCache.getStringsForUser(resolver, names, userId);
+            }
+
+            final String[] batchValues = sNameValueCache.getStringsForUser(resolver,
+                    batchNames.toArray(new String[batchNames.size()]), userId);
+            final String[] values = new String[names.length];
+            for (int i = 0, j = 0; i < names.length; i++) {
+                values[i] = MOVED_TO_SECURE.contains(names[i])
+                        ? getStringForUser(resolver, names[i], userId) : batchValues[j++];
+            }
+            return values;
         }
 
         /**
@@ -540,6 +1191,27 @@ public final class MKSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database with a single round trip.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, in the same order
+         * @param userId the user to store the values for
+         * @return true if all of the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from MKSettings.System"
+                            + " to MKSettings.Secure, value is unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -560,12 +1232,7 @@ public final class MKSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getInt(def);
         }
 
         /**
@@ -594,12 +1261,11 @@ public final class MKSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isInt()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getInt(0);
         }
 
         /**
@@ -646,14 +1312,7 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getValueForUser(cr, name, userId).getLong(def);
         }
 
         /**
@@ -681,12 +1340,11 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isLong()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getLong(0);
         }
 
         /**
@@ -733,12 +1391,7 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getFloat(def);
         }
 
         /**
@@ -767,15 +1420,11 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new MKSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isFloat()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getFloat(0);
         }
 
         /**
@@ -1492,11 +2141,10 @@ public final class MKSettings {
                         if (colorAdjustment != null && colorAdjustment.length != 3) {
                             return false;
                         }
-                        Validator floatValidator = new InclusiveFloatRangeValidator(0, 1);
                         return colorAdjustment == null ||
-                                floatValidator.validate(colorAdjustment[0]) &&
-                                floatValidator.validate(colorAdjustment[1]) &&
-                                floatValidator.validate(colorAdjustment[2]);
+                                sUnitFloatValidator.validate(colorAdjustment[0]) &&
+                                sUnitFloatValidator.validate(colorAdjustment[1]) &&
+                                sUnitFloatValidator.validate(colorAdjustment[2]);
                     }
                 };
 
@@ -2234,7 +2882,11 @@ public final class MKSettings {
                 SYS_PROP_MK_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_GET_SECURE_BATCH,
+                CALL_METHOD_PUT_SECURE_BATCH,
+                CALL_METHOD_GET_SECURE_ALL,
+                CALL_METHOD_GET_SECURE_CHANGES);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_GLOBAL;
@@ -2293,6 +2945,17 @@ public final class MKSettings {
             return Settings.NameValueTable.getUriFor(CONTENT_URI, name);
         }
 
+        /**
+         * Enables or disables whole-table prefetching for this process. When enabled, the first
+         * lookup after any setting in this table changed fetches the entire table at once, and
+         * further lookups for the calling user are served from memory without locking.
+         * @param enabled whether to prefetch the whole table
+         * @hide
+         */
+        public static void setPrefetchEnabled(boolean enabled) {
+            sNameValueCache.setPrefetchEnabled(enabled);
+        }
+
         /**
          * Look up a name in the database.
          * @param resolver to access the database with
@@ -2306,12 +2969,49 @@ public final class MKSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getValueForUser(resolver, name, userId).mValue;
+        }
+
+        private static NameValueCache.CachedValue getValueForUser(ContentResolver resolver,
+                String name, int userId) {
             if (MOVED_TO_GLOBAL.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from MKSettings.Secure"
                         + " to MKSettings.Global, value is unchanged.");
-                return MKSettings.Global.getStringForUser(resolver, name, userId);
+                return MKSettings.Global.getValueForUser(resolver, name, userId);
+            }
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        /**
+         * Look up several names in the database with a single round trip for all names that
+         * are not cached.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId the user to look the names up for
+         * @return the corresponding values, or null for names that are not present
+         * @hide
+         */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            // Moved names are looked up in their new table, so leave them out of the batch
+            final ArrayList<String> batchNames = new ArrayList<String>(names.length);
+            for (String name : names) {
+                if (!MOVED_TO_GLOBAL.contains(name)) {
+                    batchNames.add(name);
+                }
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            if (batchNames.size() == names.length) {
+                return sNameValueCache.getStringsForUser(resolver, names, userId);
+            }
+
+            final String[] batchValues = sNameValueCache.getStringsForUser(resolver,
+                    batchNames.toArray(new String[batchNames.size()]), userId);
+            final String[] values = new String[names.length];
+            for (int i = 0, j = 0; i < names.length; i++) {
+                values[i] = MOVED_TO_GLOBAL.contains(names[i])
+                        ? getStringForUser(resolver, names[i], userId) : batchValues[j++];
+            }
+            return values;
         }
 
         /**
@@ -2336,6 +3036,27 @@ public final class MKSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database with a single round trip.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, in the same order
+         * @param userId the user to store the values for
+         * @return true if all of the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            for (String name : names) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from MKSettings.Secure"
+                            + " to MKSettings.Global, value is unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2356,12 +3077,7 @@ public final class MKSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getInt(def);
         }
 
         /**
@@ -2390,12 +3106,11 @@ public final class MKSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isInt()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getInt(0);
         }
 
         /**
@@ -2442,14 +3157,7 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getValueForUser(cr, name, userId).getLong(def);
         }
 
         /**
@@ -2477,12 +3185,11 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isLong()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getLong(0);
         }
 
         /**
@@ -2529,12 +3236,7 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getFloat(def);
         }
 
         /**
@@ -2563,15 +3265,11 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new MKSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isFloat()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getFloat(0);
         }
 
         /**
@@ -2969,16 +3667,13 @@ public final class MKSettings {
          * @hide
          */
         public static final Validator PROTECTED_COMPONENTS_VALIDATOR = new Validator() {
-            private final String mDelimiter = "|";
+            private static final char DELIMITER = '|';
 
             @Override
             public boolean validate(String value) {
                 if (!TextUtils.isEmpty(value)) {
-                    final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                    for (String item : array) {
-                        if (TextUtils.isEmpty(item)) {
-                            return false; // Empty components not allowed
-                        }
+                    if (hasEmptyItem(value, DELIMITER)) {
+                        return false; // Empty components not allowed
                     }
                 }
                 return true;  // Empty list is allowed though.
@@ -2989,16 +3684,13 @@ public final class MKSettings {
          * @hide
          */
         public static final Validator PROTECTED_COMPONENTS_MANAGER_VALIDATOR = new Validator() {
-            private final String mDelimiter = "|";
+            private static final char DELIMITER = '|';
 
             @Override
             public boolean validate(String value) {
                 if (!TextUtils.isEmpty(value)) {
-                    final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                    for (String item : array) {
-                        if (TextUtils.isEmpty(item)) {
-                            return false; // Empty components not allowed
-                        }
+                    if (hasEmptyItem(value, DELIMITER)) {
+                        return false; // Empty components not allowed
                     }
                 }
                 return true;  // Empty list is allowed though.
@@ -3051,7 +3743,11 @@ public final class MKSettings {
                 SYS_PROP_MK_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL);
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_GET_GLOBAL_BATCH,
+                CALL_METHOD_PUT_GLOBAL_BATCH,
+                CALL_METHOD_GET_GLOBAL_ALL,
+                CALL_METHOD_GET_GLOBAL_CHANGES);
 
         // region Methods
 
@@ -3104,6 +3800,17 @@ public final class MKSettings {
             return Settings.NameValueTable.getUriFor(CONTENT_URI, name);
         }
 
+        /**
+         * Enables or disables whole-table prefetching for this process. When enabled, the first
+         * lookup after any setting in this table changed fetches the entire table at once, and
+         * further lookups for the calling user are served from memory without locking.
+         * @param enabled whether to prefetch the whole table
+         * @hide
+         */
+        public static void setPrefetchEnabled(boolean enabled) {
+            sNameValueCache.setPrefetchEnabled(enabled);
+        }
+
         /**
          * Look up a name in the database.
          * @param resolver to access the database with
@@ -3117,7 +3824,26 @@ public final class MKSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return getValueForUser(resolver, name, userId).mValue;
+        }
+
+        private static NameValueCache.CachedValue getValueForUser(ContentResolver resolver,
+                String name, int userId) {
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        /**
+         * Look up several names in the database with a single round trip for all names that
+         * are not cached.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId the user to look the names up for
+         * @return the corresponding values, or null for names that are not present
+         * @hide
+         */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
         }
 
         /**
@@ -3137,6 +3863,20 @@ public final class MKSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database with a single round trip.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, in the same order
+         * @param userId the user to store the values for
+         * @return true if all of the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -3157,12 +3897,7 @@ public final class MKSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getInt(def);
         }
 
         /**
@@ -3191,12 +3926,11 @@ public final class MKSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isInt()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getInt(0);
         }
 
         /**
@@ -3243,14 +3977,7 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getValueForUser(cr, name, userId).getLong(def);
         }
 
         /**
@@ -3278,12 +4005,11 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isLong()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getLong(0);
         }
 
         /**
@@ -3330,12 +4056,7 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getFloat(def);
         }
 
         /**
@@ -3364,15 +4085,11 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new MKSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.isFloat()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.getFloat(0);
         }
 
         /**
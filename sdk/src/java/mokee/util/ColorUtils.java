@@ -24,6 +24,7 @@ import android.graphics.drawable.Drawable;
 import android.util.MathUtils;
 
 import mokee.util.palette.Palette;
+import mokee.util.palette.PaletteCache;
 
 import java.util.Collections;
 import java.util.Comparator;
@@ -34,11 +35,59 @@ import java.util.Comparator;
  */
 public class ColorUtils {
 
-    private static int[] SOLID_COLORS = new int[] {
+    private static final int[] SOLID_COLORS = new int[] {
         Color.RED, 0xFFFFA500, Color.YELLOW, Color.GREEN, Color.CYAN,
         Color.BLUE, Color.MAGENTA, Color.WHITE, Color.BLACK
     };
 
+    // Linear sRGB value of each 8-bit component
+    private static final float[] sLinearTable = new float[256];
+
+    static {
+        for (int i = 0; i < sLinearTable.length; i++) {
+            // assuming sRGB (D65)
+            float c = i / 255.f;
+            if (c <= 0.04045)
+                c = c / 12;
+            else
+                c = (float) Math.pow((c + 0.055) / 1.055, 2.4);
+            sLinearTable[i] = c;
+        }
+    }
+
+    // L*a*b values of SOLID_COLORS, three per color
+    private static final float[] SOLID_COLORS_LAB = new float[SOLID_COLORS.length * 3];
+
+    static {
+        final float[] lab = new float[3];
+        for (int i = 0; i < SOLID_COLORS.length; i++) {
+            convertRGBtoLAB(SOLID_COLORS[i], lab);
+            System.arraycopy(lab, 0, SOLID_COLORS_LAB, i * 3, 3);
+        }
+    }
+
+    // Nearest solid color of each RGB555 cell, filled in lazily: 0 if not computed yet,
+    // SOLID_CELL_BOUNDARY if the cell is too close to a decision boundary to be answered as a
+    // whole, or else the index in SOLID_COLORS plus one
+    private static final byte[] sSolidColorCells = new byte[1 << 15];
+    private static final byte SOLID_CELL_BOUNDARY = -1;
+
+    // Minimum deltaE between the nearest and second nearest solid color at each corner of a
+    // cell, for the nearest one to be used for the whole cell. Checked against every RGB value.
+    private static final double SOLID_CELL_MIN_MARGIN = 4.0;
+
+    // Constant terms of the CIE 2000 colour difference
+    private static final double POW_25_7 = 6103515625.0;
+    private static final double COS_30 = Math.cos(Math.PI / 6.0);
+    private static final double SIN_30 = Math.sin(Math.PI / 6.0);
+    private static final double COS_6 = Math.cos(Math.PI / 30);
+    private static final double SIN_6 = Math.sin(Math.PI / 30);
+    private static final double COS_63 = Math.cos(21 * Math.PI / 60);
+    private static final double SIN_63 = Math.sin(21 * Math.PI / 60);
+
+    // Palettes of recently seen drawables, app icons tend to be asked for over and over
+    private static final PaletteCache sAlertPaletteCache = new PaletteCache(64, 64 * 1024);
+
     /**
      * Drop the alpha component from an RGBA packed int and return
      * a non sign-extended RGB int.
@@ -59,6 +108,18 @@ public class ColorUtils {
      */
     public static float[] convertRGBtoLAB(int rgb) {
         float[] lab = new float[3];
+        convertRGBtoLAB(rgb, lab);
+        return lab;
+    }
+
+    /**
+     * Converts an RGB packed int into L*a*b space, without allocating.
+     *
+     * @param rgb A 32-bit value of packed RGB ints
+     * @param outLab array of size 3 to write the Lab values to
+     * @hide
+     */
+    public static void convertRGBtoLAB(int rgb, float[] outLab) {
         float fx, fy, fz;
         float eps = 216.f / 24389.f;
         float k = 24389.f / 27.f;
@@ -67,26 +128,10 @@ public class ColorUtils {
         float Yr = 1.0f;
         float Zr = 0.825211f;
 
-        // RGB to XYZ
-        float r = Color.red(rgb) / 255.f; //R 0..1
-        float g = Color.green(rgb) / 255.f; //G 0..1
-        float b = Color.blue(rgb) / 255.f; //B 0..1
-
-        // assuming sRGB (D65)
-        if (r <= 0.04045)
-            r = r / 12;
-        else
-            r = (float) Math.pow((r + 0.055) / 1.055, 2.4);
-
-        if (g <= 0.04045)
-            g = g / 12;
-        else
-            g = (float) Math.pow((g + 0.055) / 1.055, 2.4);
-
-        if (b <= 0.04045)
-            b = b / 12;
-        else
-            b = (float) Math.pow((b + 0.055) / 1.055, 2.4);
+        // RGB to XYZ, with the sRGB components linearized through the table
+        float r = sLinearTable[Color.red(rgb)];
+        float g = sLinearTable[Color.green(rgb)];
+        float b = sLinearTable[Color.blue(rgb)];
 
         float X = 0.436052025f * r + 0.385081593f * g + 0.143087414f * b;
         float Y = 0.222491598f * r + 0.71688606f * g + 0.060621486f * b;
@@ -98,17 +143,17 @@ public class ColorUtils {
         float zr = Z / Zr;
 
         if (xr > eps)
-            fx = (float) Math.pow(xr, 1 / 3.);
+            fx = (float) Math.cbrt(xr);
         else
             fx = (float) ((k * xr + 16.) / 116.);
 
         if (yr > eps)
-            fy = (float) Math.pow(yr, 1 / 3.);
+            fy = (float) Math.cbrt(yr);
         else
             fy = (float) ((k * yr + 16.) / 116.);
 
         if (zr > eps)
-            fz = (float) Math.pow(zr, 1 / 3.);
+            fz = (float) Math.cbrt(zr);
         else
             fz = (float) ((k * zr + 16.) / 116);
 
@@ -116,11 +161,9 @@ public class ColorUtils {
         float as = 500 * (fx - fy);
         float bs = 200 * (fy - fz);
 
-        lab[0] = (2.55f * Ls + .5f);
-        lab[1] = (as + .5f);
-        lab[2] = (bs + .5f);
-
-        return lab;
+        outLab[0] = (2.55f * Ls + .5f);
+        outLab[1] = (as + .5f);
+        outLab[2] = (bs + .5f);
     }
 
     /**
@@ -193,6 +236,117 @@ public class ColorUtils {
         return deltaE;
     }
 
+    /**
+     * Converts RGB packed ints into L*a*b space, writing each component to a separate
+     * array so the result can be passed to
+     * {@link #calculateDeltaE(float, float, float, float[], float[], float[], int, float[])}.
+     *
+     * @param colors the colors to convert
+     * @param outL receives the L component of each color
+     * @param outA receives the a component of each color
+     * @param outB receives the b component of each color
+     * @hide
+     */
+    public static void convertRGBtoLAB(int[] colors, float[] outL, float[] outA, float[] outB) {
+        final float[] lab = new float[3];
+        for (int i = 0; i < colors.length; i++) {
+            convertRGBtoLAB(colors[i], lab);
+            outL[i] = lab[0];
+            outA[i] = lab[1];
+            outB[i] = lab[2];
+        }
+    }
+
+    /**
+     * Calculate the CIE 2000 colour difference between one colour and each of a number of
+     * colours in lab space. The terms which only depend on the first colour are computed once
+     * and the multiple angle cosines are derived from a single sine and cosine of the mean hue,
+     * so this is cheaper than calling
+     * {@link #calculateDeltaE(double, double, double, double, double, double)} for each colour.
+     * The results are rounded to float and can differ from it in the last bits, so colours
+     * which are nearly equidistant may compare differently.
+     *
+     * @param L1 first colour's L component
+     * @param a1 first colour's a component
+     * @param b1 first colour's b component
+     * @param L2 L components of the colours to compare with
+     * @param a2 a components of the colours to compare with
+     * @param b2 b components of the colours to compare with
+     * @param count number of colours to compare with
+     * @param outDeltaE receives the CIE 2000 colour difference to each colour
+     * @hide
+     */
+    public static void calculateDeltaE(float L1, float a1, float b1,
+            float[] L2, float[] a2, float[] b2, int count, float[] outDeltaE) {
+        final double C1 = Math.sqrt((double) a1 * a1 + (double) b1 * b1);
+        final double b1Squared = (double) b1 * b1;
+
+        for (int i = 0; i < count; i++) {
+            final double Lmean = (L1 + (double) L2[i]) / 2.0;
+            final double C2 = Math.sqrt((double) a2[i] * a2[i] + (double) b2[i] * b2[i]);
+            final double Cmean = (C1 + C2) / 2.0;
+
+            final double Cmean7 = pow7(Cmean);
+            final double G = (1 - Math.sqrt(Cmean7 / (Cmean7 + POW_25_7))) / 2;
+            final double a1prime = a1 * (1 + G);
+            final double a2prime = a2[i] * (1 + G);
+
+            final double C1prime = Math.sqrt(a1prime * a1prime + b1Squared);
+            final double C2prime = Math.sqrt(a2prime * a2prime + (double) b2[i] * b2[i]);
+            final double Cmeanprime = (C1prime + C2prime) / 2;
+
+            final double h1 = Math.atan2(b1, a1prime);
+            final double h2 = Math.atan2(b2[i], a2prime);
+            final double h1prime = h1 < 0 ? h1 + 2 * Math.PI : h1;
+            final double h2prime = h2 < 0 ? h2 + 2 * Math.PI : h2;
+            final double hdiff = h2prime - h1prime;
+            final boolean wrap = Math.abs(hdiff) > Math.PI;
+            final double Hmeanprime = wrap
+                    ? (h1prime + h2prime + 2 * Math.PI) / 2 : (h1prime + h2prime) / 2;
+
+            // cos(nH + x) from cos(H) and sin(H) with the multiple angle formulas
+            final double cosH = Math.cos(Hmeanprime);
+            final double sinH = Math.sin(Hmeanprime);
+            final double cos2H = 2 * cosH * cosH - 1;
+            final double sin2H = 2 * sinH * cosH;
+            final double cos3H = cosH * (4 * cosH * cosH - 3);
+            final double sin3H = sinH * (3 - 4 * sinH * sinH);
+            final double cos4H = 2 * cos2H * cos2H - 1;
+            final double sin4H = 2 * sin2H * cos2H;
+            final double T = 1.0 - 0.17 * (cosH * COS_30 + sinH * SIN_30)
+                    + 0.24 * cos2H + 0.32 * (cos3H * COS_6 - sin3H * SIN_6)
+                    - 0.2 * (cos4H * COS_63 + sin4H * SIN_63);
+
+            final double deltahprime = !wrap ? hdiff
+                    : h2prime <= h1prime ? hdiff + 2 * Math.PI : hdiff - 2 * Math.PI;
+
+            final double deltaLprime = L2[i] - (double) L1;
+            final double deltaCprime = C2prime - C1prime;
+            final double deltaHprime = 2.0 * Math.sqrt(C1prime * C2prime)
+                    * Math.sin(deltahprime / 2.0);
+            final double Lmean50 = (Lmean - 50) * (Lmean - 50);
+            final double SL = 1.0 + ((0.015 * Lmean50) / (Math.sqrt(20 + Lmean50)));
+            final double SC = 1.0 + 0.045 * Cmeanprime;
+            final double SH = 1.0 + 0.015 * Cmeanprime * T;
+
+            final double hue = (180 / Math.PI * Hmeanprime - 275) / 25;
+            final double deltaTheta = (30 * Math.PI / 180) * Math.exp(-hue * hue);
+            final double Cmeanprime7 = pow7(Cmeanprime);
+            final double RC = 2 * Math.sqrt(Cmeanprime7 / (Cmeanprime7 + POW_25_7));
+            final double RT = -RC * Math.sin(2 * deltaTheta);
+
+            final double dL = deltaLprime / SL;
+            final double dC = deltaCprime / SC;
+            final double dH = deltaHprime / SH;
+            outDeltaE[i] = (float) Math.sqrt(dL * dL + dC * dC + dH * dH + RT * dC * dH);
+        }
+    }
+
+    private static double pow7(double x) {
+        final double x2 = x * x;
+        return x2 * x2 * x2 * x;
+    }
+
     /**
      * Finds the "perceptually nearest" color from a list of colors to
      * the given RGB value. This is done by converting to
@@ -206,10 +360,12 @@ public class ColorUtils {
         int nearestColor = 0;
         double closest = Double.MAX_VALUE;
 
-        float[] original = convertRGBtoLAB(rgb);
+        float[] original = new float[3];
+        convertRGBtoLAB(rgb, original);
+        float[] cl = new float[3];
 
         for (int i = 0; i < colors.length; i++) {
-            float[] cl = convertRGBtoLAB(colors[i]);
+            convertRGBtoLAB(colors[i], cl);
             double deltaE = calculateDeltaE(original[0], original[1], original[2],
                                             cl[0], cl[1], cl[2]);
             if (deltaE < closest) {
@@ -230,7 +386,76 @@ public class ColorUtils {
      * @return the perceptually nearest color in RGB
      */
     public static int findPerceptuallyNearestSolidColor(int rgb) {
-        return findPerceptuallyNearestColor(rgb, SOLID_COLORS);
+        final int cell = (Color.red(rgb) >> 3) << 10 | (Color.green(rgb) >> 3) << 5
+                | (Color.blue(rgb) >> 3);
+        int entry = sSolidColorCells[cell];
+        if (entry == 0) {
+            // Racing threads compute the same value, so a plain write is fine
+            entry = computeSolidColorCell(cell);
+            sSolidColorCells[cell] = (byte) entry;
+        }
+        if (entry != SOLID_CELL_BOUNDARY) {
+            return SOLID_COLORS[entry - 1];
+        }
+        return SOLID_COLORS[findNearestSolidColorIndex(rgb, null)];
+    }
+
+    /**
+     * Finds the nearest solid color to each corner of an RGB555 cell.
+     *
+     * @return the index of the nearest solid color plus one if it is the same at every corner by
+     * a large enough margin, or {@link #SOLID_CELL_BOUNDARY}
+     */
+    private static int computeSolidColorCell(int cell) {
+        final int r0 = (cell >> 10) << 3;
+        final int g0 = ((cell >> 5) & 0x1f) << 3;
+        final int b0 = (cell & 0x1f) << 3;
+        final double[] margin = new double[1];
+
+        int nearest = -1;
+        for (int corner = 0; corner < 8; corner++) {
+            final int r = r0 + ((corner & 4) != 0 ? 7 : 0);
+            final int g = g0 + ((corner & 2) != 0 ? 7 : 0);
+            final int b = b0 + ((corner & 1) != 0 ? 7 : 0);
+            final int index = findNearestSolidColorIndex(Color.rgb(r, g, b), margin);
+            if ((nearest >= 0 && index != nearest) || margin[0] < SOLID_CELL_MIN_MARGIN) {
+                return SOLID_CELL_BOUNDARY;
+            }
+            nearest = index;
+        }
+        return nearest + 1;
+    }
+
+    /**
+     * @param outMargin if not null, receives the deltaE between the nearest and second nearest
+     * solid color
+     * @return the index of the perceptually nearest color in {@link #SOLID_COLORS}
+     */
+    private static int findNearestSolidColorIndex(int rgb, double[] outMargin) {
+        int nearest = 0;
+        double closest = Double.MAX_VALUE;
+        double secondClosest = Double.MAX_VALUE;
+
+        float[] original = new float[3];
+        convertRGBtoLAB(rgb, original);
+
+        // The solid colors are fixed, so their Lab values are computed once up front
+        for (int i = 0; i < SOLID_COLORS.length; i++) {
+            double deltaE = calculateDeltaE(original[0], original[1], original[2],
+                    SOLID_COLORS_LAB[i * 3], SOLID_COLORS_LAB[i * 3 + 1],
+                    SOLID_COLORS_LAB[i * 3 + 2]);
+            if (deltaE < closest) {
+                nearest = i;
+                secondClosest = closest;
+                closest = deltaE;
+            } else if (deltaE < secondClosest) {
+                secondClosest = deltaE;
+            }
+        }
+        if (outMargin != null) {
+            outMargin[0] = secondClosest - closest;
+        }
+        return nearest;
     }
 
     /**
@@ -282,7 +507,7 @@ public class ColorUtils {
         }
 
         if (bitmap != null) {
-            Palette p = Palette.from(bitmap).generate();
+            Palette p = Palette.from(bitmap).cache(sAlertPaletteCache).generate();
             if (p == null) {
                 return alertColor;
             }
@@ -317,11 +542,27 @@ public class ColorUtils {
      * @return array of floats representing rgb values 0->1
      */
     public static float[] temperatureToRGB(int degreesK) {
+        float[] rgb = new float[3];
+        temperatureToRGB(degreesK, rgb);
+        return rgb;
+    }
+
+    /**
+     * Convert a color temperature value (in Kelvin) to a RGB units as floats, without
+     * allocating. Suitable for use on each frame of an animation.
+     *
+     * @param degreesK
+     * @param outRGB array of size 3 to write the rgb values 0->1 to
+     * @hide
+     */
+    public static void temperatureToRGB(int degreesK, float[] outRGB) {
         int k = MathUtils.constrain(degreesK, 1000, 20000);
         float a = (k % 100) / 100.0f;
         int i = ((k - 1000)/ 100) * 3;
 
-        return new float[] { interp(i, a), interp(i+1, a), interp(i+2, a) };
+        outRGB[0] = interp(i, a);
+        outRGB[1] = interp(i+1, a);
+        outRGB[2] = interp(i+2, a);
     }
 
     private static float interp(int i, float a) {
@@ -48,11 +48,15 @@ final class ColorCutQuantizer {
     private static final String LOG_TAG = "ColorCutQuantizer";
     private static final boolean LOG_TIMINGS = false;
 
+    // Split boxes held in primitive arrays by VboxHeap rather than in Vbox objects. Both produce
+    // the same swatches, the Vbox implementation is kept as the reference.
+    private static final boolean USE_VBOX_HEAP = true;
+
     private static final int COMPONENT_RED = -3;
     private static final int COMPONENT_GREEN = -2;
     private static final int COMPONENT_BLUE = -1;
 
-    private static final int QUANTIZE_WORD_WIDTH = 5;
+    static final int QUANTIZE_WORD_WIDTH = 5;
     private static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
 
     final int[] mColors;
@@ -66,26 +70,39 @@ final class ColorCutQuantizer {
     /**
      * Constructor.
      *
-     * @param pixels histogram representing an image's pixel data
+     * @param pixels array of an image's RGB888 pixel data
      * @param maxColors The maximum number of colors that should be in the result palette.
      * @param filters Set of filters to use in the quantization stage
      */
     ColorCutQuantizer(final int[] pixels, final int maxColors, final Palette.Filter[] filters) {
+        this(createHistogram(pixels), maxColors, filters);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param histogram histogram representing an image's pixel data. The quantizer takes
+     *                  ownership of it, it must not be modified afterwards.
+     * @param maxColors The maximum number of colors that should be in the result palette.
+     * @param filters Set of filters to use in the quantization stage
+     */
+    ColorCutQuantizer(final ColorHistogram histogram, final int maxColors,
+            final Palette.Filter[] filters) {
+        this(histogram, maxColors, filters, USE_VBOX_HEAP);
+    }
+
+    /**
+     * Constructor which picks how split boxes are held, to compare both implementations.
+     *
+     * @param useVboxHeap whether to split the boxes with {@link VboxHeap} rather than
+     *                    {@link Vbox}
+     */
+    ColorCutQuantizer(final ColorHistogram histogram, final int maxColors,
+            final Palette.Filter[] filters, final boolean useVboxHeap) {
         mTimingLogger = LOG_TIMINGS ? new TimingLogger(LOG_TAG, "Creation") : null;
         mFilters = filters;
 
-        final int[] hist = mHistogram = new int[1 << (QUANTIZE_WORD_WIDTH * 3)];
-        for (int i = 0; i < pixels.length; i++) {
-            final int quantizedColor = quantizeFromRgb888(pixels[i]);
-            // Now update the pixel value to the quantized value
-            pixels[i] = quantizedColor;
-            // And update the histogram
-            hist[quantizedColor]++;
-        }
-
-        if (LOG_TIMINGS) {
-            mTimingLogger.addSplit("Histogram created");
-        }
+        final int[] hist = mHistogram = histogram.getHistogram();
 
         // Now let's count the number of distinct colors
         int distinctColorCount = 0;
@@ -130,7 +147,7 @@ final class ColorCutQuantizer {
             }
         } else {
             // We need use quantization to reduce the number of colors
-            mQuantizedColors = quantizePixels(maxColors);
+            mQuantizedColors = quantizePixels(maxColors, useVboxHeap);
 
             if (LOG_TIMINGS) {
                 mTimingLogger.addSplit("Quantized colors computed");
@@ -139,6 +156,12 @@ final class ColorCutQuantizer {
         }
     }
 
+    private static ColorHistogram createHistogram(final int[] pixels) {
+        final ColorHistogram histogram = new ColorHistogram();
+        histogram.addPixels(pixels, 0, pixels.length);
+        return histogram;
+    }
+
     /**
      * @return the list of quantized colors
      */
@@ -146,7 +169,16 @@ final class ColorCutQuantizer {
         return mQuantizedColors;
     }
 
-    private List<Swatch> quantizePixels(int maxColors) {
+    private List<Swatch> quantizePixels(int maxColors, boolean useVboxHeap) {
+        if (useVboxHeap) {
+            final List<Swatch> swatches = new VboxHeap(mColors, mHistogram, maxColors)
+                    .quantize(maxColors);
+            if (LOG_TIMINGS) {
+                mTimingLogger.addSplit("All boxes split");
+            }
+            return filterAverageColors(swatches);
+        }
+
         // Create the priority queue which is sorted by volume descending. This means we always
         // split the largest box in the queue
         final PriorityQueue<Vbox> pq = new PriorityQueue<>(maxColors, VBOX_COMPARATOR_VOLUME);
@@ -207,6 +239,16 @@ final class ColorCutQuantizer {
         return colors;
     }
 
+    private List<Swatch> filterAverageColors(List<Swatch> swatches) {
+        ArrayList<Swatch> colors = new ArrayList<>(swatches.size());
+        for (Swatch swatch : swatches) {
+            if (!shouldIgnoreColor(swatch)) {
+                colors.add(swatch);
+            }
+        }
+        return colors;
+    }
+
     /**
      * Represents a tightly fitting box around a color space.
      */
@@ -438,9 +480,13 @@ final class ColorCutQuantizer {
     }
 
     private boolean shouldIgnoreColor(int rgb, float[] hsl) {
-        if (mFilters != null && mFilters.length > 0) {
-            for (int i = 0, count = mFilters.length; i < count; i++) {
-                if (!mFilters[i].isAllowed(rgb, hsl)) {
+        return shouldIgnoreColor(rgb, hsl, mFilters);
+    }
+
+    static boolean shouldIgnoreColor(int rgb, float[] hsl, Palette.Filter[] filters) {
+        if (filters != null && filters.length > 0) {
+            for (int i = 0, count = filters.length; i < count; i++) {
+                if (!filters[i].isAllowed(rgb, hsl)) {
                     return true;
                 }
             }
@@ -461,7 +507,7 @@ final class ColorCutQuantizer {
     /**
      * Quantized a RGB888 value to have a word width of {@value #QUANTIZE_WORD_WIDTH}.
      */
-    private static int quantizeFromRgb888(int color) {
+    static int quantizeFromRgb888(int color) {
         int r = modifyWordWidth(Color.red(color), 8, QUANTIZE_WORD_WIDTH);
         int g = modifyWordWidth(Color.green(color), 8, QUANTIZE_WORD_WIDTH);
         int b = modifyWordWidth(Color.blue(color), 8, QUANTIZE_WORD_WIDTH);
@@ -471,34 +517,34 @@ final class ColorCutQuantizer {
     /**
      * Quantized RGB888 values to have a word width of {@value #QUANTIZE_WORD_WIDTH}.
      */
-    private static int approximateToRgb888(int r, int g, int b) {
+    static int approximateToRgb888(int r, int g, int b) {
         return Color.rgb(modifyWordWidth(r, QUANTIZE_WORD_WIDTH, 8),
                 modifyWordWidth(g, QUANTIZE_WORD_WIDTH, 8),
                 modifyWordWidth(b, QUANTIZE_WORD_WIDTH, 8));
     }
 
-    private static int approximateToRgb888(int color) {
+    static int approximateToRgb888(int color) {
         return approximateToRgb888(quantizedRed(color), quantizedGreen(color), quantizedBlue(color));
     }
 
     /**
      * @return red component of the quantized color
      */
-    private static int quantizedRed(int color) {
+    static int quantizedRed(int color) {
         return (color >> (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
     }
 
     /**
      * @return green component of a quantized color
      */
-    private static int quantizedGreen(int color) {
+    static int quantizedGreen(int color) {
         return (color >> QUANTIZE_WORD_WIDTH) & QUANTIZE_WORD_MASK;
     }
 
     /**
      * @return blue component of a quantized color
      */
-    private static int quantizedBlue(int color) {
+    static int quantizedBlue(int color) {
         return color & QUANTIZE_WORD_MASK;
     }
 
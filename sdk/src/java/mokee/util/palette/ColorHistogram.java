@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A histogram of the colors of an image, quantized to the color space used by
+ * {@link ColorCutQuantizer}.
+ *
+ * Pixels are fed in chunks, so a {@link Bitmap} can be streamed into the histogram row by row
+ * with a subsampling stride instead of first scaling it down and copying all of its pixels.
+ * Large inputs are split across worker threads with a histogram each, which are merged at
+ * the end.
+ *
+ * @hide
+ */
+final class ColorHistogram {
+
+    private static final int HISTOGRAM_SIZE = 1 << (ColorCutQuantizer.QUANTIZE_WORD_WIDTH * 3);
+
+    // Below this many samples it is faster to build the histogram on the calling thread than
+    // to fork workers and merge their histograms, see ColorHistogramThresholdBenchmark
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    // Smallest number of samples handled by a single worker
+    private static final int MIN_CHUNK_SIZE = PARALLEL_THRESHOLD / 2;
+
+    private final int[] mHistogram;
+    private final int mParallelThreshold;
+    private final int mMinChunkSize;
+    private int mPixelCount;
+
+    ColorHistogram() {
+        this(PARALLEL_THRESHOLD, MIN_CHUNK_SIZE);
+    }
+
+    /**
+     * Split the inputs across worker threads at other sizes than the defaults, to measure
+     * where splitting starts to pay off.
+     *
+     * @param parallelThreshold smallest number of samples split across worker threads
+     * @param minChunkSize smallest number of samples handled by a single worker
+     */
+    ColorHistogram(int parallelThreshold, int minChunkSize) {
+        if (minChunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        mHistogram = new int[HISTOGRAM_SIZE];
+        mParallelThreshold = parallelThreshold;
+        mMinChunkSize = minChunkSize;
+    }
+
+    /**
+     * Wrap the population of each quantized color, indexed by the quantized color. The array is
+     * used as is, not copied.
+     */
+    ColorHistogram(int[] histogram) {
+        if (histogram.length != HISTOGRAM_SIZE) {
+            throw new IllegalArgumentException("Histogram must have " + HISTOGRAM_SIZE + " bins");
+        }
+        mHistogram = histogram;
+        mParallelThreshold = PARALLEL_THRESHOLD;
+        mMinChunkSize = MIN_CHUNK_SIZE;
+        for (int population : histogram) {
+            mPixelCount += population;
+        }
+    }
+
+    /**
+     * Add a chunk of RGB888 pixels to the histogram. Large chunks are split across the common
+     * {@link ForkJoinPool}, each worker filling its own histogram.
+     *
+     * @param pixels array holding the pixels
+     * @param offset index of the first pixel to add
+     * @param count number of pixels to add
+     */
+    void addPixels(final int[] pixels, final int offset, final int count) {
+        final int chunks = getChunkCount(count);
+        if (chunks == 1) {
+            addPixels(mHistogram, pixels, offset, offset + count);
+        } else {
+            final PixelsTask[] tasks = new PixelsTask[chunks - 1];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new PixelsTask(pixels, offset + chunkStart(i, chunks, count),
+                        offset + chunkStart(i + 1, chunks, count));
+                tasks[i].fork();
+            }
+            // The calling thread takes the last chunk
+            addPixels(mHistogram, pixels, offset + chunkStart(chunks - 1, chunks, count),
+                    offset + count);
+            for (PixelsTask task : tasks) {
+                merge(task.join());
+            }
+        }
+        mPixelCount += count;
+    }
+
+    /**
+     * Add the pixels of a {@link Bitmap} to the histogram.
+     * <p>
+     * If the largest dimension of {@code region} is larger than {@code maxDimension}, the region
+     * is subsampled with the nearest neighbour of each sample, which picks the same pixels as
+     * scaling it down without filtering would. Only a single row of the region is copied out
+     * of the bitmap at any time by each thread. Large regions are split by rows across the
+     * common {@link ForkJoinPool}.
+     *
+     * @param bitmap the bitmap to read the pixels from
+     * @param region the region of the bitmap to add, or null for the whole bitmap
+     * @param maxDimension maximum number of samples to take along either dimension
+     */
+    void addBitmap(final Bitmap bitmap, final Rect region, final int maxDimension) {
+        final int left, top, width, height;
+        if (region != null) {
+            left = region.left;
+            top = region.top;
+            width = region.width();
+            height = region.height();
+        } else {
+            left = 0;
+            top = 0;
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+        }
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        final int largestDimension = Math.max(width, height);
+        final int sampledWidth, sampledHeight;
+        if (largestDimension <= maxDimension) {
+            sampledWidth = width;
+            sampledHeight = height;
+        } else {
+            final float scaleRatio = maxDimension / (float) largestDimension;
+            sampledWidth = Math.max(1, Math.round(width * scaleRatio));
+            sampledHeight = Math.max(1, Math.round(height * scaleRatio));
+        }
+
+        // Source column of each sample, or null if every column is sampled
+        int[] columns = null;
+        if (sampledWidth != width) {
+            columns = new int[sampledWidth];
+            for (int x = 0; x < sampledWidth; x++) {
+                columns[x] = sampleIndex(x, width, sampledWidth);
+            }
+        }
+
+        final RowSampler sampler = new RowSampler(bitmap, left, top, width, height,
+                sampledHeight, columns);
+        final int chunks = Math.min(sampledHeight, getChunkCount(sampledWidth * sampledHeight));
+        if (chunks <= 1) {
+            sampler.addRows(mHistogram, 0, sampledHeight);
+        } else {
+            final RowsTask[] tasks = new RowsTask[chunks - 1];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new RowsTask(sampler, chunkStart(i, chunks, sampledHeight),
+                        chunkStart(i + 1, chunks, sampledHeight));
+                tasks[i].fork();
+            }
+            // The calling thread takes the last chunk
+            sampler.addRows(mHistogram, chunkStart(chunks - 1, chunks, sampledHeight),
+                    sampledHeight);
+            for (RowsTask task : tasks) {
+                merge(task.join());
+            }
+        }
+        mPixelCount += sampledWidth * sampledHeight;
+    }
+
+    /**
+     * @return the number of pixels added to the histogram
+     */
+    int getPixelCount() {
+        return mPixelCount;
+    }
+
+    /**
+     * @return the population of each quantized color, indexed by the quantized color
+     */
+    int[] getHistogram() {
+        return mHistogram;
+    }
+
+    private void merge(final int[] hist) {
+        final int[] target = mHistogram;
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            target[i] += hist[i];
+        }
+    }
+
+    private static void addPixels(final int[] hist, final int[] pixels, final int from,
+            final int to) {
+        for (int i = from; i < to; i++) {
+            hist[ColorCutQuantizer.quantizeFromRgb888(pixels[i])]++;
+        }
+    }
+
+    /**
+     * @return the number of chunks to split {@code samples} samples into, 1 to stay serial
+     */
+    private int getChunkCount(int samples) {
+        if (samples < mParallelThreshold) {
+            return 1;
+        }
+        // The calling thread works on a chunk as well
+        final int threads = ForkJoinPool.getCommonPoolParallelism() + 1;
+        return Math.max(1, Math.min(threads, samples / mMinChunkSize));
+    }
+
+    /**
+     * @return the start of chunk {@code index} when splitting {@code count} items into
+     * {@code chunks} chunks
+     */
+    private static int chunkStart(int index, int chunks, int count) {
+        return (int) ((long) index * count / chunks);
+    }
+
+    /**
+     * @return the source index of the center of sample {@code index}, out of {@code samples}
+     * samples spread over {@code size} source pixels
+     */
+    private static int sampleIndex(int index, int size, int samples) {
+        return Math.min(size - 1, (int) ((index + 0.5f) * size / samples));
+    }
+
+    /**
+     * Reads sampled rows of a bitmap region into a histogram.
+     */
+    private static final class RowSampler {
+        private final Bitmap mBitmap;
+        private final int mLeft, mTop, mWidth, mHeight;
+        private final int mSampledHeight;
+        private final int[] mColumns;
+
+        RowSampler(Bitmap bitmap, int left, int top, int width, int height, int sampledHeight,
+                int[] columns) {
+            mBitmap = bitmap;
+            mLeft = left;
+            mTop = top;
+            mWidth = width;
+            mHeight = height;
+            mSampledHeight = sampledHeight;
+            mColumns = columns;
+        }
+
+        void addRows(final int[] hist, final int fromRow, final int toRow) {
+            final int[] row = new int[mWidth];
+            final int[] columns = mColumns;
+            for (int y = fromRow; y < toRow; y++) {
+                mBitmap.getPixels(row, 0, mWidth, mLeft,
+                        mTop + sampleIndex(y, mHeight, mSampledHeight), mWidth, 1);
+                if (columns == null) {
+                    addPixels(hist, row, 0, mWidth);
+                } else {
+                    for (int x = 0; x < columns.length; x++) {
+                        hist[ColorCutQuantizer.quantizeFromRgb888(row[columns[x]])]++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class PixelsTask extends RecursiveTask<int[]> {
+        private final int[] mPixels;
+        private final int mFrom, mTo;
+
+        PixelsTask(int[] pixels, int from, int to) {
+            mPixels = pixels;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            final int[] hist = new int[HISTOGRAM_SIZE];
+            addPixels(hist, mPixels, mFrom, mTo);
+            return hist;
+        }
+    }
+
+    private static final class RowsTask extends RecursiveTask<int[]> {
+        private final RowSampler mSampler;
+        private final int mFromRow, mToRow;
+
+        RowsTask(RowSampler sampler, int fromRow, int toRow) {
+            mSampler = sampler;
+            mFromRow = fromRow;
+            mToRow = toRow;
+        }
+
+        @Override
+        protected int[] compute() {
+            final int[] hist = new int[HISTOGRAM_SIZE];
+            mSampler.addRows(hist, mFromRow, mToRow);
+            return hist;
+        }
+    }
+}
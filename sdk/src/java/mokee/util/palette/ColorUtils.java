@@ -28,6 +28,16 @@ public class ColorUtils {
     private static final int MIN_ALPHA_SEARCH_MAX_ITERATIONS = 10;
     private static final int MIN_ALPHA_SEARCH_PRECISION = 10;
 
+    // Linear value of each 8-bit sRGB component, as used by the relative luminance
+    private static final double[] sLinearTable = new double[256];
+
+    static {
+        for (int i = 0; i < sLinearTable.length; i++) {
+            final double c = i / 255d;
+            sLinearTable[i] = c < 0.03928 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
+
     private ColorUtils() {}
 
     /**
@@ -63,14 +73,9 @@ public class ColorUtils {
      * Formula defined here: http://www.w3.org/TR/2008/REC-WCAG20-20081211/#relativeluminancedef
      */
     public static double calculateLuminance(int color) {
-        double red = Color.red(color) / 255d;
-        red = red < 0.03928 ? red / 12.92 : Math.pow((red + 0.055) / 1.055, 2.4);
-
-        double green = Color.green(color) / 255d;
-        green = green < 0.03928 ? green / 12.92 : Math.pow((green + 0.055) / 1.055, 2.4);
-
-        double blue = Color.blue(color) / 255d;
-        blue = blue < 0.03928 ? blue / 12.92 : Math.pow((blue + 0.055) / 1.055, 2.4);
+        final double red = sLinearTable[Color.red(color)];
+        final double green = sLinearTable[Color.green(color)];
+        final double blue = sLinearTable[Color.blue(color)];
 
         return (0.2126 * red) + (0.7152 * green) + (0.0722 * blue);
     }
@@ -86,13 +91,22 @@ public class ColorUtils {
         if (Color.alpha(background) != 255) {
             throw new IllegalArgumentException("background can not be translucent");
         }
+        return calculateContrast(foreground, background, calculateLuminance(background));
+    }
+
+    /**
+     * Returns the contrast ratio between {@code foreground} and an opaque {@code background}
+     * whose luminance is already known.
+     */
+    private static double calculateContrast(int foreground, int background,
+            double backgroundLuminance) {
         if (Color.alpha(foreground) < 255) {
             // If the foreground is translucent, composite the foreground over the background
             foreground = compositeColors(foreground, background);
         }
 
         final double luminance1 = calculateLuminance(foreground) + 0.05;
-        final double luminance2 = calculateLuminance(background) + 0.05;
+        final double luminance2 = backgroundLuminance + 0.05;
 
         // Now return the lighter luminance divided by the darker luminance
         return Math.max(luminance1, luminance2) / Math.min(luminance1, luminance2);
@@ -114,9 +128,12 @@ public class ColorUtils {
             throw new IllegalArgumentException("background can not be translucent");
         }
 
+        // The background is the same for every test, so only compute its luminance once
+        final double backgroundLuminance = calculateLuminance(background);
+
         // First lets check that a fully opaque foreground has sufficient contrast
         int testForeground = setAlphaComponent(foreground, 255);
-        double testRatio = calculateContrast(testForeground, background);
+        double testRatio = calculateContrast(testForeground, background, backgroundLuminance);
         if (testRatio < minContrastRatio) {
             // Fully opaque foreground does not have sufficient contrast, return error
             return -1;
@@ -132,7 +149,7 @@ public class ColorUtils {
             final int testAlpha = (minAlpha + maxAlpha) / 2;
 
             testForeground = setAlphaComponent(foreground, testAlpha);
-            testRatio = calculateContrast(testForeground, background);
+            testRatio = calculateContrast(testForeground, background, backgroundLuminance);
 
             if (testRatio < minContrastRatio) {
                 minAlpha = testAlpha;
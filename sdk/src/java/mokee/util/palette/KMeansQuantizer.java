@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import mokee.util.palette.Palette.Swatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A color quantizer which refines the output of {@link ColorCutQuantizer} with k-means.
+ *
+ * The median-cut colors are used as the initial cluster centers. Each distinct color of the
+ * image is then assigned to its nearest center, weighted by its population, and the centers
+ * are moved to the mean of their colors, until no assignment changes or a fixed number of
+ * iterations has run. As median-cut already gives a good seed, only a few iterations are needed.
+ *
+ * @hide
+ */
+final class KMeansQuantizer {
+
+    private static final int MAX_ITERATIONS = 8;
+
+    final List<Swatch> mQuantizedColors;
+
+    /**
+     * Constructor.
+     *
+     * @param histogram histogram representing an image's pixel data. The quantizer takes
+     *                  ownership of it, it must not be modified afterwards.
+     * @param maxColors The maximum number of colors that should be in the result palette.
+     * @param filters Set of filters to use in the quantization stage
+     */
+    KMeansQuantizer(final ColorHistogram histogram, final int maxColors,
+            final Palette.Filter[] filters) {
+        final ColorCutQuantizer seed = new ColorCutQuantizer(histogram, maxColors, filters);
+        final List<Swatch> seedColors = seed.getQuantizedColors();
+
+        if (seed.mColors.length <= maxColors || seedColors.isEmpty()) {
+            // Each color already has its own swatch, there is nothing to refine
+            mQuantizedColors = seedColors;
+        } else {
+            mQuantizedColors = refine(seed.mColors, seed.mHistogram, seedColors, filters);
+        }
+    }
+
+    /**
+     * @return the list of quantized colors
+     */
+    List<Swatch> getQuantizedColors() {
+        return mQuantizedColors;
+    }
+
+    private static List<Swatch> refine(final int[] colors, final int[] hist,
+            final List<Swatch> seedColors, final Palette.Filter[] filters) {
+        final int k = seedColors.size();
+        final float[] centerRed = new float[k];
+        final float[] centerGreen = new float[k];
+        final float[] centerBlue = new float[k];
+        for (int i = 0; i < k; i++) {
+            final int color = ColorCutQuantizer.quantizeFromRgb888(seedColors.get(i).getRgb());
+            centerRed[i] = ColorCutQuantizer.quantizedRed(color);
+            centerGreen[i] = ColorCutQuantizer.quantizedGreen(color);
+            centerBlue[i] = ColorCutQuantizer.quantizedBlue(color);
+        }
+
+        final int[] clusters = new int[colors.length];
+        final int[] populations = new int[k];
+        final int[] redSums = new int[k];
+        final int[] greenSums = new int[k];
+        final int[] blueSums = new int[k];
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < k; i++) {
+                populations[i] = redSums[i] = greenSums[i] = blueSums[i] = 0;
+            }
+
+            for (int i = 0; i < colors.length; i++) {
+                final int color = colors[i];
+                final int r = ColorCutQuantizer.quantizedRed(color);
+                final int g = ColorCutQuantizer.quantizedGreen(color);
+                final int b = ColorCutQuantizer.quantizedBlue(color);
+
+                // Find the nearest center
+                int nearest = 0;
+                float nearestDistance = Float.MAX_VALUE;
+                for (int j = 0; j < k; j++) {
+                    final float dr = r - centerRed[j];
+                    final float dg = g - centerGreen[j];
+                    final float db = b - centerBlue[j];
+                    final float distance = dr * dr + dg * dg + db * db;
+                    if (distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = j;
+                    }
+                }
+                if (iteration == 0 || clusters[i] != nearest) {
+                    clusters[i] = nearest;
+                    changed = true;
+                }
+
+                final int population = hist[color];
+                populations[nearest] += population;
+                redSums[nearest] += population * r;
+                greenSums[nearest] += population * g;
+                blueSums[nearest] += population * b;
+            }
+
+            if (!changed) {
+                break;
+            }
+
+            // Move each center to the mean of its colors. Empty clusters keep their center.
+            for (int j = 0; j < k; j++) {
+                final int population = populations[j];
+                if (population > 0) {
+                    centerRed[j] = redSums[j] / (float) population;
+                    centerGreen[j] = greenSums[j] / (float) population;
+                    centerBlue[j] = blueSums[j] / (float) population;
+                }
+            }
+        }
+
+        final ArrayList<Swatch> swatches = new ArrayList<>(k);
+        for (int j = 0; j < k; j++) {
+            final int population = populations[j];
+            if (population <= 0) {
+                continue;
+            }
+            final Swatch swatch = new Swatch(ColorCutQuantizer.approximateToRgb888(
+                    Math.round(redSums[j] / (float) population),
+                    Math.round(greenSums[j] / (float) population),
+                    Math.round(blueSums[j] / (float) population)), population);
+            if (!ColorCutQuantizer.shouldIgnoreColor(swatch.getRgb(), swatch.getHsl(), filters)) {
+                swatches.add(swatch);
+            }
+        }
+        return swatches;
+    }
+}
@@ -18,6 +18,7 @@ package mokee.util.palette;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.annotation.ColorInt;
 import android.annotation.Nullable;
@@ -152,6 +153,20 @@ public final class Palette {
         return Collections.unmodifiableList(mSwatches);
     }
 
+    /**
+     * Compute the HSL values and the title and body text colors of all of the swatches up front.
+     * These are otherwise computed on first access, which would then happen on the thread
+     * reading them, usually the UI thread. Call this from the thread which generated the
+     * palette, before handing it over.
+     */
+    public void prepareSwatches() {
+        for (int i = 0, count = mSwatches.size(); i < count; i++) {
+            final Swatch swatch = mSwatches.get(i);
+            swatch.getHsl();
+            swatch.ensureTextColorsGenerated();
+        }
+    }
+
     /**
      * Returns the most vibrant swatch in the palette. Might be null.
      */
@@ -266,25 +281,6 @@ public final class Palette {
         return swatch != null ? swatch.getRgb() : defaultColor;
     }
 
-    /**
-     * Scale the bitmap down so that it's largest dimension is {@code targetMaxDimension}.
-     * If {@code bitmap} is smaller than this, then it is returned.
-     */
-    private static Bitmap scaleBitmapDown(Bitmap bitmap, final int targetMaxDimension) {
-        final int maxDimension = Math.max(bitmap.getWidth(), bitmap.getHeight());
-
-        if (maxDimension <= targetMaxDimension) {
-            // If the bitmap is small enough already, just return it
-            return bitmap;
-        }
-
-        final float scaleRatio = targetMaxDimension / (float) maxDimension;
-        return Bitmap.createScaledBitmap(bitmap,
-                Math.round(bitmap.getWidth() * scaleRatio),
-                Math.round(bitmap.getHeight() * scaleRatio),
-                false);
-    }
-
     /**
      * Represents a color swatch generated from an image's palette. The RGB color can be retrieved
      * by calling {@link #getRgb()}.
@@ -294,11 +290,14 @@ public final class Palette {
         private final int mRgb;
         private final int mPopulation;
 
-        private boolean mGeneratedTextColors;
+        // Computed lazily, palettes can be shared between threads through a PaletteCache.
+        // The text colors are written before mGeneratedTextColors is set, so they are visible
+        // to any thread which sees it set.
+        private volatile boolean mGeneratedTextColors;
         private int mTitleTextColor;
         private int mBodyTextColor;
 
-        private float[] mHsl;
+        private volatile float[] mHsl;
 
         public Swatch(@ColorInt int color, int population) {
             mRed = Color.red(color);
@@ -331,11 +330,14 @@ public final class Palette {
          *     hsv[2] is Lightness [0...1]
          */
         public float[] getHsl() {
-            if (mHsl == null) {
-                mHsl = new float[3];
-                ColorUtils.RGBToHSL(mRed, mGreen, mBlue, mHsl);
+            float[] hsl = mHsl;
+            if (hsl == null) {
+                // Fill in before publishing, as cached palettes are shared between threads
+                hsl = new float[3];
+                ColorUtils.RGBToHSL(mRed, mGreen, mBlue, hsl);
+                mHsl = hsl;
             }
-            return mHsl;
+            return hsl;
         }
 
         /**
@@ -446,6 +448,9 @@ public final class Palette {
         private int mMaxColors = DEFAULT_CALCULATE_NUMBER_COLORS;
         private int mResizeMaxDimension = DEFAULT_RESIZE_BITMAP_MAX_DIMENSION;
         private final List<Filter> mFilters = new ArrayList<>();
+        private Rect mRegion;
+        private PaletteCache mCache;
+        private Quantizer mQuantizer = MEDIAN_CUT_QUANTIZER;
 
         private Generator mGenerator;
 
@@ -513,6 +518,59 @@ public final class Palette {
             return this;
         }
 
+        /**
+         * Set a region of the bitmap to be used exclusively when calculating the palette.
+         * <p>This only works when the original input is a {@link Bitmap}.</p>
+         * <p>
+         * The resize value set with {@link #resizeBitmapSize(int)} applies to the region, so a
+         * small region such as the top strip of a wallpaper is sampled at full density.
+         *
+         * @param left The left side of the rectangle used for the region.
+         * @param top The top of the rectangle used for the region.
+         * @param right The right side of the rectangle used for the region.
+         * @param bottom The bottom of the rectangle used for the region.
+         */
+        public Builder setRegion(int left, int top, int right, int bottom) {
+            if (mBitmap != null) {
+                if (mRegion == null) mRegion = new Rect();
+                // Set the Rect to be initially the whole Bitmap
+                mRegion.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+                // Now just get the intersection with the region
+                if (!mRegion.intersect(left, top, right, bottom)) {
+                    throw new IllegalArgumentException("The given region must intersect with "
+                            + "the Bitmap's dimensions.");
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Clear any previously region set via {@link #setRegion(int, int, int, int)}.
+         */
+        public Builder clearRegion() {
+            mRegion = null;
+            return this;
+        }
+
+        /**
+         * Set the {@link Quantizer} to use to reduce the colors of a {@link Bitmap} source to
+         * swatches. If this is called with {@code null} then {@link #MEDIAN_CUT_QUANTIZER} will be
+         * used.
+         */
+        public Builder quantizer(Quantizer quantizer) {
+            mQuantizer = quantizer != null ? quantizer : MEDIAN_CUT_QUANTIZER;
+            return this;
+        }
+
+        /**
+         * Set a {@link PaletteCache} to look up the palette in before generating it from a
+         * {@link Bitmap}, and to add the generated palette to. By default no cache is used.
+         */
+        public Builder cache(PaletteCache cache) {
+            mCache = cache;
+            return this;
+        }
+
         /**
          * Clear all added filters. This includes any default filters added automatically by
          * {@link Palette}.
@@ -545,6 +603,27 @@ public final class Palette {
 
             List<Swatch> swatches;
 
+            // If we haven't been provided with a generator, use a new default one. The palette
+            // keeps it, so it must not be shared with a palette generated before, which may
+            // have been cached.
+            final Generator generator = mGenerator != null ? mGenerator : new DefaultGenerator();
+
+            // The key can't capture what a custom generator does, so only palettes of the
+            // default generator are cached
+            PaletteCache.Key cacheKey = null;
+            if (mCache != null && mBitmap != null && mGenerator == null) {
+                cacheKey = PaletteCache.createKey(mBitmap, mRegion, mMaxColors,
+                        mResizeMaxDimension, mFilters, mQuantizer);
+                final Palette cached = mCache.get(cacheKey);
+                if (cached != null) {
+                    if (logger != null) {
+                        logger.addSplit("Found cached Palette");
+                        logger.dumpToLog();
+                    }
+                    return cached;
+                }
+            }
+
             if (mBitmap != null) {
                 // We have a Bitmap so we need to quantization to reduce the number of colors
 
@@ -553,28 +632,19 @@ public final class Palette {
                             "Minimum dimension size for resizing should should be >= 1");
                 }
 
-                // First we'll scale down the bitmap so it's largest dimension is as specified
-                final Bitmap scaledBitmap = scaleBitmapDown(mBitmap, mResizeMaxDimension);
+                // First we'll stream the bitmap into a histogram, subsampling it so that its
+                // largest dimension is as specified
+                final ColorHistogram histogram = new ColorHistogram();
+                histogram.addBitmap(mBitmap, mRegion, mResizeMaxDimension);
 
                 if (logger != null) {
                     logger.addSplit("Processed Bitmap");
                 }
 
-                // Now generate a quantizer from the Bitmap
-                final int width = scaledBitmap.getWidth();
-                final int height = scaledBitmap.getHeight();
-                final int[] pixels = new int[width * height];
-                scaledBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-
-                final ColorCutQuantizer quantizer = new ColorCutQuantizer(pixels, mMaxColors,
+                // Now quantize the histogram
+                swatches = mQuantizer.quantize(histogram.getHistogram(), mMaxColors,
                         mFilters.isEmpty() ? null : mFilters.toArray(new Filter[mFilters.size()]));
 
-                // If created a new bitmap, recycle it
-                if (scaledBitmap != mBitmap) {
-                    scaledBitmap.recycle();
-                }
-                swatches = quantizer.getQuantizedColors();
-
                 if (logger != null) {
                     logger.addSplit("Color quantization completed");
                 }
@@ -583,20 +653,21 @@ public final class Palette {
                 swatches = mSwatches;
             }
 
-            // If we haven't been provided with a generator, use the default
-            if (mGenerator == null) {
-                mGenerator = new DefaultGenerator();
-            }
-
             // Now call let the Generator do it's thing
-            mGenerator.generate(swatches);
+            generator.generate(swatches);
 
             if (logger != null) {
                 logger.addSplit("Generator.generate() completed");
             }
 
             // Now create a Palette instance
-            Palette p = new Palette(swatches, mGenerator);
+            Palette p = new Palette(swatches, generator);
+
+            if (cacheKey != null) {
+                // Cached palettes are handed to other threads, don't leave anything to compute
+                p.prepareSwatches();
+                mCache.put(cacheKey, p);
+            }
 
             if (logger != null) {
                 logger.addSplit("Created Palette");
@@ -619,7 +690,10 @@ public final class Palette {
             AsyncTask<Bitmap, Void, Palette> task = new AsyncTask<Bitmap, Void, Palette>() {
                 @Override
                 protected Palette doInBackground(Bitmap... params) {
-                    return generate();
+                    final Palette palette = generate();
+                    // Keep the text color computations off the UI thread
+                    palette.prepareSwatches();
+                    return palette;
                 }
 
                 @Override
@@ -737,4 +811,61 @@ public final class Palette {
             return hslColor[0] >= 10f && hslColor[0] <= 37f && hslColor[1] <= 0.82f;
         }
     };
+
+    /**
+     * A Quantizer reduces the colors of an image to the swatches of a {@link Palette}.
+     *
+     * @see Builder#quantizer(Quantizer)
+     */
+    public interface Quantizer {
+        /**
+         * Reduce the colors of an image to at most {@code maxColors} swatches.
+         *
+         * @param histogram the population of each color of the image, quantized to 5 bits per
+         *                  component and indexed by the quantized color packed as RGB. The
+         *                  quantizer may modify it.
+         * @param maxColors the maximum number of swatches to return.
+         * @param filters filters which each color must be allowed by, or null.
+         *
+         * @return the swatches.
+         */
+        List<Swatch> quantize(int[] histogram, int maxColors, Filter[] filters);
+    }
+
+    /**
+     * A {@link Quantizer} which picks out the most distinct colors of the image with a modified
+     * median-cut. This is the default, and is fast.
+     */
+    public static final Quantizer MEDIAN_CUT_QUANTIZER = new Quantizer() {
+        @Override
+        public List<Swatch> quantize(int[] histogram, int maxColors, Filter[] filters) {
+            return new ColorCutQuantizer(new ColorHistogram(histogram), maxColors, filters)
+                    .getQuantizedColors();
+        }
+    };
+
+    /**
+     * A {@link Quantizer} based on Wu's variance minimizing algorithm, which picks colors
+     * representing the whole image more closely than {@link #MEDIAN_CUT_QUANTIZER} at a similar
+     * cost.
+     */
+    public static final Quantizer WU_QUANTIZER = new Quantizer() {
+        @Override
+        public List<Swatch> quantize(int[] histogram, int maxColors, Filter[] filters) {
+            return new WuQuantizer(new ColorHistogram(histogram), maxColors, filters)
+                    .getQuantizedColors();
+        }
+    };
+
+    /**
+     * A {@link Quantizer} which refines the colors of {@link #MEDIAN_CUT_QUANTIZER} with a few
+     * k-means iterations. Slower, but the colors are closer to those of the image.
+     */
+    public static final Quantizer K_MEANS_QUANTIZER = new Quantizer() {
+        @Override
+        public List<Swatch> quantize(int[] histogram, int maxColors, Filter[] filters) {
+            return new KMeansQuantizer(new ColorHistogram(histogram), maxColors, filters)
+                    .getQuantizedColors();
+        }
+    };
 }
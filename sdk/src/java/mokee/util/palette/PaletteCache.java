@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A bounded cache of generated {@link Palette} instances, to be set on a {@link Palette.Builder}
+ * with {@link Palette.Builder#cache(PaletteCache)}.
+ * <p>
+ * Palettes are keyed by a hash of a sampled grid of the source pixels along with all of the
+ * builder parameters which affect the result, so generating a palette for a bitmap with the same
+ * content, such as an app icon which has been loaded again, returns the cached instance. As only
+ * a sample of the pixels is hashed, images which differ only between the sampled pixels share
+ * an entry. Palettes generated with a custom {@link Palette.Generator} are not cached.
+ * <p>
+ * Least recently used entries are evicted once either the number of entries or their
+ * approximate size in bytes exceeds the configured maximum. This class is thread-safe.
+ *
+ * @hide
+ */
+public final class PaletteCache {
+
+    // Number of pixels sampled along each dimension for the content hash
+    private static final int HASH_SAMPLE_GRID = 32;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Rough footprint of a palette and of each of its swatches
+    private static final int PALETTE_BYTES = 128;
+    private static final int SWATCH_BYTES = 80;
+
+    private final int mMaxEntries;
+    private final int mMaxBytes;
+
+    // Must synchronize on 'this' to access the fields below
+    private final LinkedHashMap<Key, Palette> mPalettes =
+            new LinkedHashMap<Key, Palette>(16, 0.75f, true);
+    private int mBytes;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxEntries maximum number of palettes to keep
+     * @param maxBytes maximum approximate size of the palettes to keep, in bytes
+     */
+    public PaletteCache(int maxEntries, int maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        }
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of lookups which returned a cached palette
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of lookups which required a palette to be generated
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of palettes which have been evicted
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the number of cached palettes
+     */
+    public synchronized int size() {
+        return mPalettes.size();
+    }
+
+    /**
+     * Remove all cached palettes.
+     */
+    public synchronized void evictAll() {
+        mEvictionCount += mPalettes.size();
+        mPalettes.clear();
+        mBytes = 0;
+    }
+
+    synchronized Palette get(Key key) {
+        final Palette palette = mPalettes.get(key);
+        if (palette != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return palette;
+    }
+
+    synchronized void put(Key key, Palette palette) {
+        final Palette previous = mPalettes.put(key, palette);
+        if (previous != null) {
+            mBytes -= sizeOf(previous);
+        }
+        mBytes += sizeOf(palette);
+        trim();
+    }
+
+    private void trim() {
+        final Iterator<Palette> it = mPalettes.values().iterator();
+        while ((mPalettes.size() > mMaxEntries || mBytes > mMaxBytes) && it.hasNext()) {
+            mBytes -= sizeOf(it.next());
+            it.remove();
+            mEvictionCount++;
+        }
+    }
+
+    private static int sizeOf(Palette palette) {
+        return PALETTE_BYTES + palette.getSwatches().size() * SWATCH_BYTES;
+    }
+
+    /**
+     * Create the key of the palette which would be generated from the given parameters.
+     */
+    static Key createKey(Bitmap bitmap, Rect region, int maxColors, int resizeMaxDimension,
+            List<Palette.Filter> filters, Palette.Quantizer quantizer) {
+        return new Key(hashContent(bitmap, region), bitmap.getWidth(), bitmap.getHeight(),
+                region, maxColors, resizeMaxDimension, filters, quantizer);
+    }
+
+    /**
+     * Hash a grid of at most {@value #HASH_SAMPLE_GRID} by {@value #HASH_SAMPLE_GRID} pixels,
+     * spread evenly over the region.
+     */
+    private static long hashContent(Bitmap bitmap, Rect region) {
+        final int left = region != null ? region.left : 0;
+        final int top = region != null ? region.top : 0;
+        final int width = region != null ? region.width() : bitmap.getWidth();
+        final int height = region != null ? region.height() : bitmap.getHeight();
+
+        final int columns = Math.min(width, HASH_SAMPLE_GRID);
+        final int rows = Math.min(height, HASH_SAMPLE_GRID);
+
+        long hash = FNV_OFFSET_BASIS;
+        for (int y = 0; y < rows; y++) {
+            final int sourceY = top + (int) ((y + 0.5f) * height / rows);
+            for (int x = 0; x < columns; x++) {
+                final int sourceX = left + (int) ((x + 0.5f) * width / columns);
+                hash = (hash ^ bitmap.getPixel(sourceX, sourceY)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Identifies a generated palette by its source content and builder parameters.
+     */
+    static final class Key {
+        private final long mContentHash;
+        private final int mWidth;
+        private final int mHeight;
+        private final Rect mRegion;
+        private final int mMaxColors;
+        private final int mResizeMaxDimension;
+        private final List<Palette.Filter> mFilters;
+        private final Palette.Quantizer mQuantizer;
+        private final int mHashCode;
+
+        Key(long contentHash, int width, int height, Rect region, int maxColors,
+                int resizeMaxDimension, List<Palette.Filter> filters,
+                Palette.Quantizer quantizer) {
+            mContentHash = contentHash;
+            mWidth = width;
+            mHeight = height;
+            mRegion = region != null ? new Rect(region) : null;
+            mMaxColors = maxColors;
+            mResizeMaxDimension = resizeMaxDimension;
+            mFilters = new ArrayList<>(filters);
+            mQuantizer = quantizer;
+
+            int result = (int) (contentHash ^ (contentHash >>> 32));
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + (mRegion != null ? mRegion.hashCode() : 0);
+            result = 31 * result + maxColors;
+            result = 31 * result + resizeMaxDimension;
+            result = 31 * result + mFilters.hashCode();
+            result = 31 * result + quantizer.hashCode();
+            mHashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Key key = (Key) o;
+            return mContentHash == key.mContentHash
+                    && mWidth == key.mWidth
+                    && mHeight == key.mHeight
+                    && (mRegion != null ? mRegion.equals(key.mRegion) : key.mRegion == null)
+                    && mMaxColors == key.mMaxColors
+                    && mResizeMaxDimension == key.mResizeMaxDimension
+                    && mFilters.equals(key.mFilters)
+                    && mQuantizer.equals(key.mQuantizer);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import mokee.util.palette.Palette.Swatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The box splitting stage of {@link ColorCutQuantizer}, without allocating an object per box.
+ * <p>
+ * Boxes are kept in parallel primitive arrays indexed by box id, and are queued by volume in an
+ * index based max-heap which follows the exact sift order of {@link java.util.PriorityQueue}, so
+ * boxes with equal volumes are split, and swatches are returned, in the same order as with
+ * {@code ColorCutQuantizer}'s {@code Vbox} objects. The colors of a box are ordered along its
+ * longest dimension with a three pass counting sort over the 5 bit components rather than a
+ * comparison sort of rewritten color values.
+ *
+ * @hide
+ */
+final class VboxHeap {
+
+    private static final int WORD_WIDTH = ColorCutQuantizer.QUANTIZE_WORD_WIDTH;
+    private static final int WORD_MASK = (1 << WORD_WIDTH) - 1;
+
+    private static final int SHIFT_RED = WORD_WIDTH + WORD_WIDTH;
+    private static final int SHIFT_GREEN = WORD_WIDTH;
+    private static final int SHIFT_BLUE = 0;
+
+    private final int[] mColors;
+    private final int[] mHistogram;
+
+    // Scratch space for the counting sort
+    private final int[] mSorted;
+    private final int[] mCounts = new int[(1 << WORD_WIDTH) + 1];
+
+    // Boxes, indexed by box id. Lower and upper index are inclusive.
+    private final int[] mLowerIndex;
+    private final int[] mUpperIndex;
+    private final int[] mPopulation;
+    private final int[] mMinRed, mMaxRed;
+    private final int[] mMinGreen, mMaxGreen;
+    private final int[] mMinBlue, mMaxBlue;
+    private int mBoxCount;
+
+    // Box ids, ordered as a binary heap by volume descending
+    private final int[] mHeap;
+    private int mHeapSize;
+
+    /**
+     * @param colors the distinct quantized colors, which are reordered in place
+     * @param histogram the population of each quantized color
+     * @param maxColors the maximum number of boxes to split the colors into
+     */
+    VboxHeap(int[] colors, int[] histogram, int maxColors) {
+        mColors = colors;
+        mHistogram = histogram;
+        mSorted = new int[colors.length];
+
+        final int capacity = Math.max(1, maxColors);
+        mLowerIndex = new int[capacity];
+        mUpperIndex = new int[capacity];
+        mPopulation = new int[capacity];
+        mMinRed = new int[capacity];
+        mMaxRed = new int[capacity];
+        mMinGreen = new int[capacity];
+        mMaxGreen = new int[capacity];
+        mMinBlue = new int[capacity];
+        mMaxBlue = new int[capacity];
+        mHeap = new int[capacity];
+    }
+
+    /**
+     * Split the colors into at most {@code maxColors} boxes, always splitting the box with the
+     * largest volume first.
+     *
+     * @return the average color of each box, in queue order
+     */
+    List<Swatch> quantize(int maxColors) {
+        // To start, offer a box which contains all of the colors
+        offer(newBox(0, mColors.length - 1));
+
+        while (mHeapSize < maxColors) {
+            if (mHeapSize == 0) {
+                break;
+            }
+            final int box = poll();
+            if (mUpperIndex[box] <= mLowerIndex[box]) {
+                // The box has a single color. As with the Vbox queue, it is not offered back.
+                break;
+            }
+            // First split the box, and offer the result. Then offer the box back.
+            offer(splitBox(box));
+            offer(box);
+        }
+
+        final ArrayList<Swatch> swatches = new ArrayList<>(mHeapSize);
+        for (int i = 0; i < mHeapSize; i++) {
+            swatches.add(getAverageColor(mHeap[i]));
+        }
+        return swatches;
+    }
+
+    private int newBox(int lowerIndex, int upperIndex) {
+        final int box = mBoxCount++;
+        mLowerIndex[box] = lowerIndex;
+        mUpperIndex[box] = upperIndex;
+        fitBox(box);
+        return box;
+    }
+
+    private int getVolume(int box) {
+        return (mMaxRed[box] - mMinRed[box] + 1) * (mMaxGreen[box] - mMinGreen[box] + 1)
+                * (mMaxBlue[box] - mMinBlue[box] + 1);
+    }
+
+    /**
+     * Recomputes the boundaries of a box to tightly fit the colors within it.
+     */
+    private void fitBox(int box) {
+        final int[] colors = mColors;
+        final int[] hist = mHistogram;
+
+        int minRed, minGreen, minBlue;
+        minRed = minGreen = minBlue = Integer.MAX_VALUE;
+        int maxRed, maxGreen, maxBlue;
+        maxRed = maxGreen = maxBlue = Integer.MIN_VALUE;
+        int count = 0;
+
+        for (int i = mLowerIndex[box], upper = mUpperIndex[box]; i <= upper; i++) {
+            final int color = colors[i];
+            count += hist[color];
+
+            final int r = (color >> SHIFT_RED) & WORD_MASK;
+            final int g = (color >> SHIFT_GREEN) & WORD_MASK;
+            final int b = color & WORD_MASK;
+            if (r > maxRed) maxRed = r;
+            if (r < minRed) minRed = r;
+            if (g > maxGreen) maxGreen = g;
+            if (g < minGreen) minGreen = g;
+            if (b > maxBlue) maxBlue = b;
+            if (b < minBlue) minBlue = b;
+        }
+
+        mMinRed[box] = minRed;
+        mMaxRed[box] = maxRed;
+        mMinGreen[box] = minGreen;
+        mMaxGreen[box] = maxGreen;
+        mMinBlue[box] = minBlue;
+        mMaxBlue[box] = maxBlue;
+        mPopulation[box] = count;
+    }
+
+    /**
+     * Split a box at the population mid-point along its longest dimension.
+     *
+     * @return the id of the new box
+     */
+    private int splitBox(int box) {
+        final int splitPoint = findSplitPoint(box);
+        final int newBox = newBox(splitPoint + 1, mUpperIndex[box]);
+
+        // Now change this box's upper index and recompute the color boundaries
+        mUpperIndex[box] = splitPoint;
+        fitBox(box);
+
+        return newBox;
+    }
+
+    private int findSplitPoint(int box) {
+        final int lower = mLowerIndex[box];
+        final int upper = mUpperIndex[box];
+
+        final int redLength = mMaxRed[box] - mMinRed[box];
+        final int greenLength = mMaxGreen[box] - mMinGreen[box];
+        final int blueLength = mMaxBlue[box] - mMinBlue[box];
+
+        // Order the colors by the longest dimension first, then by the components which the
+        // rewritten color values of the Vbox implementation sort by: RGB, GRB or BGR. Each
+        // counting sort pass is stable, so the least significant component is sorted first.
+        if (redLength >= greenLength && redLength >= blueLength) {
+            sortByComponent(lower, upper, SHIFT_BLUE);
+            sortByComponent(lower, upper, SHIFT_GREEN);
+            sortByComponent(lower, upper, SHIFT_RED);
+        } else if (greenLength >= redLength && greenLength >= blueLength) {
+            sortByComponent(lower, upper, SHIFT_BLUE);
+            sortByComponent(lower, upper, SHIFT_RED);
+            sortByComponent(lower, upper, SHIFT_GREEN);
+        } else {
+            sortByComponent(lower, upper, SHIFT_RED);
+            sortByComponent(lower, upper, SHIFT_GREEN);
+            sortByComponent(lower, upper, SHIFT_BLUE);
+        }
+
+        final int[] colors = mColors;
+        final int[] hist = mHistogram;
+        final int midPoint = mPopulation[box] / 2;
+        for (int i = lower, count = 0; i <= upper; i++) {
+            count += hist[colors[i]];
+            if (count >= midPoint) {
+                return i;
+            }
+        }
+
+        return lower;
+    }
+
+    /**
+     * Stable counting sort of {@code colors[lower..upper]} by a single component.
+     */
+    private void sortByComponent(int lower, int upper, int shift) {
+        final int[] colors = mColors;
+        final int[] sorted = mSorted;
+        final int[] counts = mCounts;
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        for (int i = lower; i <= upper; i++) {
+            counts[((colors[i] >> shift) & WORD_MASK) + 1]++;
+        }
+        counts[0] = lower;
+        for (int i = 1; i < counts.length; i++) {
+            counts[i] += counts[i - 1];
+        }
+        for (int i = lower; i <= upper; i++) {
+            final int color = colors[i];
+            sorted[counts[(color >> shift) & WORD_MASK]++] = color;
+        }
+        System.arraycopy(sorted, lower, colors, lower, upper - lower + 1);
+    }
+
+    private Swatch getAverageColor(int box) {
+        final int[] colors = mColors;
+        final int[] hist = mHistogram;
+        int redSum = 0;
+        int greenSum = 0;
+        int blueSum = 0;
+        int totalPopulation = 0;
+
+        for (int i = mLowerIndex[box], upper = mUpperIndex[box]; i <= upper; i++) {
+            final int color = colors[i];
+            final int colorPopulation = hist[color];
+
+            totalPopulation += colorPopulation;
+            redSum += colorPopulation * ((color >> SHIFT_RED) & WORD_MASK);
+            greenSum += colorPopulation * ((color >> SHIFT_GREEN) & WORD_MASK);
+            blueSum += colorPopulation * (color & WORD_MASK);
+        }
+
+        final int redMean = Math.round(redSum / (float) totalPopulation);
+        final int greenMean = Math.round(greenSum / (float) totalPopulation);
+        final int blueMean = Math.round(blueSum / (float) totalPopulation);
+
+        return new Swatch(ColorCutQuantizer.approximateToRgb888(redMean, greenMean, blueMean),
+                totalPopulation);
+    }
+
+    /**
+     * Orders boxes by volume descending, as the comparator of the Vbox queue does.
+     */
+    private int compare(int a, int b) {
+        return getVolume(b) - getVolume(a);
+    }
+
+    private void offer(int box) {
+        int k = mHeapSize++;
+        // Sift up, as PriorityQueue does
+        while (k > 0) {
+            final int parent = (k - 1) >>> 1;
+            final int e = mHeap[parent];
+            if (compare(box, e) >= 0) {
+                break;
+            }
+            mHeap[k] = e;
+            k = parent;
+        }
+        mHeap[k] = box;
+    }
+
+    private int poll() {
+        final int result = mHeap[0];
+        final int n = --mHeapSize;
+        if (n != 0) {
+            final int x = mHeap[n];
+            // Sift down, as PriorityQueue does
+            int k = 0;
+            final int half = n >>> 1;
+            while (k < half) {
+                int child = (k << 1) + 1;
+                int c = mHeap[child];
+                final int right = child + 1;
+                if (right < n && compare(c, mHeap[right]) > 0) {
+                    c = mHeap[child = right];
+                }
+                if (compare(x, c) <= 0) {
+                    break;
+                }
+                mHeap[k] = c;
+                k = child;
+            }
+            mHeap[k] = x;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import mokee.util.palette.Palette.Swatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A color quantizer based on Xiaolin Wu's variance minimizing algorithm.
+ *
+ * The quantized color space is represented as a 3-dimensional cube of population, color sum
+ * and squared color sum moments. These are summed up once into cumulative tables, so the moments
+ * of any box are found from its 8 corners and every candidate cut along a dimension costs
+ * constant time. The box with the largest variance is then repeatedly cut where the summed
+ * variance of both halves is lowest, until we have the requested number of colors. An average
+ * color is then generated from each box.
+ *
+ * Compared to {@link ColorCutQuantizer}, this finds colors which represent the image more
+ * closely rather than the most distinct colors.
+ *
+ * @hide
+ */
+final class WuQuantizer {
+
+    private static final int WORD_WIDTH = ColorCutQuantizer.QUANTIZE_WORD_WIDTH;
+
+    // The moment tables have an empty plane at index 0 of each dimension, so that the
+    // cumulative moments of a box can be found without bounds checks
+    private static final int SIDE = (1 << WORD_WIDTH) + 1;
+    private static final int TABLE_SIZE = SIDE * SIDE * SIDE;
+
+    private static final int DIMENSION_RED = 0;
+    private static final int DIMENSION_GREEN = 1;
+    private static final int DIMENSION_BLUE = 2;
+
+    // Cumulative moments, indexed by getIndex()
+    private final int[] mWeights = new int[TABLE_SIZE];
+    private final int[] mMomentsRed = new int[TABLE_SIZE];
+    private final int[] mMomentsGreen = new int[TABLE_SIZE];
+    private final int[] mMomentsBlue = new int[TABLE_SIZE];
+    private final double[] mMoments = new double[TABLE_SIZE];
+
+    // Boxes, indexed by box id. Lower bounds are exclusive, upper bounds inclusive.
+    private int[] mRed0, mRed1;
+    private int[] mGreen0, mGreen1;
+    private int[] mBlue0, mBlue1;
+
+    // Position of the best cut found by maximize()
+    private int mCut;
+
+    final List<Swatch> mQuantizedColors;
+
+    /**
+     * Constructor.
+     *
+     * @param histogram histogram representing an image's pixel data. The quantizer takes
+     *                  ownership of it, it must not be modified afterwards.
+     * @param maxColors The maximum number of colors that should be in the result palette.
+     * @param filters Set of filters to use in the quantization stage
+     */
+    WuQuantizer(final ColorHistogram histogram, final int maxColors,
+            final Palette.Filter[] filters) {
+        final int[] hist = histogram.getHistogram();
+        final float[] tempHsl = new float[3];
+
+        // Filter the colors and count the distinct ones, as ColorCutQuantizer does
+        int distinctColorCount = 0;
+        for (int color = 0; color < hist.length; color++) {
+            if (hist[color] > 0) {
+                final int rgb = ColorCutQuantizer.approximateToRgb888(color);
+                ColorUtils.colorToHSL(rgb, tempHsl);
+                if (ColorCutQuantizer.shouldIgnoreColor(rgb, tempHsl, filters)) {
+                    hist[color] = 0;
+                } else {
+                    distinctColorCount++;
+                }
+            }
+        }
+
+        if (distinctColorCount <= maxColors) {
+            // The image has fewer colors than the maximum requested, so just return the colors
+            mQuantizedColors = new ArrayList<>();
+            for (int color = 0; color < hist.length; color++) {
+                if (hist[color] > 0) {
+                    mQuantizedColors.add(new Swatch(ColorCutQuantizer.approximateToRgb888(color),
+                            hist[color]));
+                }
+            }
+        } else {
+            computeMoments(hist);
+            mQuantizedColors = generateAverageColors(createBoxes(maxColors), filters);
+        }
+    }
+
+    /**
+     * @return the list of quantized colors
+     */
+    List<Swatch> getQuantizedColors() {
+        return mQuantizedColors;
+    }
+
+    private static int getIndex(int r, int g, int b) {
+        return (r * SIDE + g) * SIDE + b;
+    }
+
+    /**
+     * Fill the moment tables from the histogram, then sum them up so that each entry holds the
+     * moments of the box from the origin to it.
+     */
+    private void computeMoments(final int[] hist) {
+        final int[] weights = mWeights;
+        final int[] momentsRed = mMomentsRed;
+        final int[] momentsGreen = mMomentsGreen;
+        final int[] momentsBlue = mMomentsBlue;
+        final double[] moments = mMoments;
+
+        for (int color = 0; color < hist.length; color++) {
+            final int population = hist[color];
+            if (population > 0) {
+                final int r = ColorCutQuantizer.quantizedRed(color);
+                final int g = ColorCutQuantizer.quantizedGreen(color);
+                final int b = ColorCutQuantizer.quantizedBlue(color);
+                final int index = getIndex(r + 1, g + 1, b + 1);
+                weights[index] += population;
+                momentsRed[index] += population * r;
+                momentsGreen[index] += population * g;
+                momentsBlue[index] += population * b;
+                moments[index] += population * (double) (r * r + g * g + b * b);
+            }
+        }
+
+        final int[] area = new int[SIDE];
+        final int[] areaRed = new int[SIDE];
+        final int[] areaGreen = new int[SIDE];
+        final int[] areaBlue = new int[SIDE];
+        final double[] area2 = new double[SIDE];
+
+        for (int r = 1; r < SIDE; r++) {
+            Arrays.fill(area, 0);
+            Arrays.fill(areaRed, 0);
+            Arrays.fill(areaGreen, 0);
+            Arrays.fill(areaBlue, 0);
+            Arrays.fill(area2, 0);
+
+            for (int g = 1; g < SIDE; g++) {
+                int line = 0;
+                int lineRed = 0;
+                int lineGreen = 0;
+                int lineBlue = 0;
+                double line2 = 0;
+
+                for (int b = 1; b < SIDE; b++) {
+                    final int index = getIndex(r, g, b);
+                    line += weights[index];
+                    lineRed += momentsRed[index];
+                    lineGreen += momentsGreen[index];
+                    lineBlue += momentsBlue[index];
+                    line2 += moments[index];
+
+                    area[b] += line;
+                    areaRed[b] += lineRed;
+                    areaGreen[b] += lineGreen;
+                    areaBlue[b] += lineBlue;
+                    area2[b] += line2;
+
+                    final int previousIndex = getIndex(r - 1, g, b);
+                    weights[index] = weights[previousIndex] + area[b];
+                    momentsRed[index] = momentsRed[previousIndex] + areaRed[b];
+                    momentsGreen[index] = momentsGreen[previousIndex] + areaGreen[b];
+                    momentsBlue[index] = momentsBlue[previousIndex] + areaBlue[b];
+                    moments[index] = moments[previousIndex] + area2[b];
+                }
+            }
+        }
+    }
+
+    /**
+     * Cut the color space into at most {@code maxColors} boxes.
+     *
+     * @return the number of boxes
+     */
+    private int createBoxes(final int maxColors) {
+        mRed0 = new int[maxColors];
+        mRed1 = new int[maxColors];
+        mGreen0 = new int[maxColors];
+        mGreen1 = new int[maxColors];
+        mBlue0 = new int[maxColors];
+        mBlue1 = new int[maxColors];
+        final double[] variances = new double[maxColors];
+
+        // To start, a box which contains all of the colors
+        mRed1[0] = mGreen1[0] = mBlue1[0] = SIDE - 1;
+
+        int boxCount = 1;
+        int next = 0;
+        while (boxCount < maxColors) {
+            if (cut(next, boxCount)) {
+                variances[next] = getVolume(next) > 1 ? getVariance(next) : 0;
+                variances[boxCount] = getVolume(boxCount) > 1 ? getVariance(boxCount) : 0;
+                boxCount++;
+            } else {
+                // The box can not be cut, so make sure it is not picked again
+                variances[next] = 0;
+            }
+
+            // Cut the box with the largest variance next
+            next = 0;
+            double maxVariance = variances[0];
+            for (int i = 1; i < boxCount; i++) {
+                if (variances[i] > maxVariance) {
+                    maxVariance = variances[i];
+                    next = i;
+                }
+            }
+            if (maxVariance <= 0) {
+                // If we get here then there are no more boxes to cut
+                break;
+            }
+        }
+        return boxCount;
+    }
+
+    private List<Swatch> generateAverageColors(final int boxCount,
+            final Palette.Filter[] filters) {
+        final ArrayList<Swatch> colors = new ArrayList<>(boxCount);
+        for (int box = 0; box < boxCount; box++) {
+            final int population = volume(box, mWeights);
+            if (population <= 0) {
+                continue;
+            }
+
+            final int redMean = Math.round(volume(box, mMomentsRed) / (float) population);
+            final int greenMean = Math.round(volume(box, mMomentsGreen) / (float) population);
+            final int blueMean = Math.round(volume(box, mMomentsBlue) / (float) population);
+
+            final Swatch swatch = new Swatch(
+                    ColorCutQuantizer.approximateToRgb888(redMean, greenMean, blueMean),
+                    population);
+            if (!ColorCutQuantizer.shouldIgnoreColor(swatch.getRgb(), swatch.getHsl(), filters)) {
+                // As we're averaging a color box, we can still get colors which we do not
+                // want, so we check again here
+                colors.add(swatch);
+            }
+        }
+        return colors;
+    }
+
+    private int getVolume(int box) {
+        return (mRed1[box] - mRed0[box]) * (mGreen1[box] - mGreen0[box])
+                * (mBlue1[box] - mBlue0[box]);
+    }
+
+    private double getVariance(int box) {
+        final double dr = volume(box, mMomentsRed);
+        final double dg = volume(box, mMomentsGreen);
+        final double db = volume(box, mMomentsBlue);
+        final double xx = volume(box, mMoments);
+        final double hypotenuse = dr * dr + dg * dg + db * db;
+        return xx - hypotenuse / volume(box, mWeights);
+    }
+
+    /**
+     * Cut box {@code one} where the summed variance of both halves is lowest, moving the upper
+     * half into box {@code two}.
+     *
+     * @return false if the box can not be cut
+     */
+    private boolean cut(int one, int two) {
+        final int wholeRed = volume(one, mMomentsRed);
+        final int wholeGreen = volume(one, mMomentsGreen);
+        final int wholeBlue = volume(one, mMomentsBlue);
+        final int wholeWeight = volume(one, mWeights);
+
+        final double maxRed = maximize(one, DIMENSION_RED, mRed0[one] + 1, mRed1[one],
+                wholeRed, wholeGreen, wholeBlue, wholeWeight);
+        final int cutRed = mCut;
+        final double maxGreen = maximize(one, DIMENSION_GREEN, mGreen0[one] + 1, mGreen1[one],
+                wholeRed, wholeGreen, wholeBlue, wholeWeight);
+        final int cutGreen = mCut;
+        final double maxBlue = maximize(one, DIMENSION_BLUE, mBlue0[one] + 1, mBlue1[one],
+                wholeRed, wholeGreen, wholeBlue, wholeWeight);
+        final int cutBlue = mCut;
+
+        mRed1[two] = mRed1[one];
+        mGreen1[two] = mGreen1[one];
+        mBlue1[two] = mBlue1[one];
+
+        if (maxRed >= maxGreen && maxRed >= maxBlue) {
+            if (cutRed < 0) {
+                return false;
+            }
+            mRed1[one] = mRed0[two] = cutRed;
+            mGreen0[two] = mGreen0[one];
+            mBlue0[two] = mBlue0[one];
+        } else if (maxGreen >= maxRed && maxGreen >= maxBlue) {
+            mGreen1[one] = mGreen0[two] = cutGreen;
+            mRed0[two] = mRed0[one];
+            mBlue0[two] = mBlue0[one];
+        } else {
+            mBlue1[one] = mBlue0[two] = cutBlue;
+            mRed0[two] = mRed0[one];
+            mGreen0[two] = mGreen0[one];
+        }
+        return true;
+    }
+
+    /**
+     * Find the cut along {@code dimension} which maximizes the sum of the squared color sums
+     * of both halves over their populations, which minimizes their summed variance. The
+     * position of the cut is left in {@link #mCut}, or -1 if there is no valid cut.
+     */
+    private double maximize(int box, int dimension, int first, int last, int wholeRed,
+            int wholeGreen, int wholeBlue, int wholeWeight) {
+        final int bottomRed = bottom(box, dimension, mMomentsRed);
+        final int bottomGreen = bottom(box, dimension, mMomentsGreen);
+        final int bottomBlue = bottom(box, dimension, mMomentsBlue);
+        final int bottomWeight = bottom(box, dimension, mWeights);
+
+        double max = 0;
+        mCut = -1;
+
+        for (int i = first; i < last; i++) {
+            int halfRed = bottomRed + top(box, dimension, i, mMomentsRed);
+            int halfGreen = bottomGreen + top(box, dimension, i, mMomentsGreen);
+            int halfBlue = bottomBlue + top(box, dimension, i, mMomentsBlue);
+            int halfWeight = bottomWeight + top(box, dimension, i, mWeights);
+            if (halfWeight == 0) {
+                continue;
+            }
+
+            double temp = ((double) halfRed * halfRed + (double) halfGreen * halfGreen
+                    + (double) halfBlue * halfBlue) / halfWeight;
+
+            halfRed = wholeRed - halfRed;
+            halfGreen = wholeGreen - halfGreen;
+            halfBlue = wholeBlue - halfBlue;
+            halfWeight = wholeWeight - halfWeight;
+            if (halfWeight == 0) {
+                continue;
+            }
+
+            temp += ((double) halfRed * halfRed + (double) halfGreen * halfGreen
+                    + (double) halfBlue * halfBlue) / halfWeight;
+
+            if (temp > max) {
+                max = temp;
+                mCut = i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the sum of {@code moment} over a box, from the cumulative table
+     */
+    private int volume(int box, int[] moment) {
+        final int r0 = mRed0[box], r1 = mRed1[box];
+        final int g0 = mGreen0[box], g1 = mGreen1[box];
+        final int b0 = mBlue0[box], b1 = mBlue1[box];
+        return moment[getIndex(r1, g1, b1)]
+                - moment[getIndex(r1, g1, b0)]
+                - moment[getIndex(r1, g0, b1)]
+                + moment[getIndex(r1, g0, b0)]
+                - moment[getIndex(r0, g1, b1)]
+                + moment[getIndex(r0, g1, b0)]
+                + moment[getIndex(r0, g0, b1)]
+                - moment[getIndex(r0, g0, b0)];
+    }
+
+    private double volume(int box, double[] moment) {
+        final int r0 = mRed0[box], r1 = mRed1[box];
+        final int g0 = mGreen0[box], g1 = mGreen1[box];
+        final int b0 = mBlue0[box], b1 = mBlue1[box];
+        return moment[getIndex(r1, g1, b1)]
+                - moment[getIndex(r1, g1, b0)]
+                - moment[getIndex(r1, g0, b1)]
+                + moment[getIndex(r1, g0, b0)]
+                - moment[getIndex(r0, g1, b1)]
+                + moment[getIndex(r0, g1, b0)]
+                + moment[getIndex(r0, g0, b1)]
+                - moment[getIndex(r0, g0, b0)];
+    }
+
+    /**
+     * @return the part of the sum of {@code moment} over a box which does not depend on the
+     * position of a cut along {@code dimension}
+     */
+    private int bottom(int box, int dimension, int[] moment) {
+        final int r0 = mRed0[box], r1 = mRed1[box];
+        final int g0 = mGreen0[box], g1 = mGreen1[box];
+        final int b0 = mBlue0[box], b1 = mBlue1[box];
+        switch (dimension) {
+            case DIMENSION_RED:
+                return -moment[getIndex(r0, g1, b1)]
+                        + moment[getIndex(r0, g1, b0)]
+                        + moment[getIndex(r0, g0, b1)]
+                        - moment[getIndex(r0, g0, b0)];
+            case DIMENSION_GREEN:
+                return -moment[getIndex(r1, g0, b1)]
+                        + moment[getIndex(r1, g0, b0)]
+                        + moment[getIndex(r0, g0, b1)]
+                        - moment[getIndex(r0, g0, b0)];
+            default:
+                return -moment[getIndex(r1, g1, b0)]
+                        + moment[getIndex(r1, g0, b0)]
+                        + moment[getIndex(r0, g1, b0)]
+                        - moment[getIndex(r0, g0, b0)];
+        }
+    }
+
+    /**
+     * @return the remainder of the sum of {@code moment} over the lower half of a box, when cut
+     * along {@code dimension} at {@code position}
+     */
+    private int top(int box, int dimension, int position, int[] moment) {
+        final int r0 = mRed0[box], r1 = mRed1[box];
+        final int g0 = mGreen0[box], g1 = mGreen1[box];
+        final int b0 = mBlue0[box], b1 = mBlue1[box];
+        switch (dimension) {
+            case DIMENSION_RED:
+                return moment[getIndex(position, g1, b1)]
+                        - moment[getIndex(position, g1, b0)]
+                        - moment[getIndex(position, g0, b1)]
+                        + moment[getIndex(position, g0, b0)];
+            case DIMENSION_GREEN:
+                return moment[getIndex(r1, position, b1)]
+                        - moment[getIndex(r1, position, b0)]
+                        - moment[getIndex(r0, position, b1)]
+                        + moment[getIndex(r0, position, b0)];
+            default:
+                return moment[getIndex(r1, g1, position)]
+                        - moment[getIndex(r1, g0, position)]
+                        - moment[getIndex(r0, g1, position)]
+                        + moment[getIndex(r0, g0, position)];
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.internal.notification;
+
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of the LED colors generated from app icons, persisted across reboots.
+ *
+ * Each color is stored along with the version code and icon resource of the package it was
+ * generated for. Entries read back from disk are only used once they have been checked against
+ * the installed package, which then holds until the entry is invalidated for a package update
+ * or removal. The least recently used entries are dropped once the cache is full.
+ *
+ * Disk access happens on the given handler, the cache itself is thread-safe.
+ *
+ * @hide
+ */
+final class LedColorCache {
+    private static final String TAG = "LedColorCache";
+
+    private static final int FILE_VERSION = 1;
+    // Enough for the colors of every launcher package on most devices
+    static final int MAX_ENTRIES = 512;
+
+    // Coalesce the writes of colors generated in a burst
+    private static final long WRITE_DELAY_MS = 10 * 1000;
+
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+
+    // Must synchronize on 'this' to access the fields below
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private boolean mWriteScheduled;
+
+    private static final class Entry {
+        final int mVersionCode;
+        final int mIconRes;
+        final int mColor;
+        // Whether the entry has been checked against the installed package since boot
+        boolean mVerified;
+
+        Entry(int versionCode, int iconRes, int color, boolean verified) {
+            mVersionCode = versionCode;
+            mIconRes = iconRes;
+            mColor = color;
+            mVerified = verified;
+        }
+    }
+
+    LedColorCache(File file, Handler handler) {
+        mFile = new AtomicFile(file);
+        mHandler = handler;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                readFromDisk();
+            }
+        });
+    }
+
+    /**
+     * @return the color of a package if it has been verified since boot, or null
+     */
+    synchronized Integer getColor(String packageName) {
+        final Entry entry = mEntries.get(packageName);
+        return entry != null && entry.mVerified ? entry.mColor : null;
+    }
+
+    /**
+     * Check the entry of a package against the installed version of the package.
+     *
+     * @return the color of the package if it is still valid, or null
+     */
+    synchronized Integer verifyColor(String packageName, int versionCode, int iconRes) {
+        final Entry entry = mEntries.get(packageName);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mVersionCode != versionCode || entry.mIconRes != iconRes) {
+            mEntries.remove(packageName);
+            scheduleWriteLocked();
+            return null;
+        }
+        entry.mVerified = true;
+        return entry.mColor;
+    }
+
+    synchronized void putColor(String packageName, int versionCode, int iconRes, int color) {
+        mEntries.put(packageName, new Entry(versionCode, iconRes, color, true));
+        trimLocked();
+        scheduleWriteLocked();
+    }
+
+    /**
+     * Drop the color of a package, as its icon may have changed.
+     */
+    synchronized void invalidate(String packageName) {
+        if (mEntries.remove(packageName) != null) {
+            scheduleWriteLocked();
+        }
+    }
+
+    private void trimLocked() {
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (mEntries.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void scheduleWriteLocked() {
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+        }
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeToDisk();
+        }
+    };
+
+    private void readFromDisk() {
+        final ArrayList<String> packageNames = new ArrayList<String>();
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        FileInputStream fis = null;
+        try {
+            fis = mFile.openRead();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                packageNames.add(in.readUTF());
+                entries.add(new Entry(in.readInt(), in.readInt(), in.readInt(), false));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read " + mFile.getBaseFile(), e);
+            packageNames.clear();
+            entries.clear();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        synchronized (this) {
+            // Entries are stored least recently used first. Anything generated since boot is
+            // newer, so it replaces the persisted entry and stays the most recently used.
+            final LinkedHashMap<String, Entry> current = new LinkedHashMap<String, Entry>(mEntries);
+            mEntries.clear();
+            for (int i = 0; i < packageNames.size(); i++) {
+                final String packageName = packageNames.get(i);
+                if (!current.containsKey(packageName)) {
+                    mEntries.put(packageName, entries.get(i));
+                }
+            }
+            mEntries.putAll(current);
+            trimLocked();
+        }
+    }
+
+    private void writeToDisk() {
+        final ArrayList<String> packageNames;
+        final ArrayList<Entry> entries;
+        synchronized (this) {
+            mWriteScheduled = false;
+            packageNames = new ArrayList<String>(mEntries.keySet());
+            entries = new ArrayList<Entry>(mEntries.values());
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                final Entry entry = entries.get(i);
+                out.writeUTF(packageNames.get(i));
+                out.writeInt(entry.mVersionCode);
+                out.writeInt(entry.mIconRes);
+                out.writeInt(entry.mColor);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
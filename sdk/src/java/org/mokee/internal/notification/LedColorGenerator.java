@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.internal.notification;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import mokee.util.ColorUtils;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates the LED colors of packages from their icons on a small pool of background threads,
+ * so that the notification path only ever reads the {@link LedColorCache}.
+ *
+ * @hide
+ */
+final class LedColorGenerator {
+    private static final String TAG = "LedColorGenerator";
+
+    // Icons are decoded and quantized off the notification path, by at most this many threads
+    private static final int MAX_LED_COLOR_THREADS = 2;
+    private static final long LED_COLOR_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // Outcomes of generating the LED color of a package
+    private static final int LED_COLOR_NONE = 0;
+    private static final int LED_COLOR_GENERATED = 1;
+    private static final int LED_COLOR_VERIFIED = 2;
+
+    private final Context mContext;
+    private final LedColorCache mCache;
+    private final Handler mHandler;
+    private final Runnable mColorReadyCallback;
+    private final ThreadPoolExecutor mExecutor;
+
+    // Packages whose LED color is being generated, mapped to whether a notification is waiting
+    // for the color. Must synchronize on it.
+    private final ArrayMap<String, Boolean> mPendingLedColors = new ArrayMap<String, Boolean>();
+
+    // Whether generated colors are in use, warm-ups stop early once they are not
+    private volatile boolean mEnabled = true;
+
+    /**
+     * @param context the context to look up packages and their icons with
+     * @param cache the cache to read and store the colors in
+     * @param handler the handler to run colorReadyCallback on
+     * @param colorReadyCallback run once a color a notification waited for has been generated
+     */
+    LedColorGenerator(Context context, LedColorCache cache, Handler handler,
+            Runnable colorReadyCallback) {
+        mContext = context;
+        mCache = cache;
+        mHandler = handler;
+        mColorReadyCallback = colorReadyCallback;
+        mExecutor = new ThreadPoolExecutor(MAX_LED_COLOR_THREADS, MAX_LED_COLOR_THREADS,
+                LED_COLOR_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return the color of a package if it is cached and verified, or null. Never blocks on
+     *         generating a color.
+     */
+    Integer getColor(String packageName) {
+        return mCache.getColor(packageName);
+    }
+
+    /**
+     * Drop the color of a package, as its icon may have changed.
+     */
+    void invalidate(String packageName) {
+        mCache.invalidate(packageName);
+    }
+
+    /**
+     * Generate the color of a package for a notification which is shown with the default color
+     * meanwhile. Returns right away, the callback is run once the color is ready.
+     */
+    void generateAsync(final String packageName) {
+        if (!beginLedColorGeneration(packageName, true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int result = LED_COLOR_NONE;
+                try {
+                    result = generateLedColor(packageName);
+                } finally {
+                    endLedColorGeneration(packageName, result != LED_COLOR_NONE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Generate the colors of a set of packages ahead of their first notifications.
+     */
+    void warmUp(Collection<String> packageNames) {
+        new LedColorWarmUp(packageNames).start();
+    }
+
+    /**
+     * Run a task on the LED color threads, e.g. to look up the packages to warm up.
+     */
+    void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Mark the LED color of a package as being generated.
+     *
+     * @param notificationWaiting whether a notification is shown with the default color until
+     *        the color has been generated
+     * @return whether the caller should generate the color, false if it is already underway
+     */
+    private boolean beginLedColorGeneration(String packageName, boolean notificationWaiting) {
+        synchronized (mPendingLedColors) {
+            final Boolean waiting = mPendingLedColors.get(packageName);
+            if (waiting != null) {
+                if (notificationWaiting && !waiting) {
+                    // Let whoever is generating the color update the lights
+                    mPendingLedColors.put(packageName, Boolean.TRUE);
+                }
+                return false;
+            }
+            mPendingLedColors.put(packageName, notificationWaiting);
+            return true;
+        }
+    }
+
+    /**
+     * Mark the LED color of a package as generated, and run the callback if a notification
+     * was waiting for it.
+     */
+    private void endLedColorGeneration(String packageName, boolean hasColor) {
+        final Boolean waiting;
+        synchronized (mPendingLedColors) {
+            waiting = mPendingLedColors.remove(packageName);
+        }
+        if (hasColor && Boolean.TRUE.equals(waiting)) {
+            mHandler.post(mColorReadyCallback);
+        }
+    }
+
+    /**
+     * Generate the LED color of a package from its icon, unless a persisted color is still
+     * valid, and add it to the cache.
+     *
+     * @return {@link #LED_COLOR_GENERATED} or {@link #LED_COLOR_VERIFIED} if the package has a
+     *         color now, {@link #LED_COLOR_NONE} otherwise
+     */
+    private int generateLedColor(String packageName) {
+        PackageManager pm = mContext.getPackageManager();
+        PackageInfo info;
+        try {
+            info = pm.getPackageInfo(packageName, 0);
+        } catch (NameNotFoundException e) {
+            Slog.e(TAG, e.getMessage(), e);
+            return LED_COLOR_NONE;
+        }
+
+        // A color persisted before the last reboot is still good if the package is unchanged
+        if (mCache.verifyColor(packageName, info.versionCode,
+                info.applicationInfo.icon) != null) {
+            return LED_COLOR_VERIFIED;
+        }
+
+        final Drawable icon = pm.getApplicationIcon(info.applicationInfo);
+        final int color = ColorUtils.generateAlertColorFromDrawable(icon);
+        mCache.putColor(packageName, info.versionCode, info.applicationInfo.icon, color);
+        return LED_COLOR_GENERATED;
+    }
+
+    /**
+     * Generate the LED color of a package ahead of its first notification.
+     *
+     * @return {@link #LED_COLOR_GENERATED} or {@link #LED_COLOR_VERIFIED} if a color was added
+     *         to the cache, {@link #LED_COLOR_NONE} otherwise
+     */
+    private int warmUpLedColor(String packageName) {
+        if (!mEnabled) {
+            return LED_COLOR_NONE;
+        }
+        if (!beginLedColorGeneration(packageName, false)) {
+            return LED_COLOR_NONE;
+        }
+        int result = LED_COLOR_NONE;
+        boolean hasColor = false;
+        try {
+            if (mCache.getColor(packageName) != null) {
+                hasColor = true;
+            } else {
+                result = generateLedColor(packageName);
+                hasColor = result != LED_COLOR_NONE;
+            }
+        } finally {
+            endLedColorGeneration(packageName, hasColor);
+        }
+        return result;
+    }
+
+    /**
+     * Warms up the LED colors of a set of packages on the LED color threads. Each thread
+     * handles a single package before queueing itself again, so colors requested by
+     * notifications in the meantime don't wait for the whole set.
+     */
+    private final class LedColorWarmUp implements Runnable {
+        private final ConcurrentLinkedQueue<String> mPackageNames;
+        private final int mPackageCount;
+        private final AtomicInteger mRemaining;
+        private final AtomicInteger mGenerated = new AtomicInteger();
+        private final AtomicInteger mVerified = new AtomicInteger();
+        private final long mStartTime = SystemClock.elapsedRealtime();
+
+        LedColorWarmUp(Collection<String> packageNames) {
+            mPackageNames = new ConcurrentLinkedQueue<String>(packageNames);
+            mPackageCount = mPackageNames.size();
+            mRemaining = new AtomicInteger(mPackageCount);
+        }
+
+        void start() {
+            for (int i = 0; i < Math.min(MAX_LED_COLOR_THREADS, mPackageCount); i++) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            final String packageName = mPackageNames.poll();
+            if (packageName == null) {
+                return;
+            }
+            try {
+                switch (warmUpLedColor(packageName)) {
+                    case LED_COLOR_GENERATED:
+                        mGenerated.incrementAndGet();
+                        break;
+                    case LED_COLOR_VERIFIED:
+                        mVerified.incrementAndGet();
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // A broken icon must not stall the packages queued behind it
+                Slog.w(TAG, "Failed to warm up the LED color of " + packageName, e);
+            }
+            if (mRemaining.decrementAndGet() == 0) {
+                Slog.i(TAG, "Warmed up LED colors of " + mPackageCount + " packages ("
+                        + mGenerated.get() + " generated, " + mVerified.get()
+                        + " restored) in "
+                        + (SystemClock.elapsedRealtime() - mStartTime) + " ms");
+                return;
+            }
+            mExecutor.execute(this);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.internal.notification;
+
+/**
+ * Helpers for the settings values read in a single batch by the lights controllers.
+ */
+final class LightsSettings {
+
+    private LightsSettings() {
+    }
+
+    /**
+     * Parse a settings value as an integer.
+     *
+     * @param value the value as returned by the batch settings call, may be null
+     * @param def the value to return if the setting is not set or not a valid integer
+     */
+    static int parseInt(String value, int def) {
+        try {
+            return value != null ? Integer.parseInt(value) : def;
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
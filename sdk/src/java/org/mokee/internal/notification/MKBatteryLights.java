@@ -35,6 +35,21 @@ public final class MKBatteryLights {
     private final String TAG = "MKBatteryLights";
     private final boolean DEBUG = false;
 
+    // Settings read by SettingsObserver.update(), and their indices
+    private static final int INDEX_ENABLED = 0;
+    private static final int INDEX_PULSE = 1;
+    private static final int INDEX_LOW_COLOR = 2;
+    private static final int INDEX_MEDIUM_COLOR = 3;
+    private static final int INDEX_FULL_COLOR = 4;
+
+    private static final String[] SETTINGS_KEYS = new String[] {
+            MKSettings.System.BATTERY_LIGHT_ENABLED,
+            MKSettings.System.BATTERY_LIGHT_PULSE,
+            MKSettings.System.BATTERY_LIGHT_LOW_COLOR,
+            MKSettings.System.BATTERY_LIGHT_MEDIUM_COLOR,
+            MKSettings.System.BATTERY_LIGHT_FULL_COLOR
+    };
+
     // Battery light capabilities.
     private final boolean mMultiColorLed;
     private final boolean mUseSegmentedBatteryLed;
@@ -163,24 +178,26 @@ public final class MKBatteryLights {
             ContentResolver resolver = mContext.getContentResolver();
             Resources res = mContext.getResources();
 
+            // Fetch everything we need with a single round trip to the provider
+            final String[] values = MKSettings.System.getStringsForUser(resolver,
+                    SETTINGS_KEYS, UserHandle.myUserId());
+
             // Battery light enabled
-            mLightEnabled = MKSettings.System.getInt(resolver,
-                    MKSettings.System.BATTERY_LIGHT_ENABLED, 1) != 0;
+            mLightEnabled = LightsSettings.parseInt(values[INDEX_ENABLED], 1) != 0;
 
             // Low battery pulse
-            mLedPulseEnabled = MKSettings.System.getInt(resolver,
-                        MKSettings.System.BATTERY_LIGHT_PULSE, 1) != 0;
+            mLedPulseEnabled = LightsSettings.parseInt(values[INDEX_PULSE], 1) != 0;
 
             // Light colors
-            mBatteryLowARGB = MKSettings.System.getInt(resolver,
-                    MKSettings.System.BATTERY_LIGHT_LOW_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryLowARGB));
-            mBatteryMediumARGB = MKSettings.System.getInt(resolver,
-                    MKSettings.System.BATTERY_LIGHT_MEDIUM_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryMediumARGB));
-            mBatteryFullARGB = MKSettings.System.getInt(resolver,
-                    MKSettings.System.BATTERY_LIGHT_FULL_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryFullARGB));
+            mBatteryLowARGB = LightsSettings.parseInt(values[INDEX_LOW_COLOR],
+                    res.getInteger(
+                            com.android.internal.R.integer.config_notificationsBatteryLowARGB));
+            mBatteryMediumARGB = LightsSettings.parseInt(values[INDEX_MEDIUM_COLOR],
+                    res.getInteger(
+                            com.android.internal.R.integer.config_notificationsBatteryMediumARGB));
+            mBatteryFullARGB = LightsSettings.parseInt(values[INDEX_FULL_COLOR],
+                    res.getInteger(
+                            com.android.internal.R.integer.config_notificationsBatteryFullARGB));
 
             mLedUpdater.update();
         }
@@ -23,32 +23,67 @@ import static android.service.notification.NotificationListenerService.SUPPRESSE
 
 import android.app.KeyguardManager;
 import android.app.Notification;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.ContentResolver;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.database.ContentObserver;
-import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 
+import com.android.internal.os.BackgroundThread;
+
 import mokee.providers.MKSettings;
-import mokee.util.ColorUtils;
 
 import org.mokee.internal.notification.LedValues;
 import org.mokee.internal.notification.LightsCapabilities;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public final class MKNotificationLights {
     private static final String TAG = "MKNotificationLights";
     private static final boolean DEBUG = false;
 
+    // Settings read by SettingsObserver.update(), and their indices
+    private static final int INDEX_COLOR_AUTO = 0;
+    private static final int INDEX_DEFAULT_COLOR = 1;
+    private static final int INDEX_DEFAULT_LED_ON = 2;
+    private static final int INDEX_DEFAULT_LED_OFF = 3;
+    private static final int INDEX_CUSTOM_ENABLE = 4;
+    private static final int INDEX_CUSTOM_VALUES = 5;
+    private static final int INDEX_BRIGHTNESS_LEVEL = 6;
+    private static final int INDEX_SCREEN_ON = 7;
+
+    // Leave the boot and whatever the user is doing some time before warming up the colors
+    private static final long LED_COLOR_WARM_UP_DELAY_MS = 2 * 60 * 1000;
+
+    // Returned by parseCustomLedValue() for values which are not valid integers
+    private static final long INVALID_VALUE = Long.MIN_VALUE;
+
+    private static final String[] SETTINGS_KEYS = new String[] {
+            MKSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
+            MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
+            MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
+            MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
+            MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+            MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+            MKSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+            MKSettings.System.NOTIFICATION_LIGHT_SCREEN_ON
+    };
+
     // Light capabilities
     private boolean mAdjustableNotificationLedBrightness;
     private boolean mMultiColorNotificationLed;
@@ -62,9 +97,12 @@ public final class MKNotificationLights {
     private int mDefaultNotificationLedOff;
 
     private ArrayMap<String, LedValues> mNotificationPulseCustomLedValues;
+    // The custom LED values setting mNotificationPulseCustomLedValues was parsed from
+    private String mNotificationPulseCustomValues;
     private Map<String, String> mPackageNameMappings;
-    private final ArrayMap<String, Integer> mGeneratedPackageLedColors =
-            new ArrayMap<String, Integer>();
+    private final LedColorGenerator mLedColorGenerator;
+    // Whether the colors of the launcher packages have been warmed up for the current settings
+    private boolean mLedColorWarmUpScheduled;
 
     // For checking lockscreen status
     private KeyguardManager mKeyguardManager;
@@ -72,6 +110,7 @@ public final class MKNotificationLights {
     private final SettingsObserver mSettingsObserver;
 
     private final Context mContext;
+    private final Handler mHandler;
 
     public interface LedUpdater {
         public void update();
@@ -81,6 +120,7 @@ public final class MKNotificationLights {
     public MKNotificationLights(Context context, LedUpdater ledUpdater) {
         mContext = context;
         mLedUpdater = ledUpdater;
+        mHandler = new Handler();
 
         final Resources res = mContext.getResources();
 
@@ -110,7 +150,25 @@ public final class MKNotificationLights {
         mKeyguardManager =
                 (KeyguardManager) mContext.getSystemService(Context.KEYGUARD_SERVICE);
 
-        mSettingsObserver = new SettingsObserver(new Handler());
+        mLedColorGenerator = new LedColorGenerator(mContext, new LedColorCache(
+                new File(Environment.getDataSystemDirectory(), "notification_led_colors"),
+                BackgroundThread.getHandler()), mHandler, new Runnable() {
+                    @Override
+                    public void run() {
+                        mLedUpdater.update();
+                    }
+                });
+
+        // The icon of a package may change when it is updated
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, packageFilter,
+                null, null);
+
+        mSettingsObserver = new SettingsObserver(mHandler);
         mSettingsObserver.observe();
     }
 
@@ -127,37 +185,135 @@ public final class MKNotificationLights {
     }
 
     private void parseNotificationPulseCustomValuesString(String customLedValuesString) {
+        if (TextUtils.equals(customLedValuesString, mNotificationPulseCustomValues)) {
+            return;
+        }
+        mNotificationPulseCustomValues = customLedValuesString;
+        applyCustomLedValues(customLedValuesString, mNotificationPulseCustomLedValues);
+    }
+
+    /**
+     * Apply the custom LED values setting, formatted as "package=color;onMs;offMs|...", to
+     * ledValues in a single pass. Only the entries which changed are replaced, and the
+     * packages which are no longer listed are removed.
+     */
+    static void applyCustomLedValues(String customLedValuesString,
+            ArrayMap<String, LedValues> ledValues) {
         if (TextUtils.isEmpty(customLedValuesString)) {
+            ledValues.clear();
             return;
         }
 
-        for (String packageValuesString : customLedValuesString.split("\\|")) {
-            String[] packageValues = packageValuesString.split("=");
-            if (packageValues.length != 2) {
-                Slog.e(TAG, "Error parsing custom led values for unknown package");
-                continue;
+        final ArraySet<String> packageNames = new ArraySet<String>(ledValues.size());
+        final int length = customLedValuesString.length();
+        int start = 0;
+        while (start < length) {
+            int end = customLedValuesString.indexOf('|', start);
+            if (end < 0) {
+                end = length;
             }
-            String packageName = packageValues[0];
-            String[] values = packageValues[1].split(";");
-            if (values.length != 3) {
-                Slog.e(TAG, "Error parsing custom led values '"
-                        + packageValues[1] + "' for " + packageName);
-                continue;
+            if (end > start) {
+                final String packageName =
+                        applyPackageLedValues(customLedValuesString, start, end, ledValues);
+                if (packageName != null) {
+                    packageNames.add(packageName);
+                }
             }
-            LedValues ledValues;
-            try {
-                // color, onMs, offMs
-                ledValues = new LedValues(Integer.parseInt(values[0]),
-                        Integer.parseInt(values[1]), Integer.parseInt(values[2]));
-            } catch (NumberFormatException e) {
-                Slog.e(TAG, "Error parsing custom led values '"
-                        + packageValues[1] + "' for " + packageName);
-                continue;
+            start = end + 1;
+        }
+
+        for (int i = ledValues.size() - 1; i >= 0; i--) {
+            if (!packageNames.contains(ledValues.keyAt(i))) {
+                ledValues.removeAt(i);
             }
-            mNotificationPulseCustomLedValues.put(packageName, ledValues);
         }
     }
 
+    /**
+     * Parse the custom LED values of a single package, found between start and end, and
+     * update ledValues if they changed.
+     *
+     * @return the name of the package, or null if the values are invalid
+     */
+    private static String applyPackageLedValues(String s, int start, int end,
+            ArrayMap<String, LedValues> ledValues) {
+        // Trailing separators have always been ignored
+        while (end > start && s.charAt(end - 1) == '=') {
+            end--;
+        }
+        final int separator = s.indexOf('=', start);
+        if (separator < 0 || separator >= end) {
+            Slog.e(TAG, "Error parsing custom led values for unknown package");
+            return null;
+        }
+        final String packageName = s.substring(start, separator);
+
+        // color, onMs, offMs
+        final int colorEnd = s.indexOf(';', separator + 1);
+        final int onMsEnd = colorEnd >= 0 ? s.indexOf(';', colorEnd + 1) : -1;
+        int offMsEnd = end;
+        while (offMsEnd > onMsEnd + 1 && s.charAt(offMsEnd - 1) == ';') {
+            offMsEnd--;
+        }
+        final long color, onMs, offMs;
+        if (onMsEnd < 0 || onMsEnd >= end
+                || (color = parseCustomLedValue(s, separator + 1, colorEnd)) == INVALID_VALUE
+                || (onMs = parseCustomLedValue(s, colorEnd + 1, onMsEnd)) == INVALID_VALUE
+                || (offMs = parseCustomLedValue(s, onMsEnd + 1, offMsEnd)) == INVALID_VALUE) {
+            Slog.e(TAG, "Error parsing custom led values '"
+                    + s.substring(separator + 1, end) + "' for " + packageName);
+            return null;
+        }
+
+        final LedValues current = ledValues.get(packageName);
+        if (current == null || current.getColor() != color || current.getOnMs() != onMs
+                || current.getOffMs() != offMs) {
+            ledValues.put(packageName, new LedValues((int) color, (int) onMs, (int) offMs));
+        }
+        return packageName;
+    }
+
+    /**
+     * Parse the decimal integer found between start and end, as Integer.parseInt() does.
+     *
+     * @return the integer, or INVALID_VALUE
+     */
+    private static long parseCustomLedValue(String s, int start, int end) {
+        if (start >= end) {
+            return INVALID_VALUE;
+        }
+        final char first = s.charAt(start);
+        final boolean negative = first == '-';
+        int i = start;
+        if (negative || first == '+') {
+            if (++i == end) {
+                return INVALID_VALUE;
+            }
+        }
+        final long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c > 0x7f) {
+                // Integer.parseInt() also takes the digits of other scripts
+                try {
+                    return Integer.parseInt(s.substring(start, end));
+                } catch (NumberFormatException e) {
+                    return INVALID_VALUE;
+                }
+            }
+            final int digit = c - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value > limit) {
+                return INVALID_VALUE;
+            }
+        }
+        return negative ? -value : value;
+    }
+
     private LedValues getLedValuesForPackageName(String packageName) {
         return mNotificationPulseCustomLedValues.get(mapPackage(packageName));
     }
@@ -170,27 +326,78 @@ public final class MKNotificationLights {
             return mDefaultNotificationColor;
         }
         final String mapping = mapPackage(packageName);
-        int color = mDefaultNotificationColor;
 
-        if (mGeneratedPackageLedColors.containsKey(mapping)) {
-            return mGeneratedPackageLedColors.get(mapping);
+        final Integer cachedColor = mLedColorGenerator.getColor(mapping);
+        if (cachedColor != null) {
+            return cachedColor;
         }
 
-        PackageManager pm = mContext.getPackageManager();
-        Drawable icon;
-        try {
-            icon = pm.getApplicationIcon(mapping);
-        } catch (NameNotFoundException e) {
-            Slog.e(TAG, e.getMessage(), e);
-            return color;
-        }
+        // Don't decode the icon while NotificationManagerService holds its lock. Show the
+        // default color for now, and update the lights once the color has been generated.
+        mLedColorGenerator.generateAsync(mapping);
+        return mDefaultNotificationColor;
+    }
 
-        color = ColorUtils.generateAlertColorFromDrawable(icon);
-        mGeneratedPackageLedColors.put(mapping, color);
+    private boolean canGenerateLedColors() {
+        return mAutoGenerateNotificationColor && mMultiColorNotificationLed;
+    }
 
-        return color;
+    private final Runnable mLedColorWarmUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Query the packages on a LED color thread, not to hold up the handler
+            mLedColorGenerator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (canGenerateLedColors()) {
+                        mLedColorGenerator.warmUp(getLauncherPackages());
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * @return the packages shown in the launcher, and the packages notifications are mapped to,
+     *         up to the capacity of the color cache
+     */
+    private ArraySet<String> getLauncherPackages() {
+        final Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        final List<ResolveInfo> activities =
+                mContext.getPackageManager().queryIntentActivities(intent, 0);
+
+        final ArraySet<String> packageNames = new ArraySet<String>();
+        packageNames.addAll(mPackageNameMappings.values());
+        for (int i = 0; i < activities.size()
+                && packageNames.size() < LedColorCache.MAX_ENTRIES; i++) {
+            packageNames.add(activities.get(i).activityInfo.packageName);
+        }
+        return packageNames;
     }
 
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri uri = intent.getData();
+            final String packageName = uri != null ? uri.getSchemeSpecificPart() : null;
+            if (packageName == null) {
+                return;
+            }
+            mLedColorGenerator.invalidate(packageName);
+
+            // A package added in place of another one is handled on ACTION_PACKAGE_REPLACED
+            final String action = intent.getAction();
+            if (Intent.ACTION_PACKAGE_REPLACED.equals(action)
+                    || (Intent.ACTION_PACKAGE_ADDED.equals(action)
+                            && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))) {
+                if (canGenerateLedColors()) {
+                    mLedColorGenerator.warmUp(Collections.singleton(mapPackage(packageName)));
+                }
+            }
+        }
+    };
+
     private String mapPackage(String pkg) {
         if (!mPackageNameMappings.containsKey(pkg)) {
             return pkg;
@@ -201,6 +408,8 @@ public final class MKNotificationLights {
     // Called by NotificationManagerService updateLightsLocked().
     // Takes the lights values as requested by a notification and
     // updates them according to the active Lineage feature settings.
+    // Generated colors which are not cached yet are computed asynchronously,
+    // so this never waits on icon decoding.
     public void calcLights(LedValues ledValues, String packageName, boolean forcedOn,
             boolean screenOn, boolean inCall, boolean isDefaultLights, int suppressedEffects) {
         if (DEBUG) {
@@ -302,52 +511,53 @@ public final class MKNotificationLights {
 
         private void update() {
             ContentResolver resolver = mContext.getContentResolver();
-            Resources res = mContext.getResources();
+
+            // Fetch everything we need with a single round trip to the provider
+            final String[] values = MKSettings.System.getStringsForUser(resolver,
+                    SETTINGS_KEYS, UserHandle.USER_CURRENT);
 
             // Automatically pick a color for LED if not set
-            mAutoGenerateNotificationColor = MKSettings.System.getIntForUser(resolver,
-                    MKSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
-                    1, UserHandle.USER_CURRENT) != 0;
+            mAutoGenerateNotificationColor =
+                    LightsSettings.parseInt(values[INDEX_COLOR_AUTO], 1) != 0;
 
             // LED default color
-            mDefaultNotificationColor = MKSettings.System.getIntForUser(resolver,
-                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
-                    mDefaultNotificationColor, UserHandle.USER_CURRENT);
+            mDefaultNotificationColor = LightsSettings.parseInt(values[INDEX_DEFAULT_COLOR],
+                    mDefaultNotificationColor);
 
             // LED default on MS
-            mDefaultNotificationLedOn = MKSettings.System.getIntForUser(resolver,
-                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
-                    mDefaultNotificationLedOn, UserHandle.USER_CURRENT);
+            mDefaultNotificationLedOn = LightsSettings.parseInt(values[INDEX_DEFAULT_LED_ON],
+                    mDefaultNotificationLedOn);
 
             // LED default off MS
-            mDefaultNotificationLedOff = MKSettings.System.getIntForUser(resolver,
-                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
-                    mDefaultNotificationLedOff, UserHandle.USER_CURRENT);
-
-            // LED generated notification colors
-            mGeneratedPackageLedColors.clear();
+            mDefaultNotificationLedOff = LightsSettings.parseInt(values[INDEX_DEFAULT_LED_OFF],
+                    mDefaultNotificationLedOff);
 
             // LED custom notification colors
-            mNotificationPulseCustomLedValues.clear();
-            if (MKSettings.System.getIntForUser(resolver,
-                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0,
-                    UserHandle.USER_CURRENT) != 0) {
-                parseNotificationPulseCustomValuesString(MKSettings.System.getStringForUser(
-                        resolver, MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        UserHandle.USER_CURRENT));
+            if (LightsSettings.parseInt(values[INDEX_CUSTOM_ENABLE], 0) != 0) {
+                parseNotificationPulseCustomValuesString(values[INDEX_CUSTOM_VALUES]);
+            } else {
+                mNotificationPulseCustomLedValues.clear();
+                mNotificationPulseCustomValues = null;
             }
 
             // Notification LED brightness
             if (mAdjustableNotificationLedBrightness) {
-                mNotificationLedBrightnessLevel = MKSettings.System.getIntForUser(resolver,
-                        MKSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                mNotificationLedBrightnessLevel = LightsSettings.parseInt(
+                        values[INDEX_BRIGHTNESS_LEVEL], LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
             }
 
             // Notification lights with screen on
-            mScreenOnEnabled = (MKSettings.System.getIntForUser(resolver,
-                    MKSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0,
-                    UserHandle.USER_CURRENT) != 0);
+            mScreenOnEnabled = LightsSettings.parseInt(values[INDEX_SCREEN_ON], 0) != 0;
+
+            // Precompute the generated colors once they are enabled
+            mLedColorGenerator.setEnabled(canGenerateLedColors());
+            if (canGenerateLedColors() != mLedColorWarmUpScheduled) {
+                mLedColorWarmUpScheduled = canGenerateLedColors();
+                mHandler.removeCallbacks(mLedColorWarmUpRunnable);
+                if (mLedColorWarmUpScheduled) {
+                    mHandler.postDelayed(mLedColorWarmUpRunnable, LED_COLOR_WARM_UP_DELAY_MS);
+                }
+            }
 
             mLedUpdater.update();
         }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.providers;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+public class MKSettingsValidatorTest extends TestCase {
+
+    @SmallTest
+    public void testProtectedComponentsAcceptsWellFormedLists() {
+        assertValid(null);
+        assertValid("");
+        assertValid("com.foo/.Bar");
+        assertValid("com.foo/.Bar|com.baz/.Qux");
+    }
+
+    @SmallTest
+    public void testProtectedComponentsRejectsEmptyItems() {
+        assertInvalid("|");
+        assertInvalid("||");
+        assertInvalid("|com.foo/.Bar");
+        assertInvalid("com.foo/.Bar||com.baz/.Qux");
+    }
+
+    @SmallTest
+    public void testProtectedComponentsRejectsTrailingDelimiter() {
+        assertInvalid("com.foo/.Bar|");
+        assertInvalid("com.foo/.Bar||");
+        assertInvalid("com.foo/.Bar|com.baz/.Qux|");
+    }
+
+    private static void assertValid(String value) {
+        assertTrue(value, MKSettings.Secure.PROTECTED_COMPONENTS_VALIDATOR.validate(value));
+        assertTrue(value,
+                MKSettings.Secure.PROTECTED_COMPONENTS_MANAGER_VALIDATOR.validate(value));
+    }
+
+    private static void assertInvalid(String value) {
+        assertFalse(value, MKSettings.Secure.PROTECTED_COMPONENTS_VALIDATOR.validate(value));
+        assertFalse(value,
+                MKSettings.Secure.PROTECTED_COMPONENTS_MANAGER_VALIDATOR.validate(value));
+    }
+}
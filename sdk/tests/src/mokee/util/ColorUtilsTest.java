@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util;
+
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the color conversions of {@link ColorUtils} against the straightforward implementations
+ * they replaced.
+ */
+public class ColorUtilsTest extends TestCase {
+    // Lab values are scaled to about 0..255, this is well below a unit of the rounded values
+    private static final float LAB_TOLERANCE = 1e-4f;
+
+    // Relative difference allowed between the float and double deltaE, a few float ulps
+    private static final double DELTA_E_TOLERANCE = 1e-5;
+
+    // The colors findPerceptuallyNearestSolidColor() picks from
+    private static final int[] SOLID_COLORS = new int[] {
+        Color.RED, 0xFFFFA500, Color.YELLOW, Color.GREEN, Color.CYAN,
+        Color.BLUE, Color.MAGENTA, Color.WHITE, Color.BLACK
+    };
+
+    @SmallTest
+    public void testLabMatchesPowFormula() {
+        final float[] actual = new float[3];
+        // Every fifth value of each component, including 0 and 255
+        for (int r = 0; r < 256; r += 5) {
+            for (int g = 0; g < 256; g += 5) {
+                for (int b = 0; b < 256; b += 5) {
+                    assertLab(Color.rgb(r, g, b), actual);
+                }
+            }
+        }
+        // Grays and the values around the linear segment of the sRGB curve
+        for (int v = 0; v < 256; v++) {
+            assertLab(Color.rgb(v, v, v), actual);
+            assertLab(Color.rgb(v, 10, 11), actual);
+        }
+        final Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            assertLab(random.nextInt(), actual);
+        }
+    }
+
+    @SmallTest
+    public void testAllocatingLabMatchesBuffer() {
+        final Random random = new Random(2);
+        final float[] buffer = new float[3];
+        for (int i = 0; i < 1000; i++) {
+            final int color = random.nextInt();
+            ColorUtils.convertRGBtoLAB(color, buffer);
+            final float[] lab = ColorUtils.convertRGBtoLAB(color);
+            for (int c = 0; c < 3; c++) {
+                assertEquals(buffer[c], lab[c], 0f);
+            }
+        }
+    }
+
+    @LargeTest
+    public void testNearestSolidColorOfEveryCell() {
+        final Random random = new Random(3);
+        for (int cell = 0; cell < (1 << 15); cell++) {
+            final int r0 = (cell >> 10) << 3;
+            final int g0 = ((cell >> 5) & 0x1f) << 3;
+            final int b0 = (cell & 0x1f) << 3;
+            // The corners of the cell, where a cell is most likely to cross a boundary
+            for (int corner = 0; corner < 8; corner++) {
+                assertNearestSolidColor(Color.rgb(r0 + ((corner & 4) != 0 ? 7 : 0),
+                        g0 + ((corner & 2) != 0 ? 7 : 0), b0 + ((corner & 1) != 0 ? 7 : 0)));
+            }
+            // And a pixel inside of it
+            assertNearestSolidColor(Color.rgb(r0 + 1 + random.nextInt(6),
+                    g0 + 1 + random.nextInt(6), b0 + 1 + random.nextInt(6)));
+        }
+    }
+
+    @SmallTest
+    public void testNearestSolidColorOfRandomColors() {
+        final Random random = new Random(4);
+        for (int i = 0; i < 20000; i++) {
+            // Also twice in a row, once the cell has been filled in
+            final int color = random.nextInt();
+            assertNearestSolidColor(color);
+            assertNearestSolidColor(color);
+        }
+    }
+
+    @SmallTest
+    public void testBatchLabMatchesScalar() {
+        final Random random = new Random(5);
+        final int[] colors = new int[500];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt();
+        }
+        final float[] l = new float[colors.length];
+        final float[] a = new float[colors.length];
+        final float[] b = new float[colors.length];
+        ColorUtils.convertRGBtoLAB(colors, l, a, b);
+
+        final float[] lab = new float[3];
+        for (int i = 0; i < colors.length; i++) {
+            ColorUtils.convertRGBtoLAB(colors[i], lab);
+            assertEquals(lab[0], l[i], 0f);
+            assertEquals(lab[1], a[i], 0f);
+            assertEquals(lab[2], b[i], 0f);
+        }
+    }
+
+    @SmallTest
+    public void testBatchDeltaEOfRandomPairs() {
+        final Random random = new Random(6);
+        final float[] l = new float[64];
+        final float[] a = new float[64];
+        final float[] b = new float[64];
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < l.length; j++) {
+                l[j] = random.nextFloat() * 255f;
+                a[j] = random.nextFloat() * 256f - 128f;
+                b[j] = random.nextFloat() * 256f - 128f;
+            }
+            assertBatchDeltaE(random.nextFloat() * 255f, random.nextFloat() * 256f - 128f,
+                    random.nextFloat() * 256f - 128f, l, a, b);
+        }
+    }
+
+    @SmallTest
+    public void testBatchDeltaEOfNeutralColors() {
+        // A chroma of 0, where the hue is undefined and atan2() gets (0, 0)
+        final float[] l = new float[] { 0f, 50f, 100f, 255f, 50f, 50f, 50f };
+        final float[] a = new float[] { 0f, 0f, 0f, 0f, 20f, -20f, 0f };
+        final float[] b = new float[] { 0f, 0f, 0f, 0f, 0f, 0f, -35f };
+        assertBatchDeltaE(50f, 0f, 0f, l, a, b);
+        assertBatchDeltaE(0f, 0f, 0f, l, a, b);
+        assertBatchDeltaE(70f, 0f, 15f, l, a, b);
+        assertBatchDeltaE(70f, -10f, 0f, l, a, b);
+    }
+
+    @SmallTest
+    public void testBatchDeltaEAcrossHueWrapAround() {
+        // Hues on both sides of 0 degrees, and pairs about 180 degrees apart
+        final float[] degrees = new float[] {
+                0f, 1f, 5f, 90f, 175f, 179.9f, 180f, 180.1f, 185f, 270f, 355f, 359f, 359.9f
+        };
+        final float[] l = new float[degrees.length * 2];
+        final float[] a = new float[degrees.length * 2];
+        final float[] b = new float[degrees.length * 2];
+        for (int i = 0; i < degrees.length; i++) {
+            for (int j = 0; j < 2; j++) {
+                final float chroma = j == 0 ? 30f : 70f;
+                l[i * 2 + j] = 60f + j * 40f;
+                a[i * 2 + j] = (float) (chroma * Math.cos(Math.toRadians(degrees[i])));
+                b[i * 2 + j] = (float) (chroma * Math.sin(Math.toRadians(degrees[i])));
+            }
+        }
+        for (int i = 0; i < l.length; i++) {
+            assertBatchDeltaE(l[i], a[i], b[i], l, a, b);
+        }
+    }
+
+    @SmallTest
+    public void testTemperatureToRGBBufferMatchesAllocating() {
+        // Every kelvin of the table and beyond both ends of it, into one reused buffer
+        final float[] buffer = new float[3];
+        for (int k = 0; k <= 25000; k++) {
+            buffer[0] = buffer[1] = buffer[2] = Float.NaN;
+            ColorUtils.temperatureToRGB(k, buffer);
+            final float[] expected = ColorUtils.temperatureToRGB(k);
+            for (int c = 0; c < 3; c++) {
+                assertEquals(k + "K component " + c, expected[c], buffer[c], 0f);
+                assertTrue(k + "K component " + c, buffer[c] >= 0f && buffer[c] <= 1f);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testTemperatureToRGBClampsRange() {
+        final float[] min = ColorUtils.temperatureToRGB(1000);
+        final float[] max = ColorUtils.temperatureToRGB(20000);
+        final float[] buffer = new float[3];
+        for (int k : new int[] { Integer.MIN_VALUE, -1, 0, 999 }) {
+            ColorUtils.temperatureToRGB(k, buffer);
+            for (int c = 0; c < 3; c++) {
+                assertEquals(min[c], buffer[c], 0f);
+            }
+        }
+        for (int k : new int[] { 20001, 50000, Integer.MAX_VALUE }) {
+            ColorUtils.temperatureToRGB(k, buffer);
+            for (int c = 0; c < 3; c++) {
+                assertEquals(max[c], buffer[c], 0f);
+            }
+        }
+    }
+
+    private static void assertBatchDeltaE(float l1, float a1, float b1,
+            float[] l2, float[] a2, float[] b2) {
+        final float[] actual = new float[l2.length];
+        ColorUtils.calculateDeltaE(l1, a1, b1, l2, a2, b2, l2.length, actual);
+        for (int i = 0; i < l2.length; i++) {
+            final double expected = ColorUtils.calculateDeltaE(l1, a1, b1, l2[i], a2[i], b2[i]);
+            // The batch results are rounded to float
+            assertEquals("(" + l1 + ", " + a1 + ", " + b1 + ") to (" + l2[i] + ", " + a2[i]
+                    + ", " + b2[i] + ")", expected, actual[i],
+                    DELTA_E_TOLERANCE * Math.max(1.0, expected));
+        }
+    }
+
+    private static void assertNearestSolidColor(int color) {
+        // A full CIE 2000 search over all of the solid colors
+        assertEquals(Integer.toHexString(color),
+                ColorUtils.findPerceptuallyNearestColor(color, SOLID_COLORS),
+                ColorUtils.findPerceptuallyNearestSolidColor(color));
+    }
+
+    private static void assertLab(int color, float[] actual) {
+        final float[] expected = convertRGBtoLABPow(color);
+        ColorUtils.convertRGBtoLAB(color, actual);
+        for (int c = 0; c < 3; c++) {
+            assertEquals(Integer.toHexString(color) + " component " + c, expected[c], actual[c],
+                    LAB_TOLERANCE);
+        }
+    }
+
+    /**
+     * The conversion to Lab, computed as before the linear values were looked up in a table and
+     * the cube roots were taken with Math.cbrt().
+     */
+    private static float[] convertRGBtoLABPow(int rgb) {
+        float[] lab = new float[3];
+        float fx, fy, fz;
+        float eps = 216.f / 24389.f;
+        float k = 24389.f / 27.f;
+
+        float Xr = 0.964221f;  // reference white D50
+        float Yr = 1.0f;
+        float Zr = 0.825211f;
+
+        // RGB to XYZ
+        float r = Color.red(rgb) / 255.f; //R 0..1
+        float g = Color.green(rgb) / 255.f; //G 0..1
+        float b = Color.blue(rgb) / 255.f; //B 0..1
+
+        // assuming sRGB (D65)
+        if (r <= 0.04045)
+            r = r / 12;
+        else
+            r = (float) Math.pow((r + 0.055) / 1.055, 2.4);
+
+        if (g <= 0.04045)
+            g = g / 12;
+        else
+            g = (float) Math.pow((g + 0.055) / 1.055, 2.4);
+
+        if (b <= 0.04045)
+            b = b / 12;
+        else
+            b = (float) Math.pow((b + 0.055) / 1.055, 2.4);
+
+        float X = 0.436052025f * r + 0.385081593f * g + 0.143087414f * b;
+        float Y = 0.222491598f * r + 0.71688606f * g + 0.060621486f * b;
+        float Z = 0.013929122f * r + 0.097097002f * g + 0.71418547f * b;
+
+        // XYZ to Lab
+        float xr = X / Xr;
+        float yr = Y / Yr;
+        float zr = Z / Zr;
+
+        if (xr > eps)
+            fx = (float) Math.pow(xr, 1 / 3.);
+        else
+            fx = (float) ((k * xr + 16.) / 116.);
+
+        if (yr > eps)
+            fy = (float) Math.pow(yr, 1 / 3.);
+        else
+            fy = (float) ((k * yr + 16.) / 116.);
+
+        if (zr > eps)
+            fz = (float) Math.pow(zr, 1 / 3.);
+        else
+            fz = (float) ((k * zr + 16.) / 116);
+
+        float Ls = (116 * fy) - 16;
+        float as = 500 * (fx - fy);
+        float bs = 200 * (fy - fz);
+
+        lab[0] = (2.55f * Ls + .5f);
+        lab[1] = (as + .5f);
+        lab[2] = (bs + .5f);
+
+        return lab;
+    }
+}
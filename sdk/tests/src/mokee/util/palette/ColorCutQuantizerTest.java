@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import mokee.util.palette.Palette.Swatch;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the boxes split by {@link VboxHeap} give exactly the swatches of the reference
+ * {@link ColorCutQuantizer.Vbox} implementation.
+ */
+public class ColorCutQuantizerTest extends TestCase {
+    private static final int PIXEL_COUNT = 4096;
+    private static final int[] MAX_COLORS = new int[] { 1, 2, 16, 24, 32, 64 };
+
+    // Drops the darkest and lightest colors, as the default palette filter does
+    private static final Palette.Filter[] FILTERS = new Palette.Filter[] {
+            new Palette.Filter() {
+                @Override
+                public boolean isAllowed(int rgb, float[] hsl) {
+                    return hsl[2] > 0.05f && hsl[2] < 0.95f;
+                }
+            }
+    };
+
+    @SmallTest
+    public void testClusteredPixels() {
+        final Random random = new Random(1);
+        final int[] centers = new int[8];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = random.nextInt() | 0xff000000;
+        }
+        final int[] pixels = new int[PIXEL_COUNT];
+        for (int i = 0; i < pixels.length; i++) {
+            final int center = centers[random.nextInt(centers.length)];
+            pixels[i] = Color.rgb(jitter(Color.red(center), random),
+                    jitter(Color.green(center), random), jitter(Color.blue(center), random));
+        }
+        assertSameSwatches(pixels);
+    }
+
+    @SmallTest
+    public void testRandomPixels() {
+        final Random random = new Random(2);
+        final int[] pixels = new int[PIXEL_COUNT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() | 0xff000000;
+        }
+        assertSameSwatches(pixels);
+    }
+
+    @SmallTest
+    public void testGradientPixels() {
+        final int[] pixels = new int[PIXEL_COUNT];
+        for (int i = 0; i < pixels.length; i++) {
+            final int x = i % 64;
+            final int y = i / 64;
+            pixels[i] = Color.rgb(x * 4, y * 4, 255 - (x + y) * 2);
+        }
+        assertSameSwatches(pixels);
+    }
+
+    @SmallTest
+    public void testGrayPixels() {
+        // Boxes with a single varying component, and many ties between boxes
+        final int[] pixels = new int[PIXEL_COUNT];
+        for (int i = 0; i < pixels.length; i++) {
+            final int v = i % 256;
+            pixels[i] = Color.rgb(v, v, v);
+        }
+        assertSameSwatches(pixels);
+    }
+
+    private static void assertSameSwatches(int[] pixels) {
+        for (int maxColors : MAX_COLORS) {
+            assertSameSwatches(pixels, maxColors, null);
+            assertSameSwatches(pixels, maxColors, FILTERS);
+        }
+    }
+
+    private static void assertSameSwatches(int[] pixels, int maxColors,
+            Palette.Filter[] filters) {
+        // The quantizers take ownership of their histograms, so each gets its own
+        final List<Swatch> expected = new ColorCutQuantizer(histogramOf(pixels), maxColors,
+                filters, false).getQuantizedColors();
+        final List<Swatch> actual = new ColorCutQuantizer(histogramOf(pixels), maxColors,
+                filters, true).getQuantizedColors();
+
+        final String message = "maxColors " + maxColors + (filters != null ? ", filtered" : "");
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + ", swatch " + i + " color",
+                    expected.get(i).getRgb(), actual.get(i).getRgb());
+            assertEquals(message + ", swatch " + i + " population",
+                    expected.get(i).getPopulation(), actual.get(i).getPopulation());
+        }
+    }
+
+    private static ColorHistogram histogramOf(int[] pixels) {
+        final ColorHistogram histogram = new ColorHistogram();
+        histogram.addPixels(pixels, 0, pixels.length);
+        return histogram;
+    }
+
+    private static int jitter(int component, Random random) {
+        return Math.max(0, Math.min(255, component + random.nextInt(33) - 16));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that streaming a bitmap into a {@link ColorHistogram} samples the same pixels as
+ * scaling it down and copying its pixels out did, and that large inputs split across threads
+ * give the same histogram as a serial pass.
+ */
+public class ColorHistogramTest extends TestCase {
+
+    @SmallTest
+    public void testUnscaledBitmapMatchesPixels() {
+        final Bitmap bitmap = randomBitmap(37, 23, new Random(1));
+
+        final ColorHistogram expected = histogramOfPixels(bitmap);
+        final ColorHistogram actual = new ColorHistogram();
+        actual.addBitmap(bitmap, null, 100);
+        assertSameHistogram(expected, actual);
+    }
+
+    @SmallTest
+    public void testRegionMatchesCroppedBitmap() {
+        final Bitmap bitmap = randomBitmap(120, 80, new Random(2));
+        final Rect region = new Rect(10, 5, 110, 45);
+        final Bitmap cropped = Bitmap.createBitmap(bitmap, region.left, region.top,
+                region.width(), region.height());
+
+        // Both below and above the size of the region
+        for (int maxDimension : new int[] { 17, 50, 100, 200 }) {
+            final ColorHistogram expected = new ColorHistogram();
+            expected.addBitmap(cropped, null, maxDimension);
+            final ColorHistogram actual = new ColorHistogram();
+            actual.addBitmap(bitmap, region, maxDimension);
+            assertSameHistogram(expected, actual);
+        }
+    }
+
+    @SmallTest
+    public void testScaledBitmapMatchesUnfilteredScaling() {
+        // Blocks of 4x4 pixels, so that every sample falls in the same block either way
+        final Random random = new Random(3);
+        final int blockSize = 4;
+        final int width = 64 * blockSize;
+        final int height = 40 * blockSize;
+        final int[] blocks = new int[64 * 40];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = random.nextInt() | 0xff000000;
+        }
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = blocks[(y / blockSize) * 64 + x / blockSize];
+            }
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(pixels, width, height,
+                Bitmap.Config.ARGB_8888);
+
+        final int maxDimension = width / blockSize;
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, maxDimension,
+                height / blockSize, false);
+        final ColorHistogram expected = histogramOfPixels(scaled);
+        final ColorHistogram actual = new ColorHistogram();
+        actual.addBitmap(bitmap, null, maxDimension);
+        assertSameHistogram(expected, actual);
+    }
+
+    @SmallTest
+    public void testScaledSampleCount() {
+        final Random random = new Random(4);
+        final int[][] sizes = new int[][] { { 333, 101 }, { 101, 333 }, { 1000, 3 }, { 7, 7 } };
+        for (int[] size : sizes) {
+            final Bitmap bitmap = randomBitmap(size[0], size[1], random);
+            final ColorHistogram histogram = new ColorHistogram();
+            histogram.addBitmap(bitmap, null, 100);
+
+            // The dimensions scaleBitmapDown() used to scale to
+            final int largest = Math.max(size[0], size[1]);
+            final float scaleRatio = largest <= 100 ? 1f : 100 / (float) largest;
+            final int expected = Math.max(1, Math.round(size[0] * scaleRatio))
+                    * Math.max(1, Math.round(size[1] * scaleRatio));
+            assertEquals(size[0] + "x" + size[1], expected, histogram.getPixelCount());
+            assertEquals(expected, sum(histogram.getHistogram()));
+        }
+    }
+
+    @SmallTest
+    public void testPixelsAddedInChunks() {
+        final Bitmap bitmap = randomBitmap(50, 50, new Random(5));
+        final int[] pixels = new int[50 * 50];
+        bitmap.getPixels(pixels, 0, 50, 0, 0, 50, 50);
+
+        final ColorHistogram actual = new ColorHistogram();
+        for (int offset = 0; offset < pixels.length; offset += 50) {
+            actual.addPixels(pixels, offset, 50);
+        }
+        assertSameHistogram(histogramOfPixels(bitmap), actual);
+    }
+
+    @SmallTest
+    public void testLargePixelArrayMatchesSerial() {
+        final Random random = new Random(6);
+        final int[] pixels = new int[300000];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() | 0xff000000;
+        }
+
+        final ColorHistogram actual = new ColorHistogram();
+        actual.addPixels(pixels, 0, pixels.length);
+        assertSameHistogram(serialHistogram(pixels, 0, pixels.length), actual);
+
+        // An odd offset and count, so the chunks don't divide evenly
+        final ColorHistogram partial = new ColorHistogram();
+        partial.addPixels(pixels, 1234, 200001);
+        assertSameHistogram(serialHistogram(pixels, 1234, 200001), partial);
+    }
+
+    @SmallTest
+    public void testSmallChunksMatchSerial() {
+        final Random random = new Random(8);
+        final int[] pixels = new int[10007];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() | 0xff000000;
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(pixels, 97, 103, Bitmap.Config.ARGB_8888);
+
+        // Split far more eagerly than the defaults, as the threshold benchmark does
+        final ColorHistogram actual = new ColorHistogram(0, 1);
+        actual.addPixels(pixels, 0, pixels.length);
+        assertSameHistogram(serialHistogram(pixels, 0, pixels.length), actual);
+
+        final ColorHistogram rows = new ColorHistogram(0, 1);
+        rows.addBitmap(bitmap, null, 103);
+        assertSameHistogram(serialHistogram(pixels, 0, 97 * 103), rows);
+    }
+
+    @SmallTest
+    public void testLargeBitmapMatchesSerial() {
+        // Blocks of 2x2 pixels, so that the scaled samples are known
+        final Random random = new Random(7);
+        final int width = 1200;
+        final int height = 802;
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                final int color = random.nextInt() | 0xff000000;
+                pixels[y * width + x] = color;
+                pixels[y * width + x + 1] = color;
+                pixels[(y + 1) * width + x] = color;
+                pixels[(y + 1) * width + x + 1] = color;
+            }
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(pixels, width, height,
+                Bitmap.Config.ARGB_8888);
+
+        final ColorHistogram unscaled = new ColorHistogram();
+        unscaled.addBitmap(bitmap, null, width);
+        assertSameHistogram(serialHistogram(pixels, 0, pixels.length), unscaled);
+
+        final int[] sampled = new int[(width / 2) * (height / 2)];
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                sampled[y * (width / 2) + x] = pixels[y * 2 * width + x * 2];
+            }
+        }
+        final ColorHistogram scaled = new ColorHistogram();
+        scaled.addBitmap(bitmap, null, width / 2);
+        assertSameHistogram(serialHistogram(sampled, 0, sampled.length), scaled);
+    }
+
+    private static Bitmap randomBitmap(int width, int height, Random random) {
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() | 0xff000000;
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static ColorHistogram histogramOfPixels(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        final ColorHistogram histogram = new ColorHistogram();
+        histogram.addPixels(pixels, 0, pixels.length);
+        return histogram;
+    }
+
+    /**
+     * @return the histogram of the pixels, added in chunks small enough to stay serial
+     */
+    private static ColorHistogram serialHistogram(int[] pixels, int offset, int count) {
+        final ColorHistogram histogram = new ColorHistogram();
+        for (int i = 0; i < count; i += 1024) {
+            histogram.addPixels(pixels, offset + i, Math.min(1024, count - i));
+        }
+        return histogram;
+    }
+
+    private static void assertSameHistogram(ColorHistogram expected, ColorHistogram actual) {
+        assertEquals(expected.getPixelCount(), actual.getPixelCount());
+        assertTrue(Arrays.equals(expected.getHistogram(), actual.getHistogram()));
+    }
+
+    private static int sum(int[] histogram) {
+        int sum = 0;
+        for (int population : histogram) {
+            sum += population;
+        }
+        return sum;
+    }
+}
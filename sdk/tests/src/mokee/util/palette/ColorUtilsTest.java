@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the table based luminance and the minimum alpha search against the Math.pow() based
+ * implementation they replaced, which the swatch text colors depend on.
+ */
+public class ColorUtilsTest extends TestCase {
+    private static final int ITERATIONS = 5000;
+
+    // Title and body text contrast ratios used by Swatch, and a few others
+    private static final float[] CONTRAST_RATIOS = new float[] { 1.5f, 3.0f, 4.5f, 7.0f };
+
+    @SmallTest
+    public void testLuminanceOfEachComponent() {
+        for (int v = 0; v < 256; v++) {
+            assertLuminance(Color.rgb(v, 0, 0));
+            assertLuminance(Color.rgb(0, v, 0));
+            assertLuminance(Color.rgb(0, 0, v));
+            assertLuminance(Color.rgb(v, v, v));
+        }
+    }
+
+    @SmallTest
+    public void testLuminanceOfRandomColors() {
+        final Random random = new Random(1);
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertLuminance(random.nextInt());
+        }
+    }
+
+    @SmallTest
+    public void testMinimumAlphaOfRandomColors() {
+        final Random random = new Random(2);
+        for (int i = 0; i < ITERATIONS; i++) {
+            final int foreground = random.nextInt();
+            final int background = random.nextInt() | 0xff000000;
+            for (float ratio : CONTRAST_RATIOS) {
+                assertMinimumAlpha(foreground, background, ratio);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testMinimumAlphaOfTextColors() {
+        final Random random = new Random(3);
+        for (int i = 0; i < ITERATIONS; i++) {
+            final int background = random.nextInt() | 0xff000000;
+            for (float ratio : CONTRAST_RATIOS) {
+                assertMinimumAlpha(Color.WHITE, background, ratio);
+                assertMinimumAlpha(Color.BLACK, background, ratio);
+            }
+        }
+    }
+
+    private static void assertLuminance(int color) {
+        assertEquals(Integer.toHexString(color), calculateLuminancePow(color),
+                ColorUtils.calculateLuminance(color), 0d);
+    }
+
+    private static void assertMinimumAlpha(int foreground, int background, float ratio) {
+        assertEquals(Integer.toHexString(foreground) + " on " + Integer.toHexString(background)
+                + " at " + ratio,
+                calculateMinimumAlphaPow(foreground, background, ratio),
+                ColorUtils.calculateMinimumAlpha(foreground, background, ratio));
+    }
+
+    /**
+     * The relative luminance, computed as before the linear values were looked up in a table.
+     */
+    private static double calculateLuminancePow(int color) {
+        double red = Color.red(color) / 255d;
+        red = red < 0.03928 ? red / 12.92 : Math.pow((red + 0.055) / 1.055, 2.4);
+
+        double green = Color.green(color) / 255d;
+        green = green < 0.03928 ? green / 12.92 : Math.pow((green + 0.055) / 1.055, 2.4);
+
+        double blue = Color.blue(color) / 255d;
+        blue = blue < 0.03928 ? blue / 12.92 : Math.pow((blue + 0.055) / 1.055, 2.4);
+
+        return (0.2126 * red) + (0.7152 * green) + (0.0722 * blue);
+    }
+
+    private static double calculateContrastPow(int foreground, int background) {
+        if (Color.alpha(foreground) < 255) {
+            foreground = ColorUtils.compositeColors(foreground, background);
+        }
+        final double luminance1 = calculateLuminancePow(foreground) + 0.05;
+        final double luminance2 = calculateLuminancePow(background) + 0.05;
+        return Math.max(luminance1, luminance2) / Math.min(luminance1, luminance2);
+    }
+
+    /**
+     * The minimum alpha search, computing the luminance of the background on every step.
+     */
+    private static int calculateMinimumAlphaPow(int foreground, int background,
+            float minContrastRatio) {
+        int testForeground = ColorUtils.setAlphaComponent(foreground, 255);
+        double testRatio = calculateContrastPow(testForeground, background);
+        if (testRatio < minContrastRatio) {
+            return -1;
+        }
+
+        int numIterations = 0;
+        int minAlpha = 0;
+        int maxAlpha = 255;
+        while (numIterations <= 10 && (maxAlpha - minAlpha) > 10) {
+            final int testAlpha = (minAlpha + maxAlpha) / 2;
+
+            testForeground = ColorUtils.setAlphaComponent(foreground, testAlpha);
+            testRatio = calculateContrastPow(testForeground, background);
+            if (testRatio < minContrastRatio) {
+                minAlpha = testAlpha;
+            } else {
+                maxAlpha = testAlpha;
+            }
+            numIterations++;
+        }
+        return maxAlpha;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import mokee.util.palette.Palette.Swatch;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that a palette returned by a {@link PaletteCache} has exactly the swatches of a
+ * palette generated without one.
+ */
+public class PaletteCacheTest extends TestCase {
+    private static final Palette.Quantizer[] QUANTIZERS = new Palette.Quantizer[] {
+            Palette.MEDIAN_CUT_QUANTIZER, Palette.WU_QUANTIZER, Palette.K_MEANS_QUANTIZER
+    };
+
+    @SmallTest
+    public void testCachedPaletteMatchesUncached() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 8; i++) {
+            final Bitmap bitmap = clusteredBitmap(160, 120, random);
+            for (Palette.Quantizer quantizer : QUANTIZERS) {
+                final PaletteCache cache = new PaletteCache(16, 64 * 1024);
+                final Palette expected = Palette.from(bitmap).quantizer(quantizer).generate();
+
+                final Palette first = Palette.from(bitmap).quantizer(quantizer)
+                        .cache(cache).generate();
+                final Palette second = Palette.from(bitmap).quantizer(quantizer)
+                        .cache(cache).generate();
+                assertEquals(1, cache.missCount());
+                assertEquals(1, cache.hitCount());
+                assertSame(first, second);
+
+                assertSamePalette(expected, first);
+                assertSamePalette(expected, second);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testBuilderReuseKeepsCachedPalette() {
+        final Random random = new Random(2);
+        final Bitmap bitmap = clusteredBitmap(100, 100, random);
+        final Palette expected = Palette.from(bitmap).generate();
+
+        final PaletteCache cache = new PaletteCache(16, 64 * 1024);
+        final Palette.Builder builder = Palette.from(bitmap).cache(cache);
+        final Palette cached = builder.generate();
+
+        // Generating another palette with the same builder must not change the cached one
+        builder.clearFilters().maximumColorCount(3).generate();
+        assertSamePalette(expected, cached);
+        assertSame(cached, Palette.from(bitmap).cache(cache).generate());
+    }
+
+    @SmallTest
+    public void testCustomGeneratorIsNotCached() {
+        final Bitmap bitmap = clusteredBitmap(64, 64, new Random(3));
+        final PaletteCache cache = new PaletteCache(16, 64 * 1024);
+        final Palette.Generator generator = new Palette.Generator() {
+            @Override
+            public void generate(List<Swatch> swatches) {
+            }
+        };
+
+        Palette.from(bitmap).generator(generator).cache(cache).generate();
+        Palette.from(bitmap).generator(generator).cache(cache).generate();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.hitCount());
+    }
+
+    private static void assertSamePalette(Palette expected, Palette actual) {
+        final List<Swatch> expectedSwatches = expected.getSwatches();
+        final List<Swatch> actualSwatches = actual.getSwatches();
+        assertEquals(expectedSwatches.size(), actualSwatches.size());
+        for (int i = 0; i < expectedSwatches.size(); i++) {
+            assertSameSwatch("swatch " + i, expectedSwatches.get(i), actualSwatches.get(i));
+        }
+
+        assertSameSwatch("vibrant", expected.getVibrantSwatch(), actual.getVibrantSwatch());
+        assertSameSwatch("light vibrant", expected.getLightVibrantSwatch(),
+                actual.getLightVibrantSwatch());
+        assertSameSwatch("dark vibrant", expected.getDarkVibrantSwatch(),
+                actual.getDarkVibrantSwatch());
+        assertSameSwatch("muted", expected.getMutedSwatch(), actual.getMutedSwatch());
+        assertSameSwatch("light muted", expected.getLightMutedSwatch(),
+                actual.getLightMutedSwatch());
+        assertSameSwatch("dark muted", expected.getDarkMutedSwatch(),
+                actual.getDarkMutedSwatch());
+    }
+
+    private static void assertSameSwatch(String message, Swatch expected, Swatch actual) {
+        if (expected == null) {
+            assertNull(message, actual);
+            return;
+        }
+        assertNotNull(message, actual);
+        assertEquals(message + " color", expected.getRgb(), actual.getRgb());
+        assertEquals(message + " population", expected.getPopulation(), actual.getPopulation());
+        assertEquals(message + " title text color", expected.getTitleTextColor(),
+                actual.getTitleTextColor());
+        assertEquals(message + " body text color", expected.getBodyTextColor(),
+                actual.getBodyTextColor());
+    }
+
+    private static Bitmap clusteredBitmap(int width, int height, Random random) {
+        // Clusters around a few colors, so the generator finds most of its target swatches
+        final int[] centers = new int[6];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = Color.HSVToColor(new float[] {
+                    random.nextFloat() * 360f, random.nextFloat(), random.nextFloat() });
+        }
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            final int center = centers[random.nextInt(centers.length)];
+            pixels[i] = Color.rgb(jitter(Color.red(center), random),
+                    jitter(Color.green(center), random), jitter(Color.blue(center), random));
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static int jitter(int component, Random random) {
+        return Math.max(0, Math.min(255, component + random.nextInt(17) - 8));
+    }
+}
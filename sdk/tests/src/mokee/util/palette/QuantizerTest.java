@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.util.palette;
+
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import mokee.util.palette.Palette.Quantizer;
+import mokee.util.palette.Palette.Swatch;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the contract of the {@link Quantizer}s a {@link Palette} can be generated with.
+ */
+public class QuantizerTest extends TestCase {
+    private static final Quantizer[] QUANTIZERS = new Quantizer[] {
+            Palette.MEDIAN_CUT_QUANTIZER, Palette.WU_QUANTIZER, Palette.K_MEANS_QUANTIZER
+    };
+    private static final String[] NAMES = new String[] { "median-cut", "Wu", "k-means" };
+
+    private static final int[] MAX_COLORS = new int[] { 1, 2, 5, 16, 32 };
+
+    @SmallTest
+    public void testAtMostMaxColors() {
+        final int[] pixels = randomPixels(new Random(1), 4096);
+        for (int q = 0; q < QUANTIZERS.length; q++) {
+            for (int maxColors : MAX_COLORS) {
+                final List<Swatch> swatches = quantize(QUANTIZERS[q], pixels, maxColors);
+                assertFalse(NAMES[q] + ", maxColors " + maxColors, swatches.isEmpty());
+                assertTrue(NAMES[q] + ", maxColors " + maxColors + ": " + swatches.size(),
+                        swatches.size() <= maxColors);
+                int population = 0;
+                for (Swatch swatch : swatches) {
+                    assertTrue(swatch.getPopulation() > 0);
+                    population += swatch.getPopulation();
+                }
+                // Without filters, every pixel ends up in a swatch
+                assertEquals(NAMES[q] + ", maxColors " + maxColors, pixels.length, population);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testFewColorsAreKept() {
+        // Components which survive quantizing to 5 bits unchanged
+        final int[] colors = new int[] {
+                Color.rgb(0xf8, 0x00, 0x00), Color.rgb(0x00, 0xf8, 0x00),
+                Color.rgb(0x00, 0x00, 0xf8), Color.rgb(0x80, 0x40, 0x20),
+                Color.rgb(0x18, 0x98, 0xa8)
+        };
+        final int[] pixels = new int[1000];
+        final Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int i = 0; i < pixels.length; i++) {
+            // Uneven populations
+            pixels[i] = colors[(i * i) % colors.length];
+            final Integer population = expected.get(pixels[i]);
+            expected.put(pixels[i], population != null ? population + 1 : 1);
+        }
+
+        for (int q = 0; q < QUANTIZERS.length; q++) {
+            for (int maxColors : new int[] { colors.length, 16 }) {
+                final Map<Integer, Integer> actual = new HashMap<Integer, Integer>();
+                for (Swatch swatch : quantize(QUANTIZERS[q], pixels, maxColors)) {
+                    actual.put(swatch.getRgb(), swatch.getPopulation());
+                }
+                assertEquals(NAMES[q] + ", maxColors " + maxColors, expected, actual);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testDeterministic() {
+        final Random random = new Random(2);
+        final int[] pixels = randomPixels(random, 4096);
+        for (int q = 0; q < QUANTIZERS.length; q++) {
+            for (int maxColors : MAX_COLORS) {
+                final List<Swatch> first = quantize(QUANTIZERS[q], pixels, maxColors);
+                final List<Swatch> second = quantize(QUANTIZERS[q], pixels, maxColors);
+                assertEquals(NAMES[q] + ", maxColors " + maxColors, first.size(),
+                        second.size());
+                for (int i = 0; i < first.size(); i++) {
+                    assertEquals(first.get(i).getRgb(), second.get(i).getRgb());
+                    assertEquals(first.get(i).getPopulation(), second.get(i).getPopulation());
+                }
+            }
+        }
+    }
+
+    private static List<Swatch> quantize(Quantizer quantizer, int[] pixels, int maxColors) {
+        // Quantizers may modify the histogram, so each call gets its own
+        final ColorHistogram histogram = new ColorHistogram();
+        histogram.addPixels(pixels, 0, pixels.length);
+        return quantizer.quantize(histogram.getHistogram(), maxColors, null);
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        // Clusters around a few colors, over a noisy background
+        final int[] centers = new int[6];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = random.nextInt() | 0xff000000;
+        }
+        final int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(4) == 0) {
+                pixels[i] = random.nextInt() | 0xff000000;
+            } else {
+                final int center = centers[random.nextInt(centers.length)];
+                pixels[i] = Color.rgb(jitter(Color.red(center), random),
+                        jitter(Color.green(center), random), jitter(Color.blue(center), random));
+            }
+        }
+        return pixels;
+    }
+
+    private static int jitter(int component, Random random) {
+        return Math.max(0, Math.min(255, component + random.nextInt(25) - 12));
+    }
+}
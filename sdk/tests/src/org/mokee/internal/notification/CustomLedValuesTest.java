@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.internal.notification;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the single pass parser of the custom LED values setting against the split() based
+ * parser it replaced.
+ */
+public class CustomLedValuesTest extends TestCase {
+    private static final int ITERATIONS = 50000;
+
+    // Separators, signs, ASCII digits, Arabic-Indic digits and other noise
+    private static final String ALPHABET = "ab=;|-+0123456789\u0661\u0662 ";
+
+    private static final String[] NUMBERS = new String[] {
+            "0", "7", "-1", "+255", "16777215", "-16777216", "2147483647", "-2147483648",
+            "2147483648", "-2147483649", "99999999999", "+", "-", "", "\u0661\u0662", "1\u0661",
+            "1a", " 1"
+    };
+
+    @SmallTest
+    public void testValidValues() {
+        final ArrayMap<String, LedValues> values = new ArrayMap<String, LedValues>();
+        MKNotificationLights.applyCustomLedValues(
+                "com.example.a=-16776961;500;1000|com.example.b=255;0;0", values);
+        assertEquals(2, values.size());
+        assertLedValues(values.get("com.example.a"), -16776961, 500, 1000);
+        assertLedValues(values.get("com.example.b"), 255, 0, 0);
+    }
+
+    @SmallTest
+    public void testSettingChangesReplaceEntries() {
+        final ArrayMap<String, LedValues> values = new ArrayMap<String, LedValues>();
+        MKNotificationLights.applyCustomLedValues("a=1;2;3|b=4;5;6", values);
+        final LedValues a = values.get("a");
+
+        MKNotificationLights.applyCustomLedValues("a=1;2;3|c=7;8;9", values);
+        assertSame(a, values.get("a"));
+        assertNull(values.get("b"));
+        assertLedValues(values.get("c"), 7, 8, 9);
+
+        MKNotificationLights.applyCustomLedValues("", values);
+        assertTrue(values.isEmpty());
+    }
+
+    @SmallTest
+    public void testRandomStringsMatchSplitParser() {
+        final Random random = new Random(0x4c4544L);
+        final ArrayMap<String, LedValues> incremental = new ArrayMap<String, LedValues>();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final String s = random.nextBoolean()
+                    ? randomString(random) : randomSetting(random);
+            final Map<String, String> expected = parseWithSplit(s);
+
+            final ArrayMap<String, LedValues> fresh = new ArrayMap<String, LedValues>();
+            MKNotificationLights.applyCustomLedValues(s, fresh);
+            assertEquals("Parsing '" + s + "'", expected, toStrings(fresh));
+
+            // Applying over the values of the previous setting gives the same result
+            MKNotificationLights.applyCustomLedValues(s, incremental);
+            assertEquals("Applying '" + s + "'", expected, toStrings(incremental));
+        }
+    }
+
+    private static String randomString(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        final int length = random.nextInt(24);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return a setting which is mostly well formed, to get past the separators more often
+     */
+    private static String randomSetting(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        final int entries = random.nextInt(4);
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            sb.append("ab".charAt(random.nextInt(2))).append('=');
+            for (int j = 0; j < 3; j++) {
+                if (j > 0) {
+                    sb.append(';');
+                }
+                sb.append(random.nextInt(3) == 0
+                        ? NUMBERS[random.nextInt(NUMBERS.length)]
+                        : Integer.toString(random.nextInt(2000) - 1000));
+            }
+            if (random.nextInt(5) == 0) {
+                sb.append(random.nextBoolean() ? ";" : "=");
+            }
+        }
+        if (random.nextInt(5) == 0) {
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The parser used before the custom LED values setting was parsed in a single pass.
+     */
+    private static Map<String, String> parseWithSplit(String customLedValuesString) {
+        final Map<String, String> result = new HashMap<String, String>();
+        if (TextUtils.isEmpty(customLedValuesString)) {
+            return result;
+        }
+        for (String packageValuesString : customLedValuesString.split("\\|")) {
+            String[] packageValues = packageValuesString.split("=");
+            if (packageValues.length != 2) {
+                continue;
+            }
+            String[] values = packageValues[1].split(";");
+            if (values.length != 3) {
+                continue;
+            }
+            try {
+                result.put(packageValues[0], Integer.parseInt(values[0]) + ";"
+                        + Integer.parseInt(values[1]) + ";" + Integer.parseInt(values[2]));
+            } catch (NumberFormatException e) {
+                // Skipped, as before
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, String> toStrings(ArrayMap<String, LedValues> values) {
+        final Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < values.size(); i++) {
+            final LedValues v = values.valueAt(i);
+            result.put(values.keyAt(i), v.getColor() + ";" + v.getOnMs() + ";" + v.getOffMs());
+        }
+        return result;
+    }
+
+    private static void assertLedValues(LedValues values, int color, int onMs, int offMs) {
+        assertNotNull(values);
+        assertEquals(color, values.getColor());
+        assertEquals(onMs, values.getOnMs());
+        assertEquals(offMs, values.getOffMs());
+    }
+}
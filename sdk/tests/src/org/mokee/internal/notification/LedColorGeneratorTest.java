@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2017 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.internal.notification;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.mock.MockPackageManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import mokee.util.ColorUtils;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that requesting a LED color from the notification path never waits for the icon to
+ * be looked up and quantized, and that the lights are updated once the color is ready.
+ */
+public class LedColorGeneratorTest extends AndroidTestCase {
+    private static final String PACKAGE = "org.mokee.tests.led";
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mThread;
+    private File mCacheFile;
+    private BlockingPackageManager mPackageManager;
+    private Drawable mIcon;
+    private final AtomicInteger mUpdates = new AtomicInteger();
+    private CountDownLatch mUpdated;
+    private LedColorGenerator mGenerator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("LedColorGeneratorTest");
+        mThread.start();
+        final Handler handler = new Handler(mThread.getLooper());
+
+        mCacheFile = new File(getContext().getCacheDir(), "notification_led_colors");
+        mCacheFile.delete();
+
+        final Bitmap bitmap = Bitmap.createBitmap(48, 48, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        mIcon = new BitmapDrawable(getContext().getResources(), bitmap);
+        mPackageManager = new BlockingPackageManager(mIcon);
+
+        mUpdated = new CountDownLatch(1);
+        final Context context = new ContextWrapper(getContext()) {
+            @Override
+            public PackageManager getPackageManager() {
+                return mPackageManager;
+            }
+        };
+        mGenerator = new LedColorGenerator(context, new LedColorCache(mCacheFile, handler),
+                handler, new Runnable() {
+                    @Override
+                    public void run() {
+                        mUpdates.incrementAndGet();
+                        mUpdated.countDown();
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPackageManager.release();
+        mThread.quitSafely();
+        mCacheFile.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testGenerateAsyncDoesNotBlock() throws Exception {
+        final long start = SystemClock.elapsedRealtime();
+        mGenerator.generateAsync(PACKAGE);
+        assertNull(mGenerator.getColor(PACKAGE));
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+
+        // The package manager is still blocked, the request returned nonetheless
+        assertTrue(mPackageManager.awaitEntered());
+        assertTrue("generateAsync took " + elapsed + " ms", elapsed < TIMEOUT_MS);
+        assertNull(mGenerator.getColor(PACKAGE));
+        assertEquals(0, mUpdates.get());
+
+        mPackageManager.release();
+        assertTrue(mUpdated.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(ColorUtils.generateAlertColorFromDrawable(mIcon)),
+                mGenerator.getColor(PACKAGE));
+    }
+
+    @SmallTest
+    public void testDuplicateRequestsGenerateOnce() throws Exception {
+        mGenerator.generateAsync(PACKAGE);
+        assertTrue(mPackageManager.awaitEntered());
+        mGenerator.generateAsync(PACKAGE);
+        mGenerator.generateAsync(PACKAGE);
+
+        mPackageManager.release();
+        assertTrue(mUpdated.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mPackageManager.getPackageInfoCalls());
+        assertEquals(1, mUpdates.get());
+    }
+
+    @SmallTest
+    public void testRequestDuringWarmUpUpdatesLights() throws Exception {
+        mGenerator.warmUp(Collections.singleton(PACKAGE));
+        assertTrue(mPackageManager.awaitEntered());
+
+        // A notification arrives while the warm-up is generating the color
+        mGenerator.generateAsync(PACKAGE);
+        assertNull(mGenerator.getColor(PACKAGE));
+
+        mPackageManager.release();
+        assertTrue(mUpdated.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mPackageManager.getPackageInfoCalls());
+        assertNotNull(mGenerator.getColor(PACKAGE));
+    }
+
+    @SmallTest
+    public void testDisabledWarmUpGeneratesNothing() throws Exception {
+        mGenerator.setEnabled(false);
+        mPackageManager.release();
+        mGenerator.warmUp(Collections.singleton(PACKAGE));
+
+        // Wait for the warm-up to go through the LED color threads
+        final CountDownLatch done = new CountDownLatch(1);
+        mGenerator.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, mPackageManager.getPackageInfoCalls());
+        assertNull(mGenerator.getColor(PACKAGE));
+    }
+
+    /**
+     * Blocks the LED color threads in getPackageInfo() until released.
+     */
+    private static final class BlockingPackageManager extends MockPackageManager {
+        private final CountDownLatch mEntered = new CountDownLatch(1);
+        private final CountDownLatch mRelease = new CountDownLatch(1);
+        private final AtomicInteger mCalls = new AtomicInteger();
+        private final Drawable mIcon;
+
+        BlockingPackageManager(Drawable icon) {
+            mIcon = icon;
+        }
+
+        boolean awaitEntered() throws InterruptedException {
+            return mEntered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        void release() {
+            mRelease.countDown();
+        }
+
+        int getPackageInfoCalls() {
+            return mCalls.get();
+        }
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName, int flags)
+                throws NameNotFoundException {
+            mCalls.incrementAndGet();
+            mEntered.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new NameNotFoundException(packageName);
+            }
+            final PackageInfo info = new PackageInfo();
+            info.packageName = packageName;
+            info.versionCode = 1;
+            info.applicationInfo = new ApplicationInfo();
+            info.applicationInfo.packageName = packageName;
+            info.applicationInfo.icon = 1;
+            return info;
+        }
+
+        @Override
+        public Drawable getApplicationIcon(ApplicationInfo info) {
+            return mIcon;
+        }
+    }
+}